@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.cooliris.media.MediaClustering;
+import com.cooliris.media.MediaItem;
+import com.cooliris.media.MediaSet;
+import com.cooliris.media.Utils;
+
+/**
+ * The items of an album as stored in the album cache. The record is columnar:
+ *
+ * <pre>
+ * int numItems, long minTimestamp, long maxTimestamp, int numImages, int numVideos
+ * mime type dictionary, directory dictionary
+ * flags[numItems]
+ * ids, dates taken, dates added, dates modified (delta encoded)
+ * mime type indices, directory indices, durations, rotations
+ * latitude and longitude of the items that have a location
+ * file names, captions that are not derived from the file name
+ * cluster breaks
+ * </pre>
+ *
+ * Integers are variable length encoded and the deltas zig-zag encoded since
+ * items are sorted by date but their ids are not. The reader decodes all the
+ * numeric columns in one pass and only keeps the offsets of the strings, they
+ * are decoded when the item is materialized. The cluster breaks are the
+ * cumulative number of items of the clusters of the album in this order, see
+ * MediaClustering.
+ */
+final class AlbumRecord {
+    private static final int HEADER_SIZE = 28;
+
+    private static final int FLAG_VIDEO = 1;
+    private static final int FLAG_TRIED_EXIF_DATE_TAKEN = 2;
+    private static final int FLAG_LOCATION = 4;
+    private static final int FLAG_CAPTION_FROM_NAME = 8;
+
+    public final int numItems;
+    public final long minTimestamp;
+    public final long maxTimestamp;
+    public final int numImages;
+    public final int numVideos;
+    // Empty if the items could not be clustered.
+    public final int[] clusterBreaks;
+
+    private final byte[] mData;
+    private final String[] mMimeTypes;
+    private final String[] mDirectories;
+    private final byte[] mFlags;
+    private final long[] mIds;
+    private final long[] mDatesTaken;
+    private final long[] mDatesAdded;
+    private final long[] mDatesModified;
+    private final int[] mMimeTypeIndices;
+    private final int[] mDirectoryIndices;
+    private final int[] mDurations;
+    private final int[] mRotations;
+    // Index of the location of each item in mLatitudes and mLongitudes, or -1.
+    private final int[] mLocationIndices;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final int[] mNameOffsets;
+    // Offset of the caption of each item, or -1 if derived from the name.
+    private final int[] mCaptionOffsets;
+    private int mPosition;
+
+    public AlbumRecord(byte[] data) throws IOException {
+        mData = data;
+        final int numItems = readInt();
+        this.numItems = numItems;
+        minTimestamp = readLong();
+        maxTimestamp = readLong();
+        numImages = readInt();
+        numVideos = readInt();
+        if (numItems < 0 || numItems > data.length) {
+            throw new IOException("Bad item count " + numItems);
+        }
+        mMimeTypes = readDictionary();
+        mDirectories = readDictionary();
+
+        final byte[] flags = new byte[numItems];
+        readBytes(flags);
+        mFlags = flags;
+        mIds = readDeltas(numItems);
+        mDatesTaken = readDeltas(numItems);
+        mDatesAdded = readDeltas(numItems);
+        mDatesModified = readDeltas(numItems);
+        mMimeTypeIndices = readIndices(numItems, mMimeTypes.length);
+        mDirectoryIndices = readIndices(numItems, mDirectories.length);
+        mDurations = readInts(numItems);
+        mRotations = readInts(numItems);
+
+        final int[] locationIndices = new int[numItems];
+        int numLocations = 0;
+        for (int i = 0; i < numItems; ++i) {
+            locationIndices[i] = ((flags[i] & FLAG_LOCATION) != 0) ? numLocations++ : -1;
+        }
+        final double[] latitudes = new double[numLocations];
+        final double[] longitudes = new double[numLocations];
+        for (int i = 0; i < numLocations; ++i) {
+            latitudes[i] = Double.longBitsToDouble(readLong());
+            longitudes[i] = Double.longBitsToDouble(readLong());
+        }
+        mLocationIndices = locationIndices;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+
+        final int[] nameOffsets = new int[numItems];
+        for (int i = 0; i < numItems; ++i) {
+            nameOffsets[i] = skipUTF();
+        }
+        final int[] captionOffsets = new int[numItems];
+        for (int i = 0; i < numItems; ++i) {
+            captionOffsets[i] = ((flags[i] & FLAG_CAPTION_FROM_NAME) != 0) ? -1 : skipUTF();
+        }
+        mNameOffsets = nameOffsets;
+        mCaptionOffsets = captionOffsets;
+
+        final int numClusters = (int) readVarLong();
+        if (numClusters < 0 || numClusters > numItems) {
+            throw new IOException("Bad cluster count " + numClusters);
+        }
+        final int[] clusterBreaks = new int[numClusters];
+        int numClusteredItems = 0;
+        for (int i = 0; i < numClusters; ++i) {
+            numClusteredItems += (int) readVarLong();
+            clusterBreaks[i] = numClusteredItems;
+        }
+        this.clusterBreaks = clusterBreaks;
+    }
+
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    public boolean isVideo(int index) {
+        return (mFlags[index] & FLAG_VIDEO) != 0;
+    }
+
+    /**
+     * Fills in the item at the given index, overwriting every cached field.
+     */
+    public void getItem(int index, MediaItem item) throws IOException {
+        final int flags = mFlags[index];
+        item.mId = mIds[index];
+        final String directory = mDirectories[mDirectoryIndices[index]];
+        final String path = directory + decodeUTF(mNameOffsets[index]);
+        final int captionOffset = mCaptionOffsets[index];
+        // A caption taken from the name is a substring of the path and shares
+        // its characters.
+        item.mCaption = (captionOffset == -1) ? getTitle(path, directory.length()) : Utils.readUTF(openUTF(captionOffset));
+        final String mimeType = mMimeTypes[mMimeTypeIndices[index]];
+        item.mMimeType = (mimeType.length() == 0) ? null : mimeType;
+        item.setMediaType(((flags & FLAG_VIDEO) != 0) ? MediaItem.MEDIA_TYPE_VIDEO : MediaItem.MEDIA_TYPE_IMAGE);
+        final int locationIndex = mLocationIndices[index];
+        if (locationIndex == -1) {
+            item.mLatitude = 0.0;
+            item.mLongitude = 0.0;
+        } else {
+            item.mLatitude = mLatitudes[locationIndex];
+            item.mLongitude = mLongitudes[locationIndex];
+        }
+        item.mDateTakenInMs = mDatesTaken[index];
+        item.mTriedRetrievingExifDateTaken = (flags & FLAG_TRIED_EXIF_DATE_TAKEN) != 0;
+        item.mDateAddedInSec = mDatesAdded[index];
+        item.mDateModifiedInSec = mDatesModified[index];
+        item.mDurationInSec = mDurations[index];
+        item.mRotation = (float) mRotations[index];
+        item.mFilePath = (path.length() == 0) ? null : path;
+    }
+
+    /**
+     * Serializes the items of the set, in reverse order if requested.
+     */
+    public static byte[] write(MediaSet set, boolean reverseOrder) throws IOException {
+        final ArrayList<MediaItem> items = set.getItems();
+        final int numItems = items.size();
+        final MediaItem[] orderedItems = new MediaItem[numItems];
+        for (int i = 0; i < numItems; ++i) {
+            orderedItems[i] = items.get(reverseOrder ? numItems - i - 1 : i);
+        }
+
+        final HashMap<String, Integer> mimeTypeTable = new HashMap<String, Integer>();
+        final ArrayList<String> mimeTypes = new ArrayList<String>();
+        final HashMap<String, Integer> directoryTable = new HashMap<String, Integer>();
+        final ArrayList<String> directories = new ArrayList<String>();
+        final int[] mimeTypeIndices = new int[numItems];
+        final int[] directoryIndices = new int[numItems];
+        final String[] names = new String[numItems];
+        final byte[] flags = new byte[numItems];
+        int numImages = 0;
+        int numVideos = 0;
+        for (int i = 0; i < numItems; ++i) {
+            final MediaItem item = orderedItems[i];
+            final String mimeType = (item.mMimeType == null) ? "" : item.mMimeType;
+            mimeTypeIndices[i] = getIndex(mimeType, mimeTypeTable, mimeTypes);
+            final String path = (item.mFilePath == null) ? "" : item.mFilePath;
+            final int separatorIndex = path.lastIndexOf('/') + 1;
+            directoryIndices[i] = getIndex(path.substring(0, separatorIndex), directoryTable, directories);
+            names[i] = path.substring(separatorIndex);
+
+            int itemFlags = 0;
+            if (item.getMediaType() == MediaItem.MEDIA_TYPE_VIDEO) {
+                itemFlags |= FLAG_VIDEO;
+                ++numVideos;
+            } else {
+                ++numImages;
+            }
+            if (item.mTriedRetrievingExifDateTaken) {
+                itemFlags |= FLAG_TRIED_EXIF_DATE_TAKEN;
+            }
+            if (item.isLatLongValid()) {
+                itemFlags |= FLAG_LOCATION;
+            }
+            if (item.mCaption != null && item.mCaption.length() != 0 && item.mCaption.equals(getTitle(names[i]))) {
+                itemFlags |= FLAG_CAPTION_FROM_NAME;
+            }
+            flags[i] = (byte) itemFlags;
+        }
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_SIZE + 48 * numItems);
+        final DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(numItems);
+        dos.writeLong(set.mMinTimestamp);
+        dos.writeLong(set.mMaxTimestamp);
+        dos.writeInt(numImages);
+        dos.writeInt(numVideos);
+        writeDictionary(dos, mimeTypes);
+        writeDictionary(dos, directories);
+        dos.write(flags);
+        long previous = 0;
+        for (int i = 0; i < numItems; ++i) {
+            final long id = orderedItems[i].mId;
+            writeSignedVarLong(dos, id - previous);
+            previous = id;
+        }
+        previous = 0;
+        for (int i = 0; i < numItems; ++i) {
+            final long dateTaken = orderedItems[i].mDateTakenInMs;
+            writeSignedVarLong(dos, dateTaken - previous);
+            previous = dateTaken;
+        }
+        previous = 0;
+        for (int i = 0; i < numItems; ++i) {
+            final long dateAdded = orderedItems[i].mDateAddedInSec;
+            writeSignedVarLong(dos, dateAdded - previous);
+            previous = dateAdded;
+        }
+        previous = 0;
+        for (int i = 0; i < numItems; ++i) {
+            final long dateModified = orderedItems[i].mDateModifiedInSec;
+            writeSignedVarLong(dos, dateModified - previous);
+            previous = dateModified;
+        }
+        for (int i = 0; i < numItems; ++i) {
+            writeVarLong(dos, mimeTypeIndices[i]);
+        }
+        for (int i = 0; i < numItems; ++i) {
+            writeVarLong(dos, directoryIndices[i]);
+        }
+        for (int i = 0; i < numItems; ++i) {
+            writeSignedVarLong(dos, orderedItems[i].mDurationInSec);
+        }
+        for (int i = 0; i < numItems; ++i) {
+            writeSignedVarLong(dos, (int) orderedItems[i].mRotation);
+        }
+        for (int i = 0; i < numItems; ++i) {
+            if ((flags[i] & FLAG_LOCATION) != 0) {
+                dos.writeDouble(orderedItems[i].mLatitude);
+                dos.writeDouble(orderedItems[i].mLongitude);
+            }
+        }
+        for (int i = 0; i < numItems; ++i) {
+            dos.writeUTF(names[i]);
+        }
+        for (int i = 0; i < numItems; ++i) {
+            if ((flags[i] & FLAG_CAPTION_FROM_NAME) == 0) {
+                Utils.writeUTF(dos, orderedItems[i].mCaption);
+            }
+        }
+        final int[] clusterBreaks = MediaClustering.computeBreaks(orderedItems, set.mMaxTimestamp - set.mMinTimestamp);
+        if (clusterBreaks == null) {
+            writeVarLong(dos, 0);
+        } else {
+            writeVarLong(dos, clusterBreaks.length);
+            int previousBreak = 0;
+            for (int i = 0; i < clusterBreaks.length; ++i) {
+                writeVarLong(dos, clusterBreaks[i] - previousBreak);
+                previousBreak = clusterBreaks[i];
+            }
+        }
+        dos.close();
+        return bos.toByteArray();
+    }
+
+    private static String getTitle(String name) {
+        return getTitle(name, 0);
+    }
+
+    private static String getTitle(String path, int nameStart) {
+        final int extensionIndex = path.lastIndexOf('.');
+        return path.substring(nameStart, (extensionIndex > nameStart) ? extensionIndex : path.length());
+    }
+
+    private static int getIndex(String value, HashMap<String, Integer> table, ArrayList<String> values) {
+        final Integer index = table.get(value);
+        if (index != null) {
+            return index.intValue();
+        }
+        final int newIndex = values.size();
+        table.put(value, newIndex);
+        values.add(value);
+        return newIndex;
+    }
+
+    private static void writeDictionary(DataOutputStream dos, ArrayList<String> values) throws IOException {
+        final int numValues = values.size();
+        writeVarLong(dos, numValues);
+        for (int i = 0; i < numValues; ++i) {
+            dos.writeUTF(values.get(i));
+        }
+    }
+
+    private static void writeSignedVarLong(DataOutputStream dos, long value) throws IOException {
+        writeVarLong(dos, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarLong(DataOutputStream dos, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            dos.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dos.writeByte((int) value);
+    }
+
+    private String[] readDictionary() throws IOException {
+        final int numValues = (int) readVarLong();
+        if (numValues < 0 || numValues > mData.length) {
+            throw new IOException("Bad dictionary size " + numValues);
+        }
+        final String[] values = new String[numValues];
+        for (int i = 0; i < numValues; ++i) {
+            values[i] = decodeUTF(skipUTF());
+        }
+        return values;
+    }
+
+    private long[] readDeltas(int count) throws IOException {
+        final long[] values = new long[count];
+        long value = 0;
+        for (int i = 0; i < count; ++i) {
+            value += readSignedVarLong();
+            values[i] = value;
+        }
+        return values;
+    }
+
+    private int[] readIndices(int count, int numValues) throws IOException {
+        final int[] values = new int[count];
+        for (int i = 0; i < count; ++i) {
+            final long index = readVarLong();
+            if (index < 0 || index >= numValues) {
+                throw new IOException("Bad dictionary index " + index);
+            }
+            values[i] = (int) index;
+        }
+        return values;
+    }
+
+    private int[] readInts(int count) throws IOException {
+        final int[] values = new int[count];
+        for (int i = 0; i < count; ++i) {
+            values[i] = (int) readSignedVarLong();
+        }
+        return values;
+    }
+
+    private long readSignedVarLong() throws IOException {
+        final long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() throws IOException {
+        final byte[] data = mData;
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPosition >= data.length) {
+                throw new IOException("Truncated album record");
+            }
+            final int b = data[mPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private int readInt() throws IOException {
+        final byte[] data = mData;
+        final int position = mPosition;
+        if (position + 4 > data.length) {
+            throw new IOException("Truncated album record");
+        }
+        mPosition = position + 4;
+        return ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16) | ((data[position + 2] & 0xFF) << 8)
+                | (data[position + 3] & 0xFF);
+    }
+
+    private long readLong() throws IOException {
+        final long high = readInt();
+        return (high << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    private void readBytes(byte[] bytes) throws IOException {
+        if (mPosition + bytes.length > mData.length) {
+            throw new IOException("Truncated album record");
+        }
+        System.arraycopy(mData, mPosition, bytes, 0, bytes.length);
+        mPosition += bytes.length;
+    }
+
+    /**
+     * Skips a string written by writeUTF and returns its offset.
+     */
+    private int skipUTF() throws IOException {
+        final byte[] data = mData;
+        final int offset = mPosition;
+        if (offset + 2 > data.length) {
+            throw new IOException("Truncated album record");
+        }
+        final int length = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        if (offset + 2 + length > data.length) {
+            throw new IOException("Truncated album record");
+        }
+        mPosition = offset + 2 + length;
+        return offset;
+    }
+
+    private String decodeUTF(int offset) throws IOException {
+        return openUTF(offset).readUTF();
+    }
+
+    private DataInputStream openUTF(int offset) {
+        return new DataInputStream(new ByteArrayInputStream(mData, offset, mData.length - offset));
+    }
+}
@@ -26,12 +26,19 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.IntentService;
@@ -45,7 +52,6 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.Process;
@@ -73,6 +79,9 @@ import com.cooliris.media.Utils;
 
 public final class CacheService extends IntentService {
     public static final String ACTION_CACHE = "com.cooliris.cache.action.CACHE";
+    // The album caches are not size bounded: a missing album record is not
+    // regenerated on demand, it makes the album appear empty until the next
+    // full recache.
     public static final DiskCache sAlbumCache = new DiskCache("local-album-cache");
     public static final DiskCache sMetaAlbumCache = new DiskCache("local-meta-cache");
     public static final DiskCache sSkipThumbnailIds = new DiskCache("local-skip-cache");
@@ -88,6 +97,14 @@ public final class CacheService extends IntentService {
     private static final int THUMBNAILER_WAIT_IN_MS = 500;
     private static final int DEFAULT_THUMBNAIL_WIDTH = 128;
     private static final int DEFAULT_THUMBNAIL_HEIGHT = 96;
+    // The media provider is asked to cancel a thumbnail request that did not
+    // complete within this time.
+    private static final int THUMBNAIL_REQUEST_TIMEOUT_MS = 5000;
+    private static final int NUM_THUMBNAIL_WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // Thumbnails built in the background are written to the DiskCache in
+    // batches of this many records.
+    private static final int THUMBNAIL_BATCH_SIZE = 16;
+    private static final int NUM_ALBUM_COVERS = 8;
 
     public static final String DEFAULT_IMAGE_SORT_ORDER = Images.ImageColumns.DATE_TAKEN + " ASC";
     public static final String DEFAULT_VIDEO_SORT_ORDER = Video.VideoColumns.DATE_TAKEN + " ASC";
@@ -145,17 +162,48 @@ public final class CacheService extends IntentService {
     public static final String BASE_CONTENT_STRING_IMAGES = (Images.Media.EXTERNAL_CONTENT_URI).toString() + "/";
     public static final String BASE_CONTENT_STRING_VIDEOS = (Video.Media.EXTERNAL_CONTENT_URI).toString() + "/";
     private static final AtomicReference<Thread> THUMBNAIL_THREAD = new AtomicReference<Thread>();
+    private static final ExecutorService sThumbnailExecutor = Executors.newFixedThreadPool(NUM_THUMBNAIL_WORKERS,
+            new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Thumbnailer") {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            super.run();
+                        }
+                    };
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private static final ScheduledExecutorService sThumbnailWatchdog = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ThumbnailWatchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     // Special indices in the Albumcache.
     private static final int ALBUM_CACHE_METADATA_INDEX = -1;
     private static final int ALBUM_CACHE_DIRTY_INDEX = -2;
     private static final int ALBUM_CACHE_DIRTY_BUCKET_INDEX = -4;
     private static final int ALBUM_CACHE_LOCALE_INDEX = -5;
+    private static final int ALBUM_CACHE_VERSION_INDEX = -6;
+
+    // Version of the album items record. An album cache written with a
+    // different version is discarded and rebuilt.
+    // Version 1: numItems, min and max timestamps, number of images and
+    // videos, a table with the offset of each item followed by the items.
+    // Version 2: columnar, see AlbumRecord.
+    // Version 3: adds the cluster breaks.
+    private static final int ALBUM_CACHE_VERSION = 3;
 
-    private static final DateFormat mDateFormat = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
-    private static final DateFormat mAltDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
     private static final byte[] sDummyData = new byte[] { 1 };
     private static final Object sCacheLock = new Object();
+    private static final Object sAlbumRecordLock = new Object();
+    private static long sAlbumRecordId = Shared.INVALID;
+    private static AlbumRecord sAlbumRecord = null;
 
     public static final String getCachePath(final String subFolderName) {
         return Environment.getExternalStorageDirectory() + "/Android/data/com.cooliris.media/cache/" + subFolderName;
@@ -164,9 +212,8 @@ public final class CacheService extends IntentService {
     public static final void startCache(final Context context, final boolean checkthumbnails) {
         final Locale locale = getLocaleForAlbumCache();
         final Locale defaultLocale = Locale.getDefault();
-        if (locale == null || !locale.equals(defaultLocale)) {
-            sAlbumCache.deleteAll();
-            putLocaleForAlbumCache(defaultLocale);
+        if (locale == null || !locale.equals(defaultLocale) || getAlbumCacheVersion() != ALBUM_CACHE_VERSION) {
+            resetAlbumCache();
         }
         final Intent intent = new Intent(ACTION_CACHE, null, context, CacheService.class);
         intent.putExtra("checkthumbnails", checkthumbnails);
@@ -274,8 +321,7 @@ public final class CacheService extends IntentService {
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error loading albums.");
-                sAlbumCache.deleteAll();
-                putLocaleForAlbumCache(Locale.getDefault());
+                resetAlbumCache();
             }
         } else {
             if (DEBUG)
@@ -310,8 +356,7 @@ public final class CacheService extends IntentService {
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error finding album " + bucketId);
-                sAlbumCache.deleteAll();
-                putLocaleForAlbumCache(Locale.getDefault());
+                resetAlbumCache();
             }
         } else {
             if (DEBUG)
@@ -322,31 +367,33 @@ public final class CacheService extends IntentService {
     public static final void loadMediaItemsIntoMediaFeed(final Context context, final MediaFeed feed, final MediaSet set,
             final int rangeStart, final int rangeEnd, final boolean includeImages, final boolean includeVideos) {
         syncCache(context);
-        byte[] albumData = sAlbumCache.get(set.mId, 0);
-        if (albumData != null && set.mNumItemsLoaded < set.getNumExpectedItems()) {
-            final DataInputStream dis = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(albumData), 256));
+        AlbumRecord record = null;
+        try {
+            record = getAlbumRecord(set.mId);
+        } catch (IOException e) {
+            Log.e(TAG, "Error decoding items for album " + set.mName);
+            resetAlbumCache();
+        }
+        if (record != null && set.mNumItemsLoaded < set.getNumExpectedItems()) {
             try {
-                final int numItems = dis.readInt();
-                set.setNumExpectedItems(numItems);
-                set.mMinTimestamp = dis.readLong();
-                set.mMaxTimestamp = dis.readLong();
+                final int numItems = record.numItems;
+                set.setNumExpectedItems((includeImages ? record.numImages : 0) + (includeVideos ? record.numVideos : 0));
+                set.mMinTimestamp = record.minTimestamp;
+                set.mMaxTimestamp = record.maxTimestamp;
+
+                // Only the items of the requested window are materialized,
+                // starting at the first record that was not read by a previous
+                // call.
+                int position = set.mNumCacheRecordsRead;
+                if (position == 0 && includeImages && includeVideos) {
+                    // The clusters were computed for all the items.
+                    feed.setClusterBreaks(set, record.clusterBreaks);
+                }
                 MediaItem reuseItem = null;
-                for (int i = 0; i < numItems; ++i) {
+                while (position < numItems && set.mNumItemsLoaded < rangeEnd) {
                     MediaItem item = (reuseItem == null) ? new MediaItem() : reuseItem;
-                    // Must preserve order with method that writes to cache.
-                    item.mId = dis.readLong();
-                    item.mCaption = Utils.readUTF(dis);
-                    item.mMimeType = Utils.readUTF(dis);
-                    item.setMediaType(dis.readInt());
-                    item.mLatitude = dis.readDouble();
-                    item.mLongitude = dis.readDouble();
-                    item.mDateTakenInMs = dis.readLong();
-                    item.mTriedRetrievingExifDateTaken = dis.readBoolean();
-                    item.mDateAddedInSec = dis.readLong();
-                    item.mDateModifiedInSec = dis.readLong();
-                    item.mDurationInSec = dis.readInt();
-                    item.mRotation = (float) dis.readInt();
-                    item.mFilePath = Utils.readUTF(dis);
+                    record.getItem(position, item);
+                    ++position;
 
                     // We are done reading. Now lets check to see if this item
                     // is already present in the set.
@@ -361,16 +408,21 @@ public final class CacheService extends IntentService {
                             || (itemMediaType == MediaItem.MEDIA_TYPE_VIDEO && includeVideos)) {
                         String baseUri = (itemMediaType == MediaItem.MEDIA_TYPE_IMAGE) ? BASE_CONTENT_STRING_IMAGES
                                 : BASE_CONTENT_STRING_VIDEOS;
-                        item.mContentUri = baseUri + item.mId;
+                        item.setContentUriBase(baseUri);
                         feed.addItemToMediaSet(item, set);
                     }
                 }
+                set.mNumCacheRecordsRead = position;
+                if (position < numItems) {
+                    // More windows to come.
+                    set.generateTitle(true);
+                    return;
+                }
+                set.updateNumExpectedItems();
                 set.checkForDeletedItems();
-                dis.close();
             } catch (IOException e) {
                 Log.e(TAG, "Error loading items for album " + set.mName);
-                sAlbumCache.deleteAll();
-                putLocaleForAlbumCache(Locale.getDefault());
+                resetAlbumCache();
             }
         } else {
             if (DEBUG)
@@ -380,6 +432,54 @@ public final class CacheService extends IntentService {
         set.generateTitle(true);
     }
 
+    /**
+     * Returns the decoded items record of an album. The last record decoded
+     * is kept in memory since an expanded album is loaded one window at a
+     * time.
+     */
+    private static final AlbumRecord getAlbumRecord(final long setId) throws IOException {
+        synchronized (sAlbumRecordLock) {
+            if (sAlbumRecord != null && sAlbumRecordId == setId) {
+                return sAlbumRecord;
+            }
+        }
+        final byte[] albumData = sAlbumCache.get(setId, 0);
+        if (albumData == null) {
+            return null;
+        }
+        final AlbumRecord record = new AlbumRecord(albumData);
+        synchronized (sAlbumRecordLock) {
+            sAlbumRecordId = setId;
+            sAlbumRecord = record;
+        }
+        return record;
+    }
+
+    private static final void invalidateAlbumRecord(final long setId) {
+        synchronized (sAlbumRecordLock) {
+            if (sAlbumRecordId == setId) {
+                sAlbumRecord = null;
+            }
+        }
+    }
+
+    private static final void resetAlbumCache() {
+        sAlbumCache.deleteAll();
+        synchronized (sAlbumRecordLock) {
+            sAlbumRecord = null;
+        }
+        sAlbumCache.put(ALBUM_CACHE_VERSION_INDEX, intToByteArray(ALBUM_CACHE_VERSION), 0);
+        putLocaleForAlbumCache(Locale.getDefault());
+    }
+
+    private static final int getAlbumCacheVersion() {
+        final byte[] data = sAlbumCache.get(ALBUM_CACHE_VERSION_INDEX, 0);
+        if (data == null || data.length != 4) {
+            return 0;
+        }
+        return ByteBuffer.wrap(data).getInt();
+    }
+
     private static void syncCache(Context context) {
         if (!isCacheReady(true)) {
             // In this case, we should try to show a toast
@@ -421,7 +521,7 @@ public final class CacheService extends IntentService {
         }
         item.mFilePath = cursor.getString(CacheService.MEDIA_DATA_INDEX);
         if (baseUri != null)
-            item.mContentUri = baseUri + item.mId;
+            item.setContentUriBase(baseUri);
         final int itemMediaType = item.getMediaType();
         final int orientationDurationValue = cursor.getInt(CacheService.MEDIA_ORIENTATION_OR_DURATION_INDEX);
         if (itemMediaType == MediaItem.MEDIA_TYPE_IMAGE) {
@@ -434,30 +534,10 @@ public final class CacheService extends IntentService {
     // Returns -1 if we failed to examine EXIF information or EXIF parsing
     // failed.
     public static final long fetchDateTaken(final MediaItem item) {
-        if (!item.isDateTakenValid() && !item.mTriedRetrievingExifDateTaken
-                && (item.mFilePath.endsWith(".jpg") || item.mFilePath.endsWith(".jpeg"))) {
-            try {
-                if (DEBUG)
-                    Log.i(TAG, "Parsing date taken from exif");
-                final ExifInterface exif = new ExifInterface(item.mFilePath);
-                final String dateTakenStr = exif.getAttribute(ExifInterface.TAG_DATETIME);
-                if (dateTakenStr != null) {
-                    try {
-                        final Date dateTaken = mDateFormat.parse(dateTakenStr);
-                        return dateTaken.getTime();
-                    } catch (ParseException pe) {
-                        try {
-                            final Date dateTaken = mAltDateFormat.parse(dateTakenStr);
-                            return dateTaken.getTime();
-                        } catch (ParseException pe2) {
-                            if (DEBUG)
-                                Log.i(TAG, "Unable to parse date out of string - " + dateTakenStr);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                if (DEBUG)
-                    Log.i(TAG, "Error reading Exif information, probably not a jpeg.");
+        if (!item.isDateTakenValid() && !item.mTriedRetrievingExifDateTaken) {
+            final ExifIndex.Entry exif = ExifIndex.get(item.mFilePath);
+            if (exif != null && exif.dateTakenInMs != -1L) {
+                return exif.dateTakenInMs;
             }
 
             // Ensures that we only try retrieving EXIF date taken once.
@@ -469,7 +549,34 @@ public final class CacheService extends IntentService {
     public static final byte[] queryThumbnail(final Context context, final long thumbId, final long origId, final boolean isVideo,
             final long timestamp) {
         final DiskCache thumbnailCache = (isVideo) ? LocalDataSource.sThumbnailCacheVideo : LocalDataSource.sThumbnailCache;
-        return queryThumbnail(context, thumbId, origId, isVideo, thumbnailCache, timestamp);
+        return queryThumbnail(context, thumbId, origId, null, isVideo, thumbnailCache, timestamp);
+    }
+
+    public static final ByteBuffer queryThumbnail(final Context context, final long thumbId, final long origId,
+            final boolean isVideo, final long timestamp, final ByteBuffer buffer) {
+        return queryThumbnail(context, thumbId, origId, null, isVideo, timestamp, buffer);
+    }
+
+    /**
+     * Returns the cache record of the thumbnail, building it if needed. The
+     * file path of an image lets the thumbnail be built from its EXIF
+     * thumbnail, it may be null.
+     */
+    public static final ByteBuffer queryThumbnail(final Context context, final long thumbId, final long origId,
+            final String filePath, final boolean isVideo, final long timestamp, final ByteBuffer buffer) {
+        final DiskCache thumbnailCache = (isVideo) ? LocalDataSource.sThumbnailCacheVideo : LocalDataSource.sThumbnailCache;
+        if (!App.get(context).isPaused()) {
+            final Thread thumbnailThread = THUMBNAIL_THREAD.getAndSet(null);
+            if (thumbnailThread != null) {
+                thumbnailThread.interrupt();
+            }
+        }
+        final ByteBuffer cached = thumbnailCache.get(thumbId, timestamp, buffer);
+        if (cached != null) {
+            return cached;
+        }
+        final byte[] bitmap = queryThumbnail(context, thumbId, origId, filePath, isVideo, thumbnailCache, timestamp);
+        return (bitmap != null) ? ByteBuffer.wrap(bitmap) : null;
     }
 
     public static final ImageList getImageList(final Context context) {
@@ -486,6 +593,7 @@ public final class CacheService extends IntentService {
                 final long[] thumbnailIds = new long[size];
                 final long[] timestamp = new long[size];
                 final int[] orientation = new int[size];
+                final String[] paths = new String[size];
                 int ctr = 0;
                 do {
                     if (Thread.interrupted()) {
@@ -494,7 +602,8 @@ public final class CacheService extends IntentService {
                     }
                     ids[ctr] = cursorImages.getLong(THUMBNAIL_ID_INDEX);
                     timestamp[ctr] = cursorImages.getLong(THUMBNAIL_DATE_MODIFIED_INDEX);
-                    thumbnailIds[ctr] = Utils.Crc64Long(cursorImages.getString(THUMBNAIL_DATA_INDEX));
+                    paths[ctr] = cursorImages.getString(THUMBNAIL_DATA_INDEX);
+                    thumbnailIds[ctr] = Utils.Crc64Long(paths[ctr]);
                     orientation[ctr] = cursorImages.getInt(THUMBNAIL_ORIENTATION_INDEX);
                     ++ctr;
                 } while (cursorImages.moveToNext());
@@ -503,6 +612,7 @@ public final class CacheService extends IntentService {
                 list.thumbids = thumbnailIds;
                 list.timestamp = timestamp;
                 list.orientation = orientation;
+                list.paths = paths;
             }
         } catch (Exception e) {
             // If the database operation failed for any reason
@@ -553,8 +663,8 @@ public final class CacheService extends IntentService {
         return list;
     }
 
-    private static final byte[] queryThumbnail(final Context context, final long thumbId, final long origId, final boolean isVideo,
-            final DiskCache thumbnailCache, final long timestamp) {
+    private static final byte[] queryThumbnail(final Context context, final long thumbId, final long origId,
+            final String filePath, final boolean isVideo, final DiskCache thumbnailCache, final long timestamp) {
         if (!App.get(context).isPaused()) {
             final Thread thumbnailThread = THUMBNAIL_THREAD.getAndSet(null);
             if (thumbnailThread != null) {
@@ -564,7 +674,7 @@ public final class CacheService extends IntentService {
         byte[] bitmap = thumbnailCache.get(thumbId, timestamp);
         if (bitmap == null) {
             final long time = SystemClock.uptimeMillis();
-            bitmap = buildThumbnailForId(context, thumbnailCache, thumbId, origId, isVideo, DEFAULT_THUMBNAIL_WIDTH,
+            bitmap = buildThumbnailForId(context, thumbnailCache, thumbId, origId, filePath, isVideo, DEFAULT_THUMBNAIL_WIDTH,
                     DEFAULT_THUMBNAIL_HEIGHT, timestamp);
             if (DEBUG)
                 Log.i(TAG, "Built thumbnail and screennail for " + origId + " in " + (SystemClock.uptimeMillis() - time));
@@ -575,6 +685,13 @@ public final class CacheService extends IntentService {
     private static final void buildThumbnails(final Context context) {
         if (DEBUG)
             Log.i(TAG, "Preparing DiskCache for all thumbnails.");
+        final long time = SystemClock.uptimeMillis();
+
+        // The first items of every album are the ones shown on the album
+        // stacks, they are built before the others.
+        final LongSparseArray<Boolean> imagePriorityIds = new LongSparseArray<Boolean>();
+        final LongSparseArray<Boolean> videoPriorityIds = new LongSparseArray<Boolean>();
+        getAlbumCoverIds(imagePriorityIds, videoPriorityIds);
 
         /* Build thumbnails for images */
         ImageList list = getImageList(context);
@@ -586,33 +703,17 @@ public final class CacheService extends IntentService {
         if (list == null) {
             return;
         }
-
-        final int size = (list.ids == null) ? 0 : list.ids.length;
-        final long[] ids = list.ids;
-        final long[] timestamp = list.timestamp;
-        final long[] thumbnailIds = list.thumbids;
         final DiskCache thumbnailCache = LocalDataSource.sThumbnailCache;
-        for (int i = 0; i < size; ++i) {
-            if (Thread.interrupted()) {
-                return;
-            }
-            final long id = ids[i];
-            final long timeModifiedInSec = timestamp[i];
-            final long thumbnailId = thumbnailIds[i];
-            if (!isInThumbnailerSkipList(thumbnailId)) {
-                if (!thumbnailCache.isDataAvailable(thumbnailId, timeModifiedInSec * 1000)) {
-                    byte[] retVal = buildThumbnailForId(context, thumbnailCache, thumbnailId, id, false, DEFAULT_THUMBNAIL_WIDTH,
-                            DEFAULT_THUMBNAIL_HEIGHT, timeModifiedInSec * 1000);
-                    if (retVal == null || retVal.length == 0) {
-                        // There was an error in building the thumbnail.
-                        // We record this thumbnail id
-                        addToThumbnailerSkipList(thumbnailId);
-                    }
-                }
-            }
+        if (!buildThumbnails(context, list, false, thumbnailCache, imagePriorityIds)) {
+            return;
         }
         thumbnailCache.flush();
 
+        /* Index the EXIF data of images */
+        if (!ExifIndex.index(list)) {
+            return;
+        }
+
         /* Build thumbnails for videos */
         list = getVideoList(context);
 
@@ -623,34 +724,138 @@ public final class CacheService extends IntentService {
         if (list == null) {
             return;
         }
-
-        final int videoListSize = (list.ids == null) ? 0 : list.ids.length;
-        final long[] videoIds = list.ids;
-        final long[] videoTimestamp = list.timestamp;
-        final long[] videoThumbnailIds = list.thumbids;
         final DiskCache videoThumbnailCache = LocalDataSource.sThumbnailCacheVideo;
-        for (int i = 0; i < videoListSize; ++i) {
+        if (!buildThumbnails(context, list, true, videoThumbnailCache, videoPriorityIds)) {
+            return;
+        }
+        videoThumbnailCache.flush();
+        if (DEBUG)
+            Log.i(TAG, "DiskCache ready for all thumbnails in " + (SystemClock.uptimeMillis() - time) + "ms.");
+    }
+
+    /**
+     * Builds the missing thumbnails of the list on the thumbnail workers,
+     * album covers first and then the most recent items first. Returns false
+     * if the calling thread was interrupted.
+     */
+    private static final boolean buildThumbnails(final Context context, final ImageList list, final boolean isVideo,
+            final DiskCache thumbnailCache, final LongSparseArray<Boolean> priorityIds) {
+        final int size = (list.ids == null) ? 0 : list.ids.length;
+        final long[] ids = list.ids;
+        final long[] timestamp = list.timestamp;
+        final long[] thumbnailIds = list.thumbids;
+
+        // Sort keys are (priority, time modified, index) packed in a long,
+        // the time is in seconds and fits in 31 bits.
+        final long[] sortKeys = new long[size];
+        int numJobs = 0;
+        for (int i = 0; i < size; ++i) {
             if (Thread.interrupted()) {
-                return;
+                return false;
             }
-            final long id = videoIds[i];
-            final long timeModifiedInSec = videoTimestamp[i];
-            final long thumbnailId = videoThumbnailIds[i];
-            if (!isInVideoThumbnailerSkipList(thumbnailId)) {
-                if (!videoThumbnailCache.isDataAvailable(thumbnailId, timeModifiedInSec * 1000)) {
-                    byte[] retVal = buildThumbnailForId(context, videoThumbnailCache, thumbnailId, id, true, DEFAULT_THUMBNAIL_WIDTH,
-                            DEFAULT_THUMBNAIL_HEIGHT, timeModifiedInSec * 1000);
-                    if (retVal == null || retVal.length == 0) {
+            final long thumbnailId = thumbnailIds[i];
+            final boolean skip = (isVideo) ? isInVideoThumbnailerSkipList(thumbnailId) : isInThumbnailerSkipList(thumbnailId);
+            if (skip || thumbnailCache.isDataAvailable(thumbnailId, timestamp[i] * 1000)) {
+                continue;
+            }
+            final long priority = (priorityIds.get(ids[i]) != null) ? 1L : 0L;
+            final long timeModifiedInSec = Math.max(0, Math.min(timestamp[i], Integer.MAX_VALUE));
+            sortKeys[numJobs++] = (priority << 62) | (timeModifiedInSec << 31) | i;
+        }
+        if (numJobs == 0) {
+            return true;
+        }
+        Arrays.sort(sortKeys, 0, numJobs);
+        final int[] jobs = new int[numJobs];
+        for (int i = 0; i < numJobs; ++i) {
+            jobs[i] = (int) (sortKeys[numJobs - i - 1] & Integer.MAX_VALUE);
+        }
+
+        final AtomicInteger nextJob = new AtomicInteger(0);
+        // The workers are stopped between thumbnails rather than interrupted,
+        // so that an interrupt never lands in the middle of a cache write.
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final ThumbnailBatch batch = new ThumbnailBatch(thumbnailCache);
+        final Runnable worker = new Runnable() {
+            public void run() {
+                while (!stopped.get()) {
+                    final int job = nextJob.getAndIncrement();
+                    if (job >= jobs.length) {
+                        return;
+                    }
+                    final int i = jobs[job];
+                    final long thumbnailId = thumbnailIds[i];
+                    final String filePath = (list.paths == null) ? null : list.paths[i];
+                    final Bitmap bitmap = getThumbnailBitmap(context, ids[i], filePath, isVideo);
+                    final byte[] data = (bitmap == null) ? null : encodeThumbnail(ids[i], bitmap, DEFAULT_THUMBNAIL_WIDTH,
+                            DEFAULT_THUMBNAIL_HEIGHT);
+                    if (data == null || data.length == 0) {
                         // There was an error in building the thumbnail.
                         // We record this thumbnail id
-                        addToVideoThumbnailerSkipList(thumbnailId);
+                        if (isVideo) {
+                            addToVideoThumbnailerSkipList(thumbnailId);
+                        } else {
+                            addToThumbnailerSkipList(thumbnailId);
+                        }
+                    } else {
+                        batch.add(thumbnailId, data, timestamp[i] * 1000);
                     }
                 }
             }
+        };
+        final int numWorkers = Math.min(NUM_THUMBNAIL_WORKERS, numJobs);
+        final Future<?>[] futures = new Future<?>[numWorkers];
+        for (int i = 0; i < numWorkers; ++i) {
+            futures[i] = sThumbnailExecutor.submit(worker);
+        }
+        try {
+            for (int i = 0; i < numWorkers; ++i) {
+                try {
+                    futures[i].get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Error building thumbnails", e.getCause());
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            stopped.set(true);
+            for (int i = 0; i < numWorkers; ++i) {
+                futures[i].cancel(false);
+            }
+            return false;
+        } finally {
+            batch.close();
+        }
+    }
+
+    private static final void getAlbumCoverIds(final LongSparseArray<Boolean> imageIds, final LongSparseArray<Boolean> videoIds) {
+        final byte[] albumData = sAlbumCache.get(ALBUM_CACHE_METADATA_INDEX, 0);
+        if (albumData == null || albumData.length == 0) {
+            return;
+        }
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(albumData));
+        try {
+            final int numAlbums = dis.readInt();
+            for (int i = 0; i < numAlbums; ++i) {
+                final long setId = dis.readLong();
+                Utils.readUTF(dis);
+                dis.readBoolean();
+                dis.readBoolean();
+                final byte[] data = sAlbumCache.get(setId, 0);
+                if (data == null) {
+                    continue;
+                }
+                final AlbumRecord record = new AlbumRecord(data);
+                final int numCovers = Math.min(record.numItems, NUM_ALBUM_COVERS);
+                for (int j = 0; j < numCovers; ++j) {
+                    final LongSparseArray<Boolean> ids = (record.isVideo(j)) ? videoIds : imageIds;
+                    ids.put(record.getId(j), Boolean.TRUE);
+                }
+            }
+        } catch (IOException e) {
+            // The thumbnails are still built, just not in the display order.
+            Log.e(TAG, "Error reading album covers.");
         }
-        videoThumbnailCache.flush();
-        if (DEBUG)
-            Log.i(TAG, "DiskCache ready for all thumbnails.");
     }
 
     private static void addToThumbnailerSkipList(long thumbnailId) {
@@ -684,51 +889,83 @@ public final class CacheService extends IntentService {
     }
 
     private static final byte[] buildThumbnailForId(final Context context, final DiskCache thumbnailCache, final long thumbId,
-            final long origId, final boolean isVideo, final int thumbnailWidth, final int thumbnailHeight, final long timestamp) {
+            final long origId, final String filePath, final boolean isVideo, final int thumbnailWidth, final int thumbnailHeight,
+            final long timestamp) {
+        if (origId == Shared.INVALID || Thread.interrupted()) {
+            return null;
+        }
+        final Bitmap bitmap = getThumbnailBitmap(context, origId, filePath, isVideo);
+        if (bitmap == null) {
+            return null;
+        }
+        return writeBitmapToCache(thumbnailCache, thumbId, origId, bitmap, thumbnailWidth, thumbnailHeight, timestamp);
+    }
+
+    /**
+     * Returns the bitmap to build the thumbnail from. Images use the thumbnail
+     * embedded in their EXIF data when it is large enough, which avoids
+     * decoding the full image, the others the mini thumbnail of the media
+     * provider.
+     */
+    private static final Bitmap getThumbnailBitmap(final Context context, final long origId, final String filePath,
+            final boolean isVideo) {
+        if (!isVideo) {
+            final Bitmap bitmap = ExifThumbnail.decode(filePath, DEFAULT_THUMBNAIL_WIDTH, DEFAULT_THUMBNAIL_HEIGHT);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return getMiniThumbnail(context, origId, isVideo);
+    }
+
+    /**
+     * Asks the media provider for the mini thumbnail of an image or video.
+     * The request is cancelled by the watchdog if it takes too long.
+     */
+    private static final Bitmap getMiniThumbnail(final Context context, final long origId, final boolean isVideo) {
         if (origId == Shared.INVALID) {
             return null;
         }
-        try {
-            Bitmap bitmap = null;
-            Thread.sleep(1);
-            new Thread() {
-                public void run() {
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        ;
-                    }
-                    try {
-                        if (isVideo) {
-                            MediaStore.Video.Thumbnails.cancelThumbnailRequest(context.getContentResolver(), origId);
-                        } else {
-                            MediaStore.Images.Thumbnails.cancelThumbnailRequest(context.getContentResolver(), origId);
-                        }
-                    } catch (Exception e) {
-                        ;
+        final ContentResolver cr = context.getContentResolver();
+        final ScheduledFuture<?> watchdog = sThumbnailWatchdog.schedule(new Runnable() {
+            public void run() {
+                try {
+                    if (isVideo) {
+                        MediaStore.Video.Thumbnails.cancelThumbnailRequest(cr, origId);
+                    } else {
+                        MediaStore.Images.Thumbnails.cancelThumbnailRequest(cr, origId);
                     }
+                } catch (Exception e) {
+                    ;
                 }
-            }.start();
+            }
+        }, THUMBNAIL_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        try {
             if (isVideo) {
-                bitmap = MediaStore.Video.Thumbnails.getThumbnail(context.getContentResolver(), origId,
-                        MediaStore.Video.Thumbnails.MINI_KIND, null);
+                return MediaStore.Video.Thumbnails.getThumbnail(cr, origId, MediaStore.Video.Thumbnails.MINI_KIND, null);
             } else {
-                bitmap = MediaStore.Images.Thumbnails.getThumbnail(context.getContentResolver(), origId,
-                        MediaStore.Images.Thumbnails.MINI_KIND, null);
-            }
-            if (bitmap == null) {
-                return null;
+                return MediaStore.Images.Thumbnails.getThumbnail(cr, origId, MediaStore.Images.Thumbnails.MINI_KIND, null);
             }
-            final byte[] retVal = writeBitmapToCache(thumbnailCache, thumbId, origId, bitmap, thumbnailWidth, thumbnailHeight,
-                    timestamp);
-            return retVal;
-        } catch (InterruptedException e) {
-            return null;
+        } finally {
+            watchdog.cancel(false);
         }
     }
 
     public static final byte[] writeBitmapToCache(final DiskCache thumbnailCache, final long thumbId, final long origId,
             final Bitmap bitmap, final int thumbnailWidth, final int thumbnailHeight, final long timestamp) {
+        final byte[] retVal = encodeThumbnail(origId, bitmap, thumbnailWidth, thumbnailHeight);
+        if (retVal != null) {
+            thumbnailCache.put(thumbId, retVal, timestamp);
+        }
+        return retVal;
+    }
+
+    /**
+     * Crops and scales the bitmap to the thumbnail size and returns the cache
+     * record for it. The bitmap is recycled.
+     */
+    private static final byte[] encodeThumbnail(final long origId, final Bitmap bitmap, final int thumbnailWidth,
+            final int thumbnailHeight) {
         final int width = bitmap.getWidth();
         final int height = bitmap.getHeight();
         // Detect faces to find the focal point, otherwise fall back to the
@@ -794,9 +1031,6 @@ public final class CacheService extends IntentService {
             dataOutput.flush();
             finalBitmap.compress(Bitmap.CompressFormat.JPEG, 80, cacheOutput);
             retVal = cacheOutput.toByteArray();
-            synchronized (thumbnailCache) {
-                thumbnailCache.put(thumbId, retVal, timestamp);
-            }
             cacheOutput.close();
             finalBitmap.recycle();
         } catch (Exception e) {
@@ -814,8 +1048,7 @@ public final class CacheService extends IntentService {
         if (DEBUG)
             Log.i(TAG, "Starting CacheService");
         if (Environment.getExternalStorageState() == Environment.MEDIA_BAD_REMOVAL) {
-            sAlbumCache.deleteAll();
-            putLocaleForAlbumCache(Locale.getDefault());
+            resetAlbumCache();
         }
         Locale locale = getLocaleForAlbumCache();
         if (locale != null && locale.equals(Locale.getDefault())) {
@@ -940,6 +1173,12 @@ public final class CacheService extends IntentService {
         return retVal;
     }
 
+    private static final byte[] intToByteArray(final int i) {
+        final byte[] bArray = new byte[4];
+        ByteBuffer.wrap(bArray).putInt(0, i);
+        return bArray;
+    }
+
     private static final byte[] longToByteArray(final long l) {
         final byte[] bArray = new byte[8];
         final ByteBuffer bBuffer = ByteBuffer.wrap(bArray);
@@ -965,8 +1204,7 @@ public final class CacheService extends IntentService {
         if (DEBUG)
             Log.i(TAG, "Refreshing cache.");
         synchronized (sCacheLock) {
-            sAlbumCache.deleteAll();
-            putLocaleForAlbumCache(Locale.getDefault());
+            resetAlbumCache();
 
             final ArrayList<MediaSet> sets = new ArrayList<MediaSet>();
             LongSparseArray<MediaSet> acceleratedSets = new LongSparseArray<MediaSet>();
@@ -1276,14 +1514,12 @@ public final class CacheService extends IntentService {
             sAlbumCache.put(ALBUM_CACHE_METADATA_INDEX, bos.toByteArray(), 0);
             dos.close();
             if (numSets == 0) {
-                sAlbumCache.deleteAll();
-                putLocaleForAlbumCache(Locale.getDefault());
+                resetAlbumCache();
             }
             sAlbumCache.flush();
         } catch (IOException e) {
             Log.e(TAG, "Error writing albums to diskcache.");
-            sAlbumCache.deleteAll();
-            putLocaleForAlbumCache(Locale.getDefault());
+            resetAlbumCache();
         }
     }
 
@@ -1299,42 +1535,15 @@ public final class CacheService extends IntentService {
     }
 
     private static final void writeItemsForASet(final MediaSet set) {
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bos, 256));
         try {
-            final ArrayList<MediaItem> items = set.getItems();
-            final int numItems = items.size();
-            dos.writeInt(numItems);
-            dos.writeLong(set.mMinTimestamp);
-            dos.writeLong(set.mMaxTimestamp);
-            for (int i = 0; i < numItems; ++i) {
-                MediaItem item = items.get(i);
-                if (set.mId == LocalDataSource.CAMERA_BUCKET_ID || set.mId == LocalDataSource.DOWNLOAD_BUCKET_ID) {
-                    // Reverse the display order for the camera bucket - want
-                    // the latest first.
-                    item = items.get(numItems - i - 1);
-                }
-                dos.writeLong(item.mId);
-                Utils.writeUTF(dos, item.mCaption);
-                Utils.writeUTF(dos, item.mMimeType);
-                dos.writeInt(item.getMediaType());
-                dos.writeDouble(item.mLatitude);
-                dos.writeDouble(item.mLongitude);
-                dos.writeLong(item.mDateTakenInMs);
-                dos.writeBoolean(item.mTriedRetrievingExifDateTaken);
-                dos.writeLong(item.mDateAddedInSec);
-                dos.writeLong(item.mDateModifiedInSec);
-                dos.writeInt(item.mDurationInSec);
-                dos.writeInt((int) item.mRotation);
-                Utils.writeUTF(dos, item.mFilePath);
-            }
-            dos.flush();
-            sAlbumCache.put(set.mId, bos.toByteArray(), 0);
-            dos.close();
+            // Reverse the display order for the camera bucket - want the
+            // latest first.
+            final boolean reverseOrder = (set.mId == LocalDataSource.CAMERA_BUCKET_ID || set.mId == LocalDataSource.DOWNLOAD_BUCKET_ID);
+            sAlbumCache.put(set.mId, AlbumRecord.write(set, reverseOrder), 0);
+            invalidateAlbumRecord(set.mId);
         } catch (Exception e) {
             Log.e(TAG, "Error writing to diskcache for set " + set.mName);
-            sAlbumCache.deleteAll();
-            putLocaleForAlbumCache(Locale.getDefault());
+            resetAlbumCache();
         }
     }
 
@@ -1343,4 +1552,48 @@ public final class CacheService extends IntentService {
         // id.
         return acceleratedTable.get(id);
     }
+
+    /**
+     * Collects the thumbnails built by the workers and writes them to the
+     * DiskCache a batch at a time. Thumbnails added after close() are written
+     * directly.
+     */
+    private static final class ThumbnailBatch {
+        private final DiskCache mCache;
+        private final long[] mKeys = new long[THUMBNAIL_BATCH_SIZE];
+        private final byte[][] mData = new byte[THUMBNAIL_BATCH_SIZE][];
+        private final long[] mTimestamps = new long[THUMBNAIL_BATCH_SIZE];
+        private int mCount = 0;
+        private boolean mClosed = false;
+
+        public ThumbnailBatch(DiskCache cache) {
+            mCache = cache;
+        }
+
+        public synchronized void add(long key, byte[] data, long timestamp) {
+            if (mClosed) {
+                mCache.put(key, data, timestamp);
+                return;
+            }
+            mKeys[mCount] = key;
+            mData[mCount] = data;
+            mTimestamps[mCount] = timestamp;
+            if (++mCount == THUMBNAIL_BATCH_SIZE) {
+                write();
+            }
+        }
+
+        public synchronized void close() {
+            write();
+            mClosed = true;
+        }
+
+        private void write() {
+            mCache.putAll(mKeys, mData, mTimestamps, mCount);
+            for (int i = 0; i < mCount; ++i) {
+                mData[i] = null;
+            }
+            mCount = 0;
+        }
+    }
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import android.util.Log;
+
+import com.cooliris.media.DiskCache;
+import com.cooliris.media.Utils;
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.imaging.jpeg.JpegSegmentReader;
+import com.drew.lang.Rational;
+import com.drew.metadata.Directory;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifDirectory;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.exif.GpsDirectory;
+
+/**
+ * A persistent index of the EXIF metadata the gallery shows, so that the EXIF
+ * data of a file is only parsed once. Entries are keyed by the CRC64 of the
+ * file path and are valid as long as the file is not modified. The index is
+ * filled in the background by the thumbnail thread, files that are not
+ * indexed yet are parsed and added on first access.
+ */
+public final class ExifIndex {
+    private static final String TAG = "ExifIndex";
+    private static final int VERSION = 1;
+    private static final long EXIF_CACHE_MAX_SIZE = 4 * 1024 * 1024;
+    private static final DiskCache sExifCache = new DiskCache("local-exif-cache", EXIF_CACHE_MAX_SIZE);
+
+    private static final int FLAG_HAS_EXIF = 1;
+    private static final int FLAG_HAS_LOCATION = 2;
+
+    private static final int[] EXIF_TAGS = { ExifDirectory.TAG_DATETIME, ExifDirectory.TAG_DATETIME_ORIGINAL,
+            ExifDirectory.TAG_ORIENTATION, ExifDirectory.TAG_EXIF_IMAGE_WIDTH, ExifDirectory.TAG_EXIF_IMAGE_HEIGHT,
+            ExifDirectory.TAG_THUMBNAIL_IMAGE_WIDTH, ExifDirectory.TAG_THUMBNAIL_IMAGE_HEIGHT, ExifDirectory.TAG_MAKE,
+            ExifDirectory.TAG_MODEL, ExifDirectory.TAG_FOCAL_LENGTH, ExifDirectory.TAG_35MM_FILM_EQUIV_FOCAL_LENGTH,
+            ExifDirectory.TAG_FNUMBER, ExifDirectory.TAG_EXPOSURE_TIME, ExifDirectory.TAG_ISO_EQUIVALENT,
+            ExifDirectory.TAG_EXPOSURE_BIAS, ExifDirectory.TAG_METERING_MODE, ExifDirectory.TAG_EXPOSURE_PROGRAM,
+            GpsDirectory.TAG_GPS_LATITUDE_REF, GpsDirectory.TAG_GPS_LATITUDE, GpsDirectory.TAG_GPS_LONGITUDE_REF,
+            GpsDirectory.TAG_GPS_LONGITUDE };
+
+    private static final SimpleDateFormat sDateFormat = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
+    private static final SimpleDateFormat sAltDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+    /** The indexed metadata of a file. */
+    public static final class Entry {
+        // In milliseconds, -1 if unknown.
+        public long dateTakenInMs = -1;
+        // The EXIF orientation, 0 if unknown.
+        public int orientation;
+        public boolean hasLocation;
+        public double latitude;
+        public double longitude;
+        // 0 if unknown.
+        public int width;
+        public int height;
+        // The values below are null, or -1 for the modes, if unknown.
+        public String make;
+        public String model;
+        public String focalLength;
+        public String focalLength35mm;
+        public String fNumber;
+        public String exposureTime;
+        public String iso;
+        public String exposureBias;
+        public int meteringMode = -1;
+        public int exposureProgram = -1;
+    }
+
+    private ExifIndex() {
+    }
+
+    /**
+     * Returns the EXIF metadata of a JPEG file, or null if the file has no
+     * EXIF data. The file is parsed if it is not indexed yet.
+     */
+    public static Entry get(final String filePath) {
+        if (!isJpeg(filePath)) {
+            return null;
+        }
+        final long key = Utils.Crc64Long(filePath);
+        final long timestamp = new File(filePath).lastModified();
+        final byte[] data = sExifCache.get(key, timestamp);
+        if (data != null) {
+            try {
+                return readEntry(data);
+            } catch (IOException e) {
+                Log.e(TAG, "Corrupt index entry for " + filePath);
+            }
+        }
+        return index(filePath, key, timestamp);
+    }
+
+    /**
+     * Indexes the images of the list that are not indexed yet. Returns false if
+     * the thread was interrupted.
+     */
+    public static boolean index(final ImageList list) {
+        final String[] paths = list.paths;
+        if (paths == null) {
+            return true;
+        }
+        final DiskCache cache = sExifCache;
+        for (int i = 0; i < paths.length; ++i) {
+            if (Thread.interrupted()) {
+                return false;
+            }
+            final String filePath = paths[i];
+            if (!isJpeg(filePath)) {
+                continue;
+            }
+            final long key = Utils.Crc64Long(filePath);
+            final long timestamp = new File(filePath).lastModified();
+            if (!cache.isDataAvailable(key, timestamp)) {
+                index(filePath, key, timestamp);
+            }
+        }
+        cache.flush();
+        return true;
+    }
+
+    private static boolean isJpeg(final String filePath) {
+        if (filePath == null) {
+            return false;
+        }
+        final String path = filePath.toLowerCase();
+        return path.endsWith(".jpg") || path.endsWith(".jpeg");
+    }
+
+    private static Entry index(final String filePath, final long key, final long timestamp) {
+        if (timestamp == 0) {
+            // The file does not exist.
+            return null;
+        }
+        final Entry entry;
+        try {
+            entry = parse(filePath);
+        } catch (IOException e) {
+            // The file could not be read this time, it may still be being
+            // written or its storage unmounted. It is indexed again later.
+            Log.w(TAG, "Unable to read " + filePath);
+            return null;
+        }
+        try {
+            sExifCache.put(key, writeEntry(entry), timestamp);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to index " + filePath);
+        }
+        return entry;
+    }
+
+    // Returns null if the file has no EXIF data or it cannot be parsed, and
+    // throws if the file cannot be read.
+    private static Entry parse(final String filePath) throws IOException {
+        try {
+            // The segment is parsed in place, it is not copied to the heap.
+            final ByteBuffer exifSegment = JpegSegmentReader.mapSegment(new File(filePath), JpegSegmentReader.SEGMENT_APP1);
+            if (exifSegment == null) {
+                return null;
+            }
+            final Metadata metadata = new ExifReader(exifSegment).extract(new Metadata(), EXIF_TAGS, false);
+            final Directory exifDir = metadata.getDirectory(ExifDirectory.class);
+            final Entry entry = new Entry();
+            String dateTime = exifDir.getString(ExifDirectory.TAG_DATETIME);
+            if (dateTime == null) {
+                dateTime = exifDir.getString(ExifDirectory.TAG_DATETIME_ORIGINAL);
+            }
+            if (dateTime != null) {
+                entry.dateTakenInMs = parseDateTime(dateTime);
+            }
+            entry.orientation = getInt(exifDir, ExifDirectory.TAG_ORIENTATION, 0);
+            entry.width = getInt(exifDir, ExifDirectory.TAG_EXIF_IMAGE_WIDTH, 0);
+            entry.height = getInt(exifDir, ExifDirectory.TAG_EXIF_IMAGE_HEIGHT, 0);
+            if (entry.width == 0 || entry.height == 0) {
+                // The IFD0 image size, which shares its tags with the thumbnail size.
+                entry.width = getInt(exifDir, ExifDirectory.TAG_THUMBNAIL_IMAGE_WIDTH, 0);
+                entry.height = getInt(exifDir, ExifDirectory.TAG_THUMBNAIL_IMAGE_HEIGHT, 0);
+            }
+            entry.make = trim(exifDir.getString(ExifDirectory.TAG_MAKE));
+            entry.model = trim(exifDir.getString(ExifDirectory.TAG_MODEL));
+            entry.focalLength = exifDir.getString(ExifDirectory.TAG_FOCAL_LENGTH);
+            entry.focalLength35mm = exifDir.getString(ExifDirectory.TAG_35MM_FILM_EQUIV_FOCAL_LENGTH);
+            entry.fNumber = exifDir.getString(ExifDirectory.TAG_FNUMBER);
+            entry.exposureTime = exifDir.getString(ExifDirectory.TAG_EXPOSURE_TIME);
+            entry.iso = exifDir.getString(ExifDirectory.TAG_ISO_EQUIVALENT);
+            entry.exposureBias = exifDir.getString(ExifDirectory.TAG_EXPOSURE_BIAS);
+            entry.meteringMode = getInt(exifDir, ExifDirectory.TAG_METERING_MODE, -1);
+            entry.exposureProgram = getInt(exifDir, ExifDirectory.TAG_EXPOSURE_PROGRAM, -1);
+
+            if (metadata.containsDirectory(GpsDirectory.class)) {
+                final Directory gpsDir = metadata.getDirectory(GpsDirectory.class);
+                if (gpsDir.containsTag(GpsDirectory.TAG_GPS_LATITUDE) && gpsDir.containsTag(GpsDirectory.TAG_GPS_LONGITUDE)) {
+                    double latitude = toDegrees(gpsDir.getRationalArray(GpsDirectory.TAG_GPS_LATITUDE));
+                    double longitude = toDegrees(gpsDir.getRationalArray(GpsDirectory.TAG_GPS_LONGITUDE));
+                    if ("S".equals(gpsDir.getString(GpsDirectory.TAG_GPS_LATITUDE_REF))) {
+                        latitude = -latitude;
+                    }
+                    if ("W".equals(gpsDir.getString(GpsDirectory.TAG_GPS_LONGITUDE_REF))) {
+                        longitude = -longitude;
+                    }
+                    entry.hasLocation = true;
+                    entry.latitude = latitude;
+                    entry.longitude = longitude;
+                }
+            }
+            return entry;
+        } catch (JpegProcessingException e) {
+            final Throwable cause = e.getInnerException();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            // Not a JPEG file.
+            return null;
+        } catch (Exception e) {
+            // The EXIF data is corrupt.
+            return null;
+        }
+    }
+
+    private static long parseDateTime(final String dateTime) {
+        synchronized (sDateFormat) {
+            try {
+                return sDateFormat.parse(dateTime).getTime();
+            } catch (ParseException e) {
+                try {
+                    return sAltDateFormat.parse(dateTime).getTime();
+                } catch (ParseException e2) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private static int getInt(final Directory directory, final int tagType, final int defaultValue) {
+        if (!directory.containsTag(tagType)) {
+            return defaultValue;
+        }
+        try {
+            return directory.getInt(tagType);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    private static String trim(final String string) {
+        return (string == null) ? null : string.trim();
+    }
+
+    private static double toDegrees(final Rational[] dms) {
+        double degrees = 0;
+        double scale = 1;
+        for (int i = 0; i < dms.length && i < 3; ++i) {
+            degrees += dms[i].doubleValue() / scale;
+            scale *= 60;
+        }
+        return degrees;
+    }
+
+    private static byte[] writeEntry(final Entry entry) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        final DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(VERSION);
+        if (entry == null) {
+            dos.writeByte(0);
+        } else {
+            dos.writeByte(FLAG_HAS_EXIF | (entry.hasLocation ? FLAG_HAS_LOCATION : 0));
+            dos.writeLong(entry.dateTakenInMs);
+            dos.writeByte(entry.orientation);
+            if (entry.hasLocation) {
+                dos.writeDouble(entry.latitude);
+                dos.writeDouble(entry.longitude);
+            }
+            dos.writeInt(entry.width);
+            dos.writeInt(entry.height);
+            Utils.writeUTF(dos, entry.make);
+            Utils.writeUTF(dos, entry.model);
+            Utils.writeUTF(dos, entry.focalLength);
+            Utils.writeUTF(dos, entry.focalLength35mm);
+            Utils.writeUTF(dos, entry.fNumber);
+            Utils.writeUTF(dos, entry.exposureTime);
+            Utils.writeUTF(dos, entry.iso);
+            Utils.writeUTF(dos, entry.exposureBias);
+            dos.writeShort(entry.meteringMode);
+            dos.writeShort(entry.exposureProgram);
+        }
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static Entry readEntry(final byte[] data) throws IOException {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (dis.readByte() != VERSION) {
+            throw new IOException("Unknown version");
+        }
+        final int flags = dis.readByte();
+        if ((flags & FLAG_HAS_EXIF) == 0) {
+            return null;
+        }
+        final Entry entry = new Entry();
+        entry.dateTakenInMs = dis.readLong();
+        entry.orientation = dis.readByte();
+        if ((flags & FLAG_HAS_LOCATION) != 0) {
+            entry.hasLocation = true;
+            entry.latitude = dis.readDouble();
+            entry.longitude = dis.readDouble();
+        }
+        entry.width = dis.readInt();
+        entry.height = dis.readInt();
+        entry.make = Utils.readUTF(dis);
+        entry.model = Utils.readUTF(dis);
+        entry.focalLength = Utils.readUTF(dis);
+        entry.focalLength35mm = Utils.readUTF(dis);
+        entry.fNumber = Utils.readUTF(dis);
+        entry.exposureTime = Utils.readUTF(dis);
+        entry.iso = Utils.readUTF(dis);
+        entry.exposureBias = Utils.readUTF(dis);
+        entry.meteringMode = dis.readShort();
+        entry.exposureProgram = dis.readShort();
+        return entry;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.cache;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.drew.imaging.jpeg.JpegSegmentReader;
+import com.drew.metadata.Directory;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifDirectory;
+import com.drew.metadata.exif.ExifReader;
+
+/**
+ * Decodes the thumbnail cameras embed in the EXIF data of their photos. Only
+ * the EXIF segment of the file is read and the thumbnail is a few KB of JPEG,
+ * so this is much cheaper than decoding and resampling the full image.
+ */
+final class ExifThumbnail {
+    private static final int COMPRESSION_JPEG = 6;
+    // Thumbnails whose aspect ratio differs more than this from the image are
+    // letterboxed and not used.
+    private static final float MAX_ASPECT_RATIO_ERROR = 0.05f;
+
+    private static final int[] THUMBNAIL_TAGS = { ExifDirectory.TAG_COMPRESSION, ExifDirectory.TAG_THUMBNAIL_OFFSET,
+            ExifDirectory.TAG_THUMBNAIL_LENGTH, ExifDirectory.TAG_EXIF_IMAGE_WIDTH, ExifDirectory.TAG_EXIF_IMAGE_HEIGHT };
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * Returns the EXIF thumbnail of a JPEG file, or null if the file has none
+     * or the thumbnail is smaller than the given size.
+     */
+    public static Bitmap decode(final String filePath, final int minWidth, final int minHeight) {
+        if (filePath == null) {
+            return null;
+        }
+        try {
+            final ByteBuffer exifSegment = JpegSegmentReader.mapSegment(new File(filePath), JpegSegmentReader.SEGMENT_APP1);
+            if (exifSegment == null) {
+                return null;
+            }
+            final Metadata metadata = new ExifReader(exifSegment).extract(new Metadata(), THUMBNAIL_TAGS, false);
+            final Directory exifDir = metadata.getDirectory(ExifDirectory.class);
+            if (!exifDir.containsTag(ExifDirectory.TAG_THUMBNAIL_DATA)
+                    || exifDir.getInt(ExifDirectory.TAG_COMPRESSION) != COMPRESSION_JPEG) {
+                return null;
+            }
+            final byte[] data = exifDir.getByteArray(ExifDirectory.TAG_THUMBNAIL_DATA);
+
+            // Check the size before decoding.
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            final int width = options.outWidth;
+            final int height = options.outHeight;
+            if (width < minWidth || height < minHeight) {
+                return null;
+            }
+            if (exifDir.containsTag(ExifDirectory.TAG_EXIF_IMAGE_WIDTH) && exifDir.containsTag(ExifDirectory.TAG_EXIF_IMAGE_HEIGHT)) {
+                final int imageWidth = exifDir.getInt(ExifDirectory.TAG_EXIF_IMAGE_WIDTH);
+                final int imageHeight = exifDir.getInt(ExifDirectory.TAG_EXIF_IMAGE_HEIGHT);
+                if (imageWidth > 0 && imageHeight > 0) {
+                    final float aspectRatio = (float) width / height;
+                    final float imageAspectRatio = (float) imageWidth / imageHeight;
+                    if (Math.abs(aspectRatio - imageAspectRatio) > MAX_ASPECT_RATIO_ERROR * imageAspectRatio) {
+                        return null;
+                    }
+                }
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inDither = false;
+            options.inScaled = false;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (Exception e) {
+            // Not a JPEG file, or the EXIF data is corrupt.
+            return null;
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+    }
+}
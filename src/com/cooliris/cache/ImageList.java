@@ -21,4 +21,5 @@ public class ImageList {
     public long thumbids[];
     public long timestamp[];
     public int orientation[];
+    public String paths[];
 }
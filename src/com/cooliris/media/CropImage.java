@@ -105,7 +105,7 @@ public class CropImage extends MonitoredActivity {
     static public void launchCropperOrFinish(final Context context, final MediaItem item) {
     	final Bundle myExtras = ((Activity) context).getIntent().getExtras();
     	String cropValue = myExtras != null ? myExtras.getString("crop") : null;
-    	final String contentUri = item.mContentUri;
+    	final String contentUri = item.getContentUri();
     	if (contentUri == null)
     		return;
     	if (cropValue != null) {
@@ -268,7 +268,7 @@ public class CropImage extends MonitoredActivity {
             }
             try {
                 if (mItem != null) {
-                    mBitmap = UriTexture.createFromUri(this, mItem.mContentUri, 1024, 1024, 0, null);
+                    mBitmap = UriTexture.createFromUri(this, mItem.getContentUri(), 1024, 1024, 0, null);
                     rotation = (int) mItem.mRotation;
                 } else {
                     mBitmap = UriTexture.createFromUri(this, target.toString(), 1024, 1024, 0, null);
@@ -16,24 +16,18 @@
 
 package com.cooliris.media;
 
-import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.io.File;
 
 import android.content.Context;
 import android.content.res.Resources;
-import android.media.ExifInterface;
 
 import com.cooliris.app.App;
 import com.cooliris.app.Res;
-
-import com.drew.metadata.*;
-import com.drew.metadata.exif.*;
-import com.drew.imaging.jpeg.*;
+import com.cooliris.cache.ExifIndex;
 
 public final class DetailMode {
     public static CharSequence[] populateDetailModeStrings(Context context, ArrayList<MediaBucket> buckets) {
@@ -145,29 +139,21 @@ public final class DetailMode {
 
         DateFormat dateTimeFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
 
-        try {
-            ExifInterface exif = new ExifInterface(item.mFilePath);
-            String imgSizeX = exif.getAttribute(ExifInterface.TAG_IMAGE_WIDTH);
-            String imgSizeY = exif.getAttribute(ExifInterface.TAG_IMAGE_LENGTH);
-            
-            if (imgSizeX != null && imgSizeX.length() > 0 && imgSizeY != null && imgSizeY.length() > 0) {
-                exifItems.add("Image Size: " + imgSizeX + "x" + imgSizeY);
-            }
+        // The EXIF data is parsed once and then served from the index.
+        ExifIndex.Entry exif = ExifIndex.get(item.mFilePath);
+        if (exif != null && exif.width > 0 && exif.height > 0) {
+            exifItems.add("Image Size: " + exif.width + "x" + exif.height);
+        }
 
-            if (item.mLocaltime == null) {
-                SimpleDateFormat formatter = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
-                String localtime = exif.getAttribute(ExifInterface.TAG_DATETIME);
-                if (localtime != null) {
-                    item.mLocaltime = formatter.parse(localtime, new ParsePosition(0));
-                }
-                if (item.mLocaltime == null && item.mCaption != null) {
-                    formatter = new SimpleDateFormat("yyyyMMdd'_'HHmmss");
-                    // skip initial IMG_ or VND_
-                    item.mLocaltime = formatter.parse(item.mCaption, new ParsePosition(4));
-                }
+        if (item.mLocaltime == null) {
+            if (exif != null && exif.dateTakenInMs != -1L) {
+                item.mLocaltime = new Date(exif.dateTakenInMs);
+            }
+            if (item.mLocaltime == null && item.mCaption != null) {
+                SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd'_'HHmmss");
+                // skip initial IMG_ or VND_
+                item.mLocaltime = formatter.parse(item.mCaption, new ParsePosition(4));
             }
-        } catch (IOException ex) {
-            // ignore it.
         }
         
         if (item.mLocaltime != null) {
@@ -197,21 +183,14 @@ public final class DetailMode {
             exifItems.add(resources.getString(Res.string.location) + ": " + locationString);
         }
 
-        File jpegFile = new File(item.mFilePath);
-        try {
-            JpegSegmentReader segmentReader = new JpegSegmentReader(jpegFile);
-            byte[] exifSegment = segmentReader.readSegment(JpegSegmentReader.SEGMENT_APP1);
-            Metadata metadata = new Metadata();
-            new ExifReader(exifSegment).extract(metadata);
-            Directory exifDir = metadata.getDirectory(ExifDirectory.class);
-
+        if (exif != null) {
             String tag = null;
             String str = null;
             int idx = 0;
             
             // EXIF - Camera Maker & Model
-            String maker = exifDir.getString(ExifDirectory.TAG_MAKE).trim();
-            String model = exifDir.getString(ExifDirectory.TAG_MODEL).trim();
+            String maker = exif.make;
+            String model = exif.model;
             if (maker != null && maker.length() > 0) {
                 if (model != null && model.length() > 0) {
                     if (model.contains(maker)) {
@@ -228,11 +207,11 @@ public final class DetailMode {
             // TODO: EXIF - Lens Model
             
             // EXIF - Focus Length
-            str = exifDir.getString(ExifDirectory.TAG_FOCAL_LENGTH);
+            str = exif.focalLength;
             if (str != null && str.length() > 0) {
                 // EXIF - 35mm Equivalent
                 String tmp = "Focal Length: " + str + " mm";
-                String eqv = exifDir.getString(ExifDirectory.TAG_35MM_FILM_EQUIV_FOCAL_LENGTH);
+                String eqv = exif.focalLength35mm;
                 if (eqv != null && eqv.length() > 0) {
                     tmp += " (35mm equivalent: " + eqv + "mm)";
                 }
@@ -240,31 +219,31 @@ public final class DetailMode {
             }
             
             // EXIF - Aperture
-            str = exifDir.getString(ExifDirectory.TAG_FNUMBER);
+            str = exif.fNumber;
             if (str != null && str.length() > 0) {
                 exifItems.add("Aperture: " + "f/" + str);
             }
             
             // EXIF - Exposure Time
-            str = exifDir.getString(ExifDirectory.TAG_EXPOSURE_TIME);
+            str = exif.exposureTime;
             if (str != null && str.length() > 0) {
                 exifItems.add("Exposure Time: " + str + " s");
             }
             
             // EXIF - ISO Speed
-            str = exifDir.getString(ExifDirectory.TAG_ISO_EQUIVALENT);
+            str = exif.iso;
             if (str != null && str.length() > 0) {
                 exifItems.add("ISO Speed: " + str);
             }
             
             // EXIF - Exposure Bias
-            str = exifDir.getString(ExifDirectory.TAG_EXPOSURE_BIAS);
+            str = exif.exposureBias;
             if (str != null && str.length() > 0) {
                 exifItems.add("Exposure Bias: " + str + " eV");
             }
             
             // EXIF - Metering Mode
-            idx = exifDir.getInt(ExifDirectory.TAG_METERING_MODE);
+            idx = exif.meteringMode;
             tag = "Metering Mode: ";
             switch (idx) {
             /**
@@ -299,7 +278,7 @@ public final class DetailMode {
             }
             
             // EXIF - Exposure Program
-            idx = exifDir.getInt(ExifDirectory.TAG_EXPOSURE_PROGRAM);
+            idx = exif.exposureProgram;
             tag = "Exposure: ";
             switch (idx) {
             /**
@@ -336,8 +315,6 @@ public final class DetailMode {
             }
             
             // TODO: EXIF - White Balance
-        } catch (Exception ex) {
-            // ignore it.
         }
 
         int numStrings = exifItems.size();
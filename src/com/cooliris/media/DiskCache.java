@@ -20,12 +20,21 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.cooliris.cache.CacheService;
 
@@ -35,17 +44,94 @@ public final class DiskCache {
     private static final String TAG = "DiskCache";
     private static final int CHUNK_SIZE = 1048576; // 1MB.
     private static final int INDEX_HEADER_MAGIC = 0xcafe;
-    private static final int INDEX_HEADER_VERSION = 2;
+    private static final int INDEX_HEADER_VERSION = 3;
+    private static final int INDEX_HEADER_VERSION_WITHOUT_ACCESS_TIME = 2;
+    private static final int JOURNAL_HEADER_MAGIC = 0xcaff;
+    private static final int JOURNAL_HEADER_VERSION = 2;
+    private static final int JOURNAL_HEADER_VERSION_WITHOUT_ACCESS_TIME = 1;
+    private static final byte JOURNAL_OP_PUT = 1;
+    private static final byte JOURNAL_OP_DELETE = 2;
+    private static final int JOURNAL_FLUSH_INTERVAL = 32;
+    private static final int JOURNAL_MIN_COMPACTION_ENTRIES = 1024;
+    private static final int NUM_INDEX_STRIPES = 16; // Must be a power of 2.
+    private static final int MAX_READ_ATTEMPTS = 3;
+    private static final float COMPACTION_LIVE_RATIO = 0.5f;
+    private static final float EVICTION_LOW_WATERMARK = 0.9f;
+    private static final int EVICTION_BATCH_SIZE = 64;
     private static final String INDEX_FILE_NAME = "index";
+    private static final String JOURNAL_FILE_NAME = "journal";
     private static final String CHUNK_FILE_PREFIX = "chunk_";
+
+    // Compaction and eviction for all caches run on one low priority thread.
+    private static final ExecutorService sCompactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "DiskCacheCompactor");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private final File mCacheDirectory;
     private final String mCacheDirectoryPath;
-    private LongSparseArray<Record> mIndexMap;
     private final LongSparseArray<RandomAccessFile> mChunkFiles = new LongSparseArray<RandomAccessFile>();
+
+    // The index is split into stripes, each guarded by its own monitor, so
+    // that lookups for different keys do not contend. Readers never hold a
+    // stripe lock while touching the disk: they read the record's bytes and
+    // then check that the record is still the one in the index.
+    private final LongSparseArray<Record>[] mIndexStripes;
+
+    // Space at the end of the tail chunk is reserved under this lock and then
+    // written outside of it, so concurrent writers only serialize on the
+    // offset computation. The lock also guards the live byte accounting of
+    // every chunk. When a chunk fills up the lowest free chunk number becomes
+    // the new tail, so chunk numbers are recycled after compaction.
+    private final Object mAllocationLock = new Object();
+    private final LongSparseArray<Chunk> mChunks = new LongSparseArray<Chunk>();
     private int mTailChunk = 0;
+    private int mTailOffset = 0;
+    private long mLiveBytes = 0;
+    private long mMaxSize = 0;
+    private boolean mEvicting = false;
+    private final AtomicBoolean mCompactionScheduled = new AtomicBoolean(false);
+
+    // Records are evicted in small batches from a queue sorted by the last
+    // access time, so that one cache going over its budget never stalls the
+    // compaction thread or the other caches. The queue is rebuilt from the
+    // index when it runs out. Only accessed with mCompactionLock held.
+    private final Object mCompactionLock = new Object();
+    private ArrayList<Entry> mEvictionQueue;
+    private int mEvictionQueuePosition;
+
+    // The index is persisted as a snapshot plus an append-only journal of the
+    // puts and deletes made since the snapshot was written. Flushing only
+    // writes the new journal entries; the snapshot is regenerated on close()
+    // or when the journal grows larger than the index itself. Changes to the
+    // index are published while holding this lock so that the journal order
+    // matches the index order. Lock ordering is mJournalLock, then a stripe,
+    // then mAllocationLock.
+    private final Object mJournalLock = new Object();
     private int mNumInsertions = 0;
+    private DataOutputStream mJournalOutput;
+    private int mNumJournalEntries = 0;
 
     public DiskCache(String cacheDirectoryName) {
+        this(cacheDirectoryName, 0);
+    }
+
+    /**
+     * Creates a cache that keeps at most maxSize live bytes. The least
+     * recently read records beyond that budget are evicted in the background.
+     * A maxSize of 0 means the cache is unbounded.
+     */
+    @SuppressWarnings("unchecked")
+    public DiskCache(String cacheDirectoryName, long maxSize) {
+        mMaxSize = maxSize;
+        mIndexStripes = new LongSparseArray[NUM_INDEX_STRIPES];
+        for (int i = 0; i < NUM_INDEX_STRIPES; ++i) {
+            mIndexStripes[i] = new LongSparseArray<Record>();
+        }
         String cacheDirectoryPath = CacheService.getCachePath(cacheDirectoryName);
 
         // Create the cache directory if needed.
@@ -63,39 +149,76 @@ public final class DiskCache {
         shutdown();
     }
 
+    /**
+     * Limits the number of live bytes kept by the cache. Once the limit is
+     * exceeded the least recently used records are evicted in the background
+     * until the cache is back under the limit. A value of 0 disables the
+     * limit.
+     */
+    public void setMaxSize(long maxSize) {
+        synchronized (mAllocationLock) {
+            mMaxSize = maxSize;
+        }
+        scheduleCompactionIfNeeded();
+    }
+
     public byte[] get(long key, long timestamp) {
-        // Look up the record for the given key.
-        Record record = null;
-        synchronized (mIndexMap) {
-            record = mIndexMap.get(key);
+        final ByteBuffer data = get(key, timestamp, null);
+        if (data == null) {
+            return null;
         }
-        if (record != null) {
-            // Read the chunk from the file.
+        // A retry may have read a shorter record into the buffer of the
+        // previous attempt, callers rely on the length of the array.
+        final byte[] array = data.array();
+        final int size = data.limit();
+        if (array.length == size) {
+            return array;
+        }
+        final byte[] bytes = new byte[size];
+        System.arraycopy(array, 0, bytes, 0, size);
+        return bytes;
+    }
+
+    /**
+     * Reads the record for the given key into a heap buffer. The supplied
+     * buffer is reused when it is large enough to hold the record, otherwise
+     * a new one is allocated. The returned buffer is positioned at 0 with its
+     * limit set to the record size, or null if there is no valid record.
+     * Interrupting the reading thread does not affect the cache.
+     */
+    public ByteBuffer get(long key, long timestamp, ByteBuffer buffer) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; ++attempt) {
+            // Look up the record for the given key.
+            final Record record = getRecord(key);
+            if (record == null) {
+                return null;
+            }
             if (record.timestamp < timestamp) {
                 Log.i(TAG, "File has been updated to " + timestamp + " since the last time " + record.timestamp
                         + " stored in cache.");
                 return null;
             }
-            try {
-                RandomAccessFile chunkFile = getChunkFile(record.chunk);
-                if (chunkFile != null) {
-                    byte[] data = new byte[record.size];
-                    chunkFile.seek(record.offset);
-                    chunkFile.readFully(data);
-                    return data;
+            // Read the chunk from the file.
+            final ByteBuffer data = readRecord(record, buffer);
+            if (data != null) {
+                buffer = data;
+            }
+            // The data is only valid if the record was not replaced, moved or
+            // rewritten while it was being read.
+            if (getRecord(key) == record) {
+                if (data == null) {
+                    Log.e(TAG, "Unable to read from chunk file");
+                    return null;
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Unable to read from chunk file");
+                record.lastAccess = System.currentTimeMillis();
+                return data;
             }
         }
         return null;
     }
 
     public boolean isDataAvailable(long key, long timestamp) {
-        Record record = null;
-        synchronized (mIndexMap) {
-            record = mIndexMap.get(key);
-        }
+        final Record record = getRecord(key);
         if (record == null) {
             return false;
         }
@@ -108,82 +231,133 @@ public final class DiskCache {
     }
 
     public void put(long key, byte[] data, long timestamp) {
-        Record record = null;
-        // Recreate the cache directory in case it is unexpectedly deleted by user
-        // during caching.  This restores "/Android/data/com.cooliris.media/cache/".
-        if (!mCacheDirectory.isDirectory()) {
-            File cacheDirectory = new File(mCacheDirectoryPath);
-            if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
-                Log.e(TAG, "Unable to create cache directory " + mCacheDirectoryPath);
-                return;
-            };
-            // Reload index
-            loadIndex();
+        if (!ensureCacheDirectory()) {
+            return;
         }
 
-        // Check to see if the record already exists.
-        synchronized (mIndexMap) {
-            record = mIndexMap.get(key);
+        // Check to see if the record already exists and the new data fits in
+        // its space. The record is unpublished while its bytes are rewritten
+        // so that readers cannot validate a partially overwritten record. Its
+        // space stays accounted as live until the replacement is published.
+        // The removal is journaled, so that a crash during the rewrite does
+        // not leave the old record pointing at partially overwritten bytes.
+        final LongSparseArray<Record> stripe = getStripe(key);
+        Record record = null;
+        synchronized (mJournalLock) {
+            synchronized (stripe) {
+                record = stripe.get(key);
+                if (record != null && data.length <= record.sizeOnDisk) {
+                    stripe.remove(key);
+                } else {
+                    record = null;
+                }
+            }
+            if (record != null) {
+                appendDeleteToJournal(key);
+            }
         }
-        if (record != null && data.length <= record.sizeOnDisk) {
+        if (record != null) {
             // We just replace the chunk.
-            int currentChunk = record.chunk;
+            boolean written = false;
             try {
-                RandomAccessFile chunkFile = getChunkFile(record.chunk);
+                RandomAccessFile chunkFile = getChunkFile(record.chunk, false);
                 if (chunkFile != null) {
-                    chunkFile.seek(record.offset);
-                    chunkFile.write(data);
-                    synchronized (mIndexMap) {
-                        mIndexMap.put(key, new Record(currentChunk, record.offset, data.length, record.sizeOnDisk, timestamp));
-                    }
-                    if (++mNumInsertions == 32) { // CR: 32 => constant
-                        // Flush the index file at a regular interval. To avoid
-                        // writing the entire
-                        // index each time the format could be changed to an
-                        // append-only journal with
-                        // a snapshot generated on exit.
-                        flush();
-                    }
-                    return;
+                    writeFully(chunkFile, ByteBuffer.wrap(data), record.offset);
+                    written = true;
                 }
             } catch (Exception e) {
-                Log.e(TAG, "Unable to read from chunk file");
+                Log.e(TAG, "Unable to write to chunk file");
+            }
+            if (written) {
+                publish(key, new Record(record.chunk, record.offset, data.length, record.sizeOnDisk, timestamp), record);
+                return;
+            }
+            // The old bytes may be partially overwritten, so their space is dead.
+            synchronized (mAllocationLock) {
+                account(record, null);
             }
         }
+
         // Append a new chunk to the current chunk.
-        final int chunk = mTailChunk;
-        final RandomAccessFile chunkFile = getChunkFile(chunk);
-        if (chunkFile != null) {
-            try {
-                final int offset = (int) chunkFile.length();
-                chunkFile.seek(offset);
-                chunkFile.write(data);
-                synchronized (mIndexMap) {
-                    mIndexMap.put(key, new Record(chunk, offset, data.length, data.length, timestamp));
-                }
-                if (offset + data.length > CHUNK_SIZE) {
-                    ++mTailChunk;
-                }
+        final long location = reserve(data.length);
+        final int chunk = (int) (location >>> 32);
+        final int offset = (int) location;
+        boolean written = false;
+        try {
+            final RandomAccessFile chunkFile = getChunkFile(chunk, true);
+            if (chunkFile != null) {
+                writeFully(chunkFile, ByteBuffer.wrap(data), offset);
+                written = true;
+                publish(key, new Record(chunk, offset, data.length, data.length, timestamp), null);
+            } else {
+                Log.e(TAG, "getChunkFile() returned null");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write new entry to chunk file");
+        } finally {
+            release(location, data.length, written);
+        }
+    }
 
-                if (++mNumInsertions == 32) { // CR: 32 => constant
-                    // Flush the index file at a regular interval. To avoid
-                    // writing the entire
-                    // index each time the format could be changed to an
-                    // append-only journal with
-                    // a snapshot generated on exit.
-                    flush();
+    /**
+     * Writes the first count records with a single reservation at the end of
+     * the tail chunk and a single write, instead of one of each per record.
+     * Existing records for the keys are superseded, never rewritten in place.
+     */
+    public void putAll(long[] keys, byte[][] data, long[] timestamps, int count) {
+        if (count == 0 || !ensureCacheDirectory()) {
+            return;
+        }
+        int totalSize = 0;
+        for (int i = 0; i < count; ++i) {
+            totalSize += data[i].length;
+        }
+        final long location = reserve(totalSize);
+        final int chunk = (int) (location >>> 32);
+        final int offset = (int) location;
+        boolean written = false;
+        try {
+            final RandomAccessFile chunkFile = getChunkFile(chunk, true);
+            if (chunkFile != null) {
+                final ByteBuffer buffer = ByteBuffer.allocate(totalSize);
+                for (int i = 0; i < count; ++i) {
+                    buffer.put(data[i]);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write new entry to chunk file");
+                buffer.flip();
+                writeFully(chunkFile, buffer, offset);
+                written = true;
+                synchronized (mJournalLock) {
+                    int recordOffset = offset;
+                    for (int i = 0; i < count; ++i) {
+                        final int size = data[i].length;
+                        publish(keys[i], new Record(chunk, recordOffset, size, size, timestamps[i]), null);
+                        recordOffset += size;
+                    }
+                }
+            } else {
+                Log.e(TAG, "getChunkFile() returned null");
             }
-        } else {
-            Log.e(TAG, "getChunkFile() returned null");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write new entries to chunk file");
+        } finally {
+            release(location, totalSize, written);
         }
     }
 
     public void delete(long key) {
-        synchronized (mIndexMap) {
-            mIndexMap.remove(key);
+        final LongSparseArray<Record> stripe = getStripe(key);
+        synchronized (mJournalLock) {
+            synchronized (stripe) {
+                final Record record = stripe.get(key);
+                if (record == null) {
+                    return;
+                }
+                stripe.remove(key);
+                synchronized (mAllocationLock) {
+                    account(record, null);
+                }
+            }
+            appendDeleteToJournal(key);
         }
     }
 
@@ -194,26 +368,241 @@ public final class DiskCache {
         // Delete all cache files.
         File cacheDirectory = new File(mCacheDirectoryPath);
         String[] cacheFiles = cacheDirectory.list();
-        if (cacheFiles == null)
-            return;
-        for (String cacheFile : cacheFiles) {
-            new File(cacheDirectory, cacheFile).delete();
+        if (cacheFiles != null) {
+            for (String cacheFile : cacheFiles) {
+                new File(cacheDirectory, cacheFile).delete();
+            }
+        }
+        synchronized (mAllocationLock) {
+            mChunks.clear();
+            mLiveBytes = 0;
+            startTailChunk();
         }
     }
 
     public void flush() {
-        if (mNumInsertions != 0) {
-            mNumInsertions = 0;
-            writeIndex();
+        synchronized (mJournalLock) {
+            if (mNumInsertions != 0) {
+                mNumInsertions = 0;
+                if (mNumJournalEntries > JOURNAL_MIN_COMPACTION_ENTRIES && mNumJournalEntries > getNumRecords()) {
+                    // Replaying the journal would cost more than reading a
+                    // fresh snapshot, so compact it.
+                    writeIndex();
+                } else {
+                    flushJournal();
+                }
+            }
         }
+        scheduleCompactionIfNeeded();
     }
 
     public void close() {
-        writeIndex();
+        synchronized (mJournalLock) {
+            writeIndex();
+        }
         shutdown();
     }
 
+    /**
+     * Evicts a batch of the least recently used records if the cache is over
+     * its size limit, then rewrites the chunks whose live bytes have dropped below
+     * COMPACTION_LIVE_RATIO of their length and deletes the old chunk files.
+     * This normally runs on the compaction thread after a flush, which keeps
+     * rescheduling it until the cache is within its budget.
+     */
+    public void compact() {
+        synchronized (mCompactionLock) {
+            evictBatch();
+            compactChunks();
+        }
+    }
+
+    private void compactChunks() {
+        // Find the sealed chunks that are mostly dead.
+        final LongSparseArray<Chunk> candidates = new LongSparseArray<Chunk>();
+        synchronized (mAllocationLock) {
+            for (int i = 0, size = mChunks.size(); i < size; ++i) {
+                final int chunkNumber = (int) mChunks.keyAt(i);
+                final Chunk chunk = mChunks.valueAt(i);
+                if (isCompactable(chunkNumber, chunk)) {
+                    candidates.append(chunkNumber, chunk);
+                }
+            }
+        }
+        if (candidates.size() == 0) {
+            return;
+        }
+
+        // Copy their live records to the tail. A record that changes while it
+        // is being copied keeps its new location and the copy becomes dead.
+        final ArrayList<Entry> entries = getEntries(candidates);
+        ByteBuffer buffer = null;
+        for (int i = 0, size = entries.size(); i < size; ++i) {
+            final Entry entry = entries.get(i);
+            final Record record = entry.record;
+            final ByteBuffer data = readRecord(record, buffer);
+            if (data == null) {
+                continue;
+            }
+            buffer = data;
+            final long location = reserve(record.size);
+            final int chunk = (int) (location >>> 32);
+            final int offset = (int) location;
+            boolean written = false;
+            try {
+                final RandomAccessFile chunkFile = getChunkFile(chunk, true);
+                if (chunkFile == null) {
+                    break;
+                }
+                writeFully(chunkFile, data, offset);
+                written = true;
+                final Record movedRecord = new Record(chunk, offset, record.size, record.size, record.timestamp);
+                movedRecord.lastAccess = record.lastAccess;
+                replace(entry.key, record, movedRecord);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write compacted entry to chunk file");
+                break;
+            } finally {
+                release(location, record.size, written);
+            }
+        }
+
+        // Make the new locations durable before removing the old chunks.
+        synchronized (mJournalLock) {
+            flushJournal();
+        }
+        for (int i = 0, size = candidates.size(); i < size; ++i) {
+            final int chunkNumber = (int) candidates.keyAt(i);
+            synchronized (mAllocationLock) {
+                final Chunk chunk = mChunks.get(chunkNumber);
+                if (chunk == null || chunk.liveBytes > 0 || chunk.numPendingWrites > 0 || chunkNumber == mTailChunk) {
+                    continue;
+                }
+            }
+            deleteChunkFile(chunkNumber);
+            synchronized (mAllocationLock) {
+                mChunks.remove(chunkNumber);
+            }
+        }
+    }
+
+    private void evictBatch() {
+        long excessBytes;
+        synchronized (mAllocationLock) {
+            final long lowWatermark = (long) (mMaxSize * EVICTION_LOW_WATERMARK);
+            if (mMaxSize <= 0 || mLiveBytes <= lowWatermark || (!mEvicting && mLiveBytes <= mMaxSize)) {
+                mEvicting = false;
+                mEvictionQueue = null;
+                return;
+            }
+            // Keep evicting down to the low watermark so that the next few
+            // puts do not immediately trigger another round.
+            mEvicting = true;
+            excessBytes = mLiveBytes - lowWatermark;
+        }
+        if (mEvictionQueue == null || mEvictionQueuePosition >= mEvictionQueue.size()) {
+            mEvictionQueue = getEntries(null);
+            mEvictionQueuePosition = 0;
+            Collections.sort(mEvictionQueue, new Comparator<Entry>() {
+                public int compare(Entry entry1, Entry entry2) {
+                    final long lastAccess1 = entry1.lastAccess;
+                    final long lastAccess2 = entry2.lastAccess;
+                    return (lastAccess1 < lastAccess2) ? -1 : ((lastAccess1 == lastAccess2) ? 0 : 1);
+                }
+            });
+        }
+        final ArrayList<Entry> queue = mEvictionQueue;
+        int numEvicted = 0;
+        while (numEvicted < EVICTION_BATCH_SIZE && excessBytes > 0 && mEvictionQueuePosition < queue.size()) {
+            final Entry entry = queue.get(mEvictionQueuePosition++);
+            // Skip records that were read or replaced since the queue was
+            // built, they are no longer the least recently used.
+            if (entry.record.lastAccess == entry.lastAccess && replace(entry.key, entry.record, null)) {
+                excessBytes -= entry.record.sizeOnDisk;
+                ++numEvicted;
+            }
+        }
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        synchronized (mAllocationLock) {
+            if (!needsCompaction()) {
+                return;
+            }
+        }
+        if (mCompactionScheduled.compareAndSet(false, true)) {
+            sCompactionExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Unable to compact the cache " + mCacheDirectoryPath, e);
+                        return;
+                    } finally {
+                        mCompactionScheduled.set(false);
+                    }
+                    // Queue the next eviction batch behind the other caches.
+                    final boolean evicting;
+                    synchronized (mAllocationLock) {
+                        evicting = mEvicting;
+                    }
+                    if (evicting) {
+                        scheduleCompactionIfNeeded();
+                    }
+                }
+            });
+        }
+    }
+
+    // Callers must hold mAllocationLock.
+    private boolean needsCompaction() {
+        if (mMaxSize > 0) {
+            final long limit = mEvicting ? (long) (mMaxSize * EVICTION_LOW_WATERMARK) : mMaxSize;
+            if (mLiveBytes > limit) {
+                return true;
+            }
+        }
+        for (int i = 0, size = mChunks.size(); i < size; ++i) {
+            if (isCompactable((int) mChunks.keyAt(i), mChunks.valueAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Callers must hold mAllocationLock.
+    private boolean isCompactable(int chunkNumber, Chunk chunk) {
+        return chunkNumber != mTailChunk && chunk.numPendingWrites == 0
+                && chunk.liveBytes < chunk.length * COMPACTION_LIVE_RATIO;
+    }
+
+    // Recreates the cache directory in case it is unexpectedly deleted by the
+    // user during caching. This restores "/Android/data/com.cooliris.media/cache/".
+    private boolean ensureCacheDirectory() {
+        if (!mCacheDirectory.isDirectory()) {
+            synchronized (mJournalLock) {
+                if (!mCacheDirectory.isDirectory()) {
+                    File cacheDirectory = new File(mCacheDirectoryPath);
+                    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+                        Log.e(TAG, "Unable to create cache directory " + mCacheDirectoryPath);
+                        return false;
+                    }
+                    // The journal and chunks were deleted along with the directory.
+                    shutdown();
+                    mNumJournalEntries = 0;
+                    // Reload index
+                    loadIndex();
+                }
+            }
+        }
+        return true;
+    }
+
     private void shutdown() {
+        synchronized (mJournalLock) {
+            closeJournal();
+            mNumInsertions = 0;
+        }
         synchronized (mChunkFiles) {
             for (int i = 0, size = mChunkFiles.size(); i < size; ++i) {
                 try {
@@ -224,19 +613,181 @@ public final class DiskCache {
             }
             mChunkFiles.clear();
         }
-        if (mIndexMap != null) {
-            synchronized (mIndexMap) {
-                if (mIndexMap != null) {
-                    mIndexMap.clear();
+        for (LongSparseArray<Record> stripe : mIndexStripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private LongSparseArray<Record> getStripe(long key) {
+        return mIndexStripes[(int) (key ^ (key >>> 32)) & (NUM_INDEX_STRIPES - 1)];
+    }
+
+    private Record getRecord(long key) {
+        final LongSparseArray<Record> stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    private int getNumRecords() {
+        int numRecords = 0;
+        for (LongSparseArray<Record> stripe : mIndexStripes) {
+            synchronized (stripe) {
+                numRecords += stripe.size();
+            }
+        }
+        return numRecords;
+    }
+
+    // Returns the records stored in the given chunks, or all records if
+    // chunks is null.
+    private ArrayList<Entry> getEntries(LongSparseArray<Chunk> chunks) {
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (LongSparseArray<Record> stripe : mIndexStripes) {
+            synchronized (stripe) {
+                for (int i = 0, size = stripe.size(); i < size; ++i) {
+                    final Record record = stripe.valueAt(i);
+                    if (chunks == null || chunks.get(record.chunk) != null) {
+                        entries.add(new Entry(stripe.keyAt(i), record));
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void publish(long key, Record record, Record replacedRecord) {
+        final LongSparseArray<Record> stripe = getStripe(key);
+        synchronized (mJournalLock) {
+            synchronized (stripe) {
+                final Record oldRecord = stripe.get(key);
+                stripe.put(key, record);
+                synchronized (mAllocationLock) {
+                    account(oldRecord, record);
+                    account(replacedRecord, null);
                 }
             }
+            appendPutToJournal(key, record);
         }
     }
 
+    // Replaces the record for the given key only if it is still the expected
+    // one. A null record removes the key.
+    private boolean replace(long key, Record expectedRecord, Record record) {
+        final LongSparseArray<Record> stripe = getStripe(key);
+        synchronized (mJournalLock) {
+            synchronized (stripe) {
+                if (stripe.get(key) != expectedRecord) {
+                    return false;
+                }
+                if (record != null) {
+                    stripe.put(key, record);
+                } else {
+                    stripe.remove(key);
+                }
+                synchronized (mAllocationLock) {
+                    account(expectedRecord, record);
+                }
+            }
+            if (record != null) {
+                appendPutToJournal(key, record);
+            } else {
+                appendDeleteToJournal(key);
+            }
+            return true;
+        }
+    }
+
+    // Callers must hold mAllocationLock.
+    private void account(Record oldRecord, Record newRecord) {
+        if (oldRecord != null) {
+            final Chunk chunk = mChunks.get(oldRecord.chunk);
+            if (chunk != null) {
+                chunk.liveBytes -= oldRecord.sizeOnDisk;
+            }
+            mLiveBytes -= oldRecord.sizeOnDisk;
+        }
+        if (newRecord != null) {
+            final Chunk chunk = mChunks.get(newRecord.chunk);
+            if (chunk != null) {
+                chunk.liveBytes += newRecord.sizeOnDisk;
+            }
+            mLiveBytes += newRecord.sizeOnDisk;
+        }
+    }
+
+    // Reserves space for a record at the end of the tail chunk and returns
+    // its location as (chunk << 32 | offset). The chunk cannot be compacted
+    // until the reservation is released.
+    private long reserve(int size) {
+        synchronized (mAllocationLock) {
+            final int chunkNumber = mTailChunk;
+            final int offset = mTailOffset;
+            mTailOffset += size;
+            Chunk chunk = mChunks.get(chunkNumber);
+            if (chunk == null) {
+                chunk = new Chunk();
+                mChunks.put(chunkNumber, chunk);
+            }
+            chunk.length = mTailOffset;
+            ++chunk.numPendingWrites;
+            if (mTailOffset > CHUNK_SIZE) {
+                startTailChunk();
+            }
+            return ((long) chunkNumber << 32) | offset;
+        }
+    }
+
+    // Releases a reservation once its bytes are written. If the write failed
+    // and nothing was reserved after it, its space is given back, otherwise
+    // it is dead space that compaction reclaims.
+    private void release(long location, int size, boolean written) {
+        final int chunkNumber = (int) (location >>> 32);
+        final int offset = (int) location;
+        synchronized (mAllocationLock) {
+            final Chunk chunk = mChunks.get(chunkNumber);
+            if (chunk != null) {
+                --chunk.numPendingWrites;
+                if (!written && chunk.length == offset + size) {
+                    chunk.length = offset;
+                    if (chunkNumber == mTailChunk) {
+                        mTailOffset = offset;
+                    }
+                }
+            }
+        }
+    }
+
+    // Callers must hold mAllocationLock.
+    private void startTailChunk() {
+        // Chunk numbers are kept in ascending order, so the first gap is the
+        // lowest free number.
+        int chunkNumber = 0;
+        for (int i = 0, size = mChunks.size(); i < size; ++i) {
+            if (mChunks.keyAt(i) != chunkNumber) {
+                break;
+            }
+            ++chunkNumber;
+        }
+        mTailChunk = chunkNumber;
+        mTailOffset = 0;
+        mChunks.put(chunkNumber, new Chunk());
+    }
+
     private String getIndexFilePath() {
         return mCacheDirectoryPath + INDEX_FILE_NAME;
     }
 
+    private String getJournalFilePath() {
+        return mCacheDirectoryPath + JOURNAL_FILE_NAME;
+    }
+
+    private String getChunkFilePath(int chunk) {
+        return mCacheDirectoryPath + CHUNK_FILE_PREFIX + chunk;
+    }
+
     private void loadIndex() {
         final String indexFilePath = getIndexFilePath();
         try {
@@ -253,29 +804,40 @@ public final class DiskCache {
                 Log.e(TAG, "Index file appears to be corrupt (" + magic + " != " + INDEX_HEADER_MAGIC + "), " + indexFilePath);
                 valid = false;
             }
-            if (valid && version != INDEX_HEADER_VERSION) {
+            if (valid && version != INDEX_HEADER_VERSION && version != INDEX_HEADER_VERSION_WITHOUT_ACCESS_TIME) {
                 // Future versions can implement upgrade in this case.
                 Log.e(TAG, "Index file version " + version + " not supported");
                 valid = false;
             }
             if (valid) {
-                mTailChunk = dataInput.readShort();
+                // The stored tail chunk is not used, a new tail is started
+                // once the chunks on disk have been registered.
+                dataInput.readShort();
             }
 
             // Read the entries.
             if (valid) {
-                // Parse the index file body into the in-memory map.
+                // Parse the index file body into the in-memory map. Records
+                // are written stripe by stripe in key order, so appending
+                // keeps each stripe sorted without shifting.
                 final int numEntries = dataInput.readInt();
-                mIndexMap = new LongSparseArray<Record>(numEntries);
-                synchronized (mIndexMap) {
-                    for (int i = 0; i < numEntries; ++i) {
-                        final long key = dataInput.readLong();
-                        final int chunk = dataInput.readShort();
-                        final int offset = dataInput.readInt();
-                        final int size = dataInput.readInt();
-                        final int sizeOnDisk = dataInput.readInt();
-                        final long timestamp = dataInput.readLong();
-                        mIndexMap.append(key, new Record(chunk, offset, size, sizeOnDisk, timestamp));
+                for (int i = 0; i < numEntries; ++i) {
+                    final long key = dataInput.readLong();
+                    final int chunk = dataInput.readShort();
+                    final int offset = dataInput.readInt();
+                    final int size = dataInput.readInt();
+                    final int sizeOnDisk = dataInput.readInt();
+                    final long timestamp = dataInput.readLong();
+                    final Record record = new Record(chunk, offset, size, sizeOnDisk, timestamp);
+                    if (version != INDEX_HEADER_VERSION_WITHOUT_ACCESS_TIME) {
+                        record.lastAccess = dataInput.readLong();
+                    } else {
+                        // Records from older versions are evicted first.
+                        record.lastAccess = 0;
+                    }
+                    final LongSparseArray<Record> stripe = getStripe(key);
+                    synchronized (stripe) {
+                        stripe.append(key, record);
                     }
                 }
             }
@@ -289,13 +851,281 @@ public final class DiskCache {
             // If the file does not exist the cache is empty, so just continue.
         } catch (IOException e) {
             Log.e(TAG, "Unable to read the index file " + indexFilePath);
+        }
+
+        // Apply the changes made after the snapshot was written and fold them
+        // into a new snapshot so that appends start from a clean journal.
+        final int numReplayed = replayJournal();
+
+        // Rebuild the live byte accounting from the records, dropping records
+        // whose chunk is gone and chunks that hold no records.
+        final boolean droppedRecords = registerChunks();
+        synchronized (mJournalLock) {
+            if (numReplayed < 0) {
+                discardJournal();
+            } else if (numReplayed > 0 || droppedRecords) {
+                writeIndex();
+            }
+        }
+    }
+
+    private boolean registerChunks() {
+        final LongSparseArray<Chunk> chunks = new LongSparseArray<Chunk>();
+        final String[] cacheFiles = mCacheDirectory.list();
+        if (cacheFiles != null) {
+            for (String cacheFile : cacheFiles) {
+                if (cacheFile.startsWith(CHUNK_FILE_PREFIX)) {
+                    try {
+                        final int chunkNumber = Integer.parseInt(cacheFile.substring(CHUNK_FILE_PREFIX.length()));
+                        final Chunk chunk = new Chunk();
+                        chunk.length = (int) new File(mCacheDirectory, cacheFile).length();
+                        chunks.put(chunkNumber, chunk);
+                    } catch (NumberFormatException e) {
+                        ;
+                    }
+                }
+            }
+        }
+        long liveBytes = 0;
+        final ArrayList<Long> missingKeys = new ArrayList<Long>();
+        for (LongSparseArray<Record> stripe : mIndexStripes) {
+            synchronized (stripe) {
+                for (int i = 0, size = stripe.size(); i < size; ++i) {
+                    final Record record = stripe.valueAt(i);
+                    final Chunk chunk = chunks.get(record.chunk);
+                    if (chunk == null || record.offset + record.size > chunk.length) {
+                        missingKeys.add(stripe.keyAt(i));
+                    } else {
+                        chunk.liveBytes += record.sizeOnDisk;
+                        liveBytes += record.sizeOnDisk;
+                    }
+                }
+            }
+        }
+        for (int i = 0, size = missingKeys.size(); i < size; ++i) {
+            final long key = missingKeys.get(i);
+            final LongSparseArray<Record> stripe = getStripe(key);
+            synchronized (stripe) {
+                stripe.remove(key);
+            }
+        }
+        for (int i = chunks.size() - 1; i >= 0; --i) {
+            if (chunks.valueAt(i).liveBytes == 0) {
+                final int chunkNumber = (int) chunks.keyAt(i);
+                deleteChunkFile(chunkNumber);
+                chunks.remove(chunkNumber);
+            }
+        }
+        synchronized (mAllocationLock) {
+            mChunks.clear();
+            for (int i = 0, size = chunks.size(); i < size; ++i) {
+                mChunks.append(chunks.keyAt(i), chunks.valueAt(i));
+            }
+            mLiveBytes = liveBytes;
+
+            // Keep appending to a chunk that still has room, if there is one.
+            for (int i = 0, size = mChunks.size(); i < size; ++i) {
+                final Chunk chunk = mChunks.valueAt(i);
+                if (chunk.length < CHUNK_SIZE) {
+                    mTailChunk = (int) mChunks.keyAt(i);
+                    mTailOffset = chunk.length;
+                    return !missingKeys.isEmpty();
+                }
+            }
+            startTailChunk();
+        }
+        return !missingKeys.isEmpty();
+    }
+
+    // Returns the number of entries replayed, or -1 if the journal was not
+    // read cleanly up to its end or is in an older format, in which case
+    // nothing may be appended to it.
+    private int replayJournal() {
+        final String journalFilePath = getJournalFilePath();
+        int numEntries = 0;
+        boolean clean = false;
+        boolean current = true;
+        boolean inEntry = false;
+        DataInputStream dataInput = null;
+        try {
+            final FileInputStream fileInput = new FileInputStream(journalFilePath);
+            final BufferedInputStream bufferedInput = new BufferedInputStream(fileInput, 1024);
+            dataInput = new DataInputStream(bufferedInput);
+
+            // Read the header.
+            final int magic = dataInput.readInt();
+            final int version = dataInput.readInt();
+            if (magic != JOURNAL_HEADER_MAGIC
+                    || (version != JOURNAL_HEADER_VERSION && version != JOURNAL_HEADER_VERSION_WITHOUT_ACCESS_TIME)) {
+                Log.e(TAG, "Journal file appears to be corrupt, ignoring " + journalFilePath);
+                return -1;
+            }
+            current = (version == JOURNAL_HEADER_VERSION);
+
+            // Apply the entries in order. A crash while appending can leave a
+            // partial entry at the end, which terminates the replay.
+            while (true) {
+                final byte op = dataInput.readByte();
+                inEntry = true;
+                final long key = dataInput.readLong();
+                final LongSparseArray<Record> stripe = getStripe(key);
+                if (op == JOURNAL_OP_PUT) {
+                    final int chunk = dataInput.readShort();
+                    final int offset = dataInput.readInt();
+                    final int size = dataInput.readInt();
+                    final int sizeOnDisk = dataInput.readInt();
+                    final long timestamp = dataInput.readLong();
+                    final Record record = new Record(chunk, offset, size, sizeOnDisk, timestamp);
+                    if (version != JOURNAL_HEADER_VERSION_WITHOUT_ACCESS_TIME) {
+                        record.lastAccess = dataInput.readLong();
+                    } else {
+                        // Like the records of an older index, these are
+                        // evicted first.
+                        record.lastAccess = 0;
+                    }
+                    synchronized (stripe) {
+                        stripe.put(key, record);
+                    }
+                } else if (op == JOURNAL_OP_DELETE) {
+                    synchronized (stripe) {
+                        stripe.remove(key);
+                    }
+                } else {
+                    Log.e(TAG, "Unknown journal operation " + op + ", stopping replay of " + journalFilePath);
+                    break;
+                }
+                inEntry = false;
+                ++numEntries;
+            }
+        } catch (FileNotFoundException e) {
+            // No changes since the last snapshot.
+            clean = true;
+        } catch (EOFException e) {
+            // Reached the end of the journal, possibly in a partial entry.
+            clean = !inEntry;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the journal file " + journalFilePath);
         } finally {
-            if (mIndexMap == null) {
-                mIndexMap = new LongSparseArray<Record>();
+            if (dataInput != null) {
+                try {
+                    dataInput.close();
+                } catch (IOException e) {
+                    ;
+                }
             }
         }
+        return (clean && current) ? numEntries : -1;
     }
 
+    private void appendPutToJournal(long key, Record record) {
+        synchronized (mJournalLock) {
+            final DataOutputStream journalOutput = openJournal();
+            if (journalOutput != null) {
+                try {
+                    journalOutput.writeByte(JOURNAL_OP_PUT);
+                    journalOutput.writeLong(key);
+                    journalOutput.writeShort(record.chunk);
+                    journalOutput.writeInt(record.offset);
+                    journalOutput.writeInt(record.size);
+                    journalOutput.writeInt(record.sizeOnDisk);
+                    journalOutput.writeLong(record.timestamp);
+                    journalOutput.writeLong(record.lastAccess);
+                    ++mNumJournalEntries;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to append to the journal file");
+                    discardJournal();
+                }
+            }
+            onJournalEntryAppended();
+        }
+    }
+
+    private void appendDeleteToJournal(long key) {
+        synchronized (mJournalLock) {
+            final DataOutputStream journalOutput = openJournal();
+            if (journalOutput != null) {
+                try {
+                    journalOutput.writeByte(JOURNAL_OP_DELETE);
+                    journalOutput.writeLong(key);
+                    ++mNumJournalEntries;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to append to the journal file");
+                    discardJournal();
+                }
+            }
+            onJournalEntryAppended();
+        }
+    }
+
+    private void onJournalEntryAppended() {
+        if (++mNumInsertions == JOURNAL_FLUSH_INTERVAL) {
+            // Flush the journal at a regular interval. Only the entries
+            // appended since the last flush are written.
+            flush();
+        }
+    }
+
+    // Callers must hold mJournalLock.
+    private void flushJournal() {
+        if (mJournalOutput != null) {
+            try {
+                mJournalOutput.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to flush the journal file, writing a snapshot instead");
+                discardJournal();
+            }
+        }
+    }
+
+    private DataOutputStream openJournal() {
+        if (mJournalOutput == null) {
+            final String journalFilePath = getJournalFilePath();
+            try {
+                final File journalFile = new File(journalFilePath);
+                final boolean exists = journalFile.length() > 0;
+                final FileOutputStream fileOutput = new FileOutputStream(journalFile, true);
+                final BufferedOutputStream bufferedOutput = new BufferedOutputStream(fileOutput, 1024);
+                mJournalOutput = new DataOutputStream(bufferedOutput);
+                if (!exists) {
+                    mJournalOutput.writeInt(JOURNAL_HEADER_MAGIC);
+                    mJournalOutput.writeInt(JOURNAL_HEADER_VERSION);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the journal file " + journalFilePath);
+                mJournalOutput = null;
+            }
+        }
+        return mJournalOutput;
+    }
+
+    // Callers must hold mJournalLock. Replaces a journal that may end in a
+    // torn entry by a snapshot, so that no entry is appended after it. If the
+    // snapshot cannot be written, the old one is deleted as well since it may
+    // point at bytes that were rewritten since.
+    private void discardJournal() {
+        closeJournal();
+        writeIndex();
+        final File journalFile = new File(getJournalFilePath());
+        if (journalFile.exists()) {
+            Log.e(TAG, "Unable to replace the journal by a snapshot, deleting both");
+            journalFile.delete();
+            new File(getIndexFilePath()).delete();
+            mNumJournalEntries = 0;
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalOutput != null) {
+            try {
+                mJournalOutput.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the journal file");
+            }
+            mJournalOutput = null;
+        }
+    }
+
+    // Callers must hold mJournalLock.
     private void writeIndex() {
         File tempFile = null;
         final String tempFilePath = mCacheDirectoryPath;
@@ -311,23 +1141,50 @@ public final class DiskCache {
             final BufferedOutputStream bufferedOutput = new BufferedOutputStream(fileOutput, 1024);
             final DataOutputStream dataOutput = new DataOutputStream(bufferedOutput);
 
+            // Copy out each stripe so that readers are only blocked for the
+            // duration of the copy and not for the file writes.
+            final int numStripes = mIndexStripes.length;
+            final long[][] stripeKeys = new long[numStripes][];
+            final Record[][] stripeRecords = new Record[numStripes][];
+            int numRecords = 0;
+            for (int i = 0; i < numStripes; ++i) {
+                final LongSparseArray<Record> stripe = mIndexStripes[i];
+                synchronized (stripe) {
+                    final int size = stripe.size();
+                    final long[] keys = new long[size];
+                    final Record[] records = new Record[size];
+                    for (int j = 0; j < size; ++j) {
+                        keys[j] = stripe.keyAt(j);
+                        records[j] = stripe.valueAt(j);
+                    }
+                    stripeKeys[i] = keys;
+                    stripeRecords[i] = records;
+                    numRecords += size;
+                }
+            }
+
             // Write the index header.
-            final int numRecords = mIndexMap.size();
             dataOutput.writeInt(INDEX_HEADER_MAGIC);
             dataOutput.writeInt(INDEX_HEADER_VERSION);
-            dataOutput.writeShort(mTailChunk);
+            synchronized (mAllocationLock) {
+                dataOutput.writeShort(mTailChunk);
+            }
             dataOutput.writeInt(numRecords);
 
             // Write the records.
-            for (int i = 0; i < numRecords; ++i) {
-                final long key = mIndexMap.keyAt(i);
-                final Record record = mIndexMap.valueAt(i);
-                dataOutput.writeLong(key);
-                dataOutput.writeShort(record.chunk);
-                dataOutput.writeInt(record.offset);
-                dataOutput.writeInt(record.size);
-                dataOutput.writeInt(record.sizeOnDisk);
-                dataOutput.writeLong(record.timestamp);
+            for (int i = 0; i < numStripes; ++i) {
+                final long[] keys = stripeKeys[i];
+                final Record[] records = stripeRecords[i];
+                for (int j = 0, size = keys.length; j < size; ++j) {
+                    final Record record = records[j];
+                    dataOutput.writeLong(keys[j]);
+                    dataOutput.writeShort(record.chunk);
+                    dataOutput.writeInt(record.offset);
+                    dataOutput.writeInt(record.size);
+                    dataOutput.writeInt(record.sizeOnDisk);
+                    dataOutput.writeLong(record.timestamp);
+                    dataOutput.writeLong(record.lastAccess);
+                }
             }
 
             // Close the file.
@@ -335,8 +1192,13 @@ public final class DiskCache {
 
             // Log.d(TAG, "Wrote index with " + numRecords + " records.");
 
-            // Atomically overwrite the old index file.
-            tempFile.renameTo(new File(indexFilePath));
+            // Atomically overwrite the old index file. The journal entries are
+            // now part of the snapshot, so the journal starts over.
+            if (tempFile.renameTo(new File(indexFilePath))) {
+                closeJournal();
+                new File(getJournalFilePath()).delete();
+                mNumJournalEntries = 0;
+            }
         } catch (Exception e) {
             // Was unable to perform the operation, we delete the temp file
             Log.e(TAG, "Unable to write the index file " + indexFilePath);
@@ -344,23 +1206,83 @@ public final class DiskCache {
         }
     }
 
-    private RandomAccessFile getChunkFile(int chunk) {
-        RandomAccessFile chunkFile = null;
-        synchronized (mChunkFiles) {
-            chunkFile = mChunkFiles.get(chunk);
+    // Reads the bytes of a record into the given buffer, or a new one if it
+    // is too small. Returns null if the chunk could not be read, which can
+    // happen when the record was compacted away in the meantime.
+    private ByteBuffer readRecord(Record record, ByteBuffer buffer) {
+        try {
+            final RandomAccessFile chunkFile = getChunkFile(record.chunk, false);
+            if (chunkFile == null) {
+                return null;
+            }
+            final int size = record.size;
+            if (buffer == null || buffer.capacity() < size || !buffer.hasArray()) {
+                buffer = ByteBuffer.wrap(new byte[size]);
+            }
+            buffer.clear();
+            buffer.limit(size);
+            readFully(chunkFile, buffer, record.offset);
+            buffer.flip();
+            return buffer;
+        } catch (Exception e) {
+            return null;
         }
-        if (chunkFile == null) {
-            final String chunkFilePath = mCacheDirectoryPath + CHUNK_FILE_PREFIX + chunk;
-            try {
-                chunkFile = new RandomAccessFile(chunkFilePath, "rw");
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Unable to create or open the chunk file " + chunkFilePath);
+    }
+
+    private RandomAccessFile getChunkFile(int chunk, boolean create) {
+        synchronized (mChunkFiles) {
+            RandomAccessFile chunkFile = mChunkFiles.get(chunk);
+            if (chunkFile == null) {
+                final String chunkFilePath = getChunkFilePath(chunk);
+                if (!create && !new File(chunkFilePath).exists()) {
+                    return null;
+                }
+                try {
+                    chunkFile = new RandomAccessFile(chunkFilePath, "rw");
+                    mChunkFiles.put(chunk, chunkFile);
+                } catch (FileNotFoundException e) {
+                    Log.e(TAG, "Unable to create or open the chunk file " + chunkFilePath);
+                }
             }
-            synchronized (mChunkFiles) {
-                mChunkFiles.put(chunk, chunkFile);
+            return chunkFile;
+        }
+    }
+
+    private void deleteChunkFile(int chunk) {
+        // The file is deleted under the lock so that it cannot be reopened
+        // between being closed and deleted.
+        synchronized (mChunkFiles) {
+            final RandomAccessFile chunkFile = mChunkFiles.get(chunk);
+            if (chunkFile != null) {
+                try {
+                    chunkFile.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close chunk file");
+                }
+                mChunkFiles.remove(chunk);
             }
+            new File(getChunkFilePath(chunk)).delete();
+        }
+    }
+
+    // The chunk files are shared by every thread, and their channels are
+    // closed for all of them when a thread is interrupted during an operation.
+    // RandomAccessFile I/O cannot be interrupted, so reads and writes use it
+    // instead with the file locked while it is positioned.
+    private static void readFully(RandomAccessFile file, ByteBuffer buffer, long position) throws IOException {
+        synchronized (file) {
+            file.seek(position);
+            file.readFully(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
         }
-        return chunkFile;
+        buffer.position(buffer.limit());
+    }
+
+    private static void writeFully(RandomAccessFile file, ByteBuffer buffer, long position) throws IOException {
+        synchronized (file) {
+            file.seek(position);
+            file.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        buffer.position(buffer.limit());
     }
 
     private static final class Record {
@@ -370,6 +1292,7 @@ public final class DiskCache {
             this.size = size;
             this.timestamp = timestamp;
             this.sizeOnDisk = sizeOnDisk;
+            this.lastAccess = System.currentTimeMillis();
         }
 
         public final long timestamp;
@@ -377,5 +1300,27 @@ public final class DiskCache {
         public final int offset;
         public final int size;
         public final int sizeOnDisk;
+        // Written by readers without a lock, so the eviction order is only
+        // approximately least recently used. Reads only reach the disk when
+        // the index is next written, so the order after a restart is coarser.
+        public volatile long lastAccess;
+    }
+
+    private static final class Chunk {
+        public int liveBytes;
+        public int length;
+        public int numPendingWrites;
+    }
+
+    private static final class Entry {
+        public Entry(long key, Record record) {
+            this.key = key;
+            this.record = record;
+            this.lastAccess = record.lastAccess;
+        }
+
+        public final long key;
+        public final Record record;
+        public final long lastAccess;
     }
 }
@@ -150,8 +150,8 @@ public final class DisplayItem {
             if (parentMediaSet != null && parentMediaSet.mDataSource.getThumbnailCache() == LocalDataSource.sThumbnailCache) {
                 if (mItemRef.mId != Shared.INVALID && mItemRef.mId != 0) {
                     texture = new MediaItemTexture(context, null, mItemRef);
-                } else if (mItemRef.mContentUri != null) {
-                    texture = new UriTexture(mItemRef.mContentUri);
+                } else if (mItemRef.getContentUri() != null) {
+                    texture = new UriTexture(mItemRef.getContentUri());
                 }
             } else {
                 texture = new UriTexture(mItemRef.mScreennailUri);
@@ -354,7 +354,7 @@ public final class DisplayItem {
     public final Texture getHiResImage(Context context) {
         UriTexture texture = mHiResImage;
         if (texture == null) {
-            texture = new UriTexture(mItemRef.mContentUri);
+            texture = new UriTexture(mItemRef.getContentUri());
             texture.setCacheId(Utils.Crc64Long(mItemRef.mFilePath));
             texture.mIsHiRes = true;
             mHiResImage = texture;
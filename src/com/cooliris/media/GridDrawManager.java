@@ -144,6 +144,13 @@ public final class GridDrawManager {
         for (int itrSlotIndex = firstBufferedVisibleSlot; itrSlotIndex <= lastBufferedVisibleSlot; ++itrSlotIndex) {
             int index = itrSlotIndex;
             boolean priority = !(index < firstVisibleSlot || index > lastVisibleSlot);
+            // Slots closer to the visible range are loaded first.
+            int loadPriority = TextureLoadScheduler.PRIORITY_VISIBLE;
+            if (index < firstVisibleSlot) {
+                loadPriority += firstVisibleSlot - index;
+            } else if (index > lastVisibleSlot) {
+                loadPriority += index - lastVisibleSlot;
+            }
             int startSlotIndex = 0;
             final int maxDisplayedItemsPerSlot = (index == mCurrentScaleSlot) ? GridLayer.MAX_DISPLAYED_ITEMS_PER_FOCUSED_SLOT
                     : GridLayer.MAX_DISPLAYED_ITEMS_PER_SLOT;
@@ -179,7 +186,7 @@ public final class GridDrawManager {
                         view.bind(texture);
                     } else if (texture != null && !texture.isLoaded() && numTexturesQueued <= 6) {
                         boolean isCached = texture.isCached();
-                        view.prime(texture, priority);
+                        view.prime(texture, loadPriority);
                         view.bind(texture);
                         if (priority && isCached && texture.mState != Texture.STATE_ERROR)
                             ++numTexturesQueued;
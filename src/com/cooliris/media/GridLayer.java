@@ -730,7 +730,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
                             ArrayList<MediaItem> items = set.getItems();
                             int numItems = items.size();
                             for (int j = 0; j < numItems; ++j) {
-                                String itemUri = items.get(j).mContentUri;
+                                String itemUri = items.get(j).getContentUri();
                                 if (itemUri != null && mRequestFocusContentUri != null) {
                                     if (itemUri.equals(mRequestFocusContentUri)) {
                                         if (mState == STATE_FULL_SCREEN) {
@@ -763,6 +763,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
     @Override
     public void handleLowMemory() {
         clearUnusedThumbnails();
+        MediaItemTexture.sMemoryCache.clear();
         GridDrawables.sStringTextureTable.clear();
         //mBackground.clearCache();
     }
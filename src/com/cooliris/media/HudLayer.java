@@ -332,14 +332,14 @@ public final class HudLayer extends Layer {
                         public void run() {
                             ArrayList<MediaBucket> buckets = mGridLayer.getSelectedBuckets();
                             MediaItem item = MediaBucketList.getFirstItemSelection(buckets);
-                            if (item == null || item.mContentUri == null) {
+                            if (item == null || item.getContentUri() == null) {
                                 return;
                             }
                             mGridLayer.deselectAll();
                             if (item.mParentMediaSet.mPicasaAlbumId != Shared.INVALID) {
                                 final Intent intent = new Intent("android.intent.action.ATTACH_DATA");
                                 intent.setClass(mContext, Photographs.class);
-                                intent.setData(Uri.parse(item.mContentUri));
+                                intent.setData(Uri.parse(item.getContentUri()));
                                 intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
                                 ((Activity) mContext).startActivityForResult(intent, 0);
                             }
@@ -353,18 +353,18 @@ public final class HudLayer extends Layer {
                         public void run() {
                             ArrayList<MediaBucket> buckets = mGridLayer.getSelectedBuckets();
                             MediaItem item = MediaBucketList.getFirstItemSelection(buckets);
-                            if (item == null || item.mContentUri == null) {
+                            if (item == null || item.getContentUri() == null) {
                                 return;
                             }
                             mGridLayer.deselectAll();
                             if (item.mParentMediaSet.mPicasaAlbumId != Shared.INVALID) {
                                 final Intent intent = new Intent("android.intent.action.ATTACH_DATA");
                                 intent.setClass(mContext, Photographs.class);
-                                intent.setData(Uri.parse(item.mContentUri));
+                                intent.setData(Uri.parse(item.getContentUri()));
                                 intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
                                 ((Activity) mContext).startActivityForResult(intent, 0);
                             } else {
-                                Intent intent = Util.createSetAsIntent(Uri.parse(item.mContentUri), item.mMimeType);
+                                Intent intent = Util.createSetAsIntent(Uri.parse(item.getContentUri()), item.mMimeType);
                                 intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
                                 ((Activity) mContext).startActivity(Intent.createChooser(intent, mContext
                                         .getText(Res.string.set_image)));
@@ -376,13 +376,13 @@ public final class HudLayer extends Layer {
                         public void run() {
                             ArrayList<MediaBucket> buckets = mGridLayer.getSelectedBuckets();
                             MediaItem item = MediaBucketList.getFirstItemSelection(buckets);
-                            if (item == null || item.mContentUri == null) {
+                            if (item == null || item.getContentUri() == null) {
                                 return;
                             }
                             mGridLayer.deselectAll();
                             final Intent intent = new Intent("com.android.camera.action.CROP");
                             intent.setClass(mContext, CropImage.class);
-                            intent.setData(Uri.parse(item.mContentUri));
+                            intent.setData(Uri.parse(item.getContentUri()));
                             ((Activity) mContext).startActivityForResult(intent, CropImage.CROP_MSG_INTERNAL);
                         }
 
@@ -392,12 +392,12 @@ public final class HudLayer extends Layer {
                         public void run() {
                             ArrayList<MediaBucket> buckets = mGridLayer.getSelectedBuckets();
                             MediaItem item = MediaBucketList.getFirstItemSelection(buckets);
-                            if (item == null || item.mContentUri == null) {
+                            if (item == null || item.getContentUri() == null) {
                                 return;
                             }
                             mGridLayer.deselectAll();
                             String[] proj = { MediaStore.Images.Media.DATA };
-                            Cursor actualimagecursor = ((Activity) mContext).managedQuery(Uri.parse(item.mContentUri), proj, null, null, null);
+                            Cursor actualimagecursor = ((Activity) mContext).managedQuery(Uri.parse(item.getContentUri()), proj, null, null, null);
                             int actual_image_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA); 
                             actualimagecursor.moveToFirst();
                             String img_path = actualimagecursor.getString(actual_image_column_index);
@@ -755,8 +755,8 @@ public final class HudLayer extends Layer {
                             mimeType = "*/*";
                     }
                     // add this uri
-                    if (item.mContentUri != null) {
-                        Uri uri = Uri.parse(item.mContentUri);
+                    if (item.getContentUri() != null) {
+                        Uri uri = Uri.parse(item.getContentUri());
                         uris.add(uri);
                     }
                 }
@@ -17,7 +17,6 @@
 package com.cooliris.media;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -27,7 +26,6 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
 import android.provider.MediaStore;
@@ -36,12 +34,17 @@ import android.provider.MediaStore.Video;
 import android.util.Log;
 
 import com.cooliris.cache.CacheService;
+import com.cooliris.cache.ExifIndex;
 
 public class LocalDataSource implements DataSource {
     private static final String TAG = "LocalDataSource";
     public static final String URI_ALL_MEDIA = MediaStore.Images.Media.EXTERNAL_CONTENT_URI.toString();
-    public static final DiskCache sThumbnailCache = new DiskCache("local-image-thumbs");
-    public static final DiskCache sThumbnailCacheVideo = new DiskCache("local-video-thumbs");
+    // Byte budgets of the thumbnail caches, beyond which the least recently
+    // viewed thumbnails are evicted.
+    private static final long THUMBNAIL_CACHE_MAX_SIZE = 128 * 1024 * 1024;
+    private static final long THUMBNAIL_CACHE_VIDEO_MAX_SIZE = 32 * 1024 * 1024;
+    public static final DiskCache sThumbnailCache = new DiskCache("local-image-thumbs", THUMBNAIL_CACHE_MAX_SIZE);
+    public static final DiskCache sThumbnailCacheVideo = new DiskCache("local-video-thumbs", THUMBNAIL_CACHE_VIDEO_MAX_SIZE);
 
     public static final String CAMERA_STRING = "Camera";
     public static final String DOWNLOAD_STRING = "download";
@@ -121,7 +124,7 @@ public class LocalDataSource implements DataSource {
     }
 
     public void loadItemsForSet(MediaFeed feed, MediaSet parentSet, int rangeStart, int rangeEnd) {
-        if (parentSet.mNumItemsLoaded > 0 && mDone) {
+        if (parentSet.mNumItemsLoaded > 0 && parentSet.mNumItemsLoaded >= parentSet.getNumExpectedItems() && mDone) {
             return;
         }
         if (mSingleUri && !mDone) {
@@ -156,13 +159,13 @@ public class LocalDataSource implements DataSource {
                 if (newItem != null) {
                     item = newItem;
                 } else {
-                    item.mContentUri = mUri;
+                    item.setContentUri(mUri);
                     item.mThumbnailUri = mUri;
                     item.mScreennailUri = mUri;
                     feed.setSingleImageMode(true);
                 }
             } else {
-                item.mContentUri = mUri;
+                item.setContentUri(mUri);
                 item.mThumbnailUri = mUri;
                 item.mScreennailUri = mUri;
                 feed.setSingleImageMode(true);
@@ -171,11 +174,10 @@ public class LocalDataSource implements DataSource {
                 feed.addItemToMediaSet(item, parentSet);
                 // Parse EXIF orientation if a local file.
                 if (mUri.startsWith("file://")) {
-                    try {
-                        ExifInterface exif = new ExifInterface(Uri.parse(mUri).getPath());
-                        item.mRotation = Shared.exifOrientationToDegrees(exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
-                                ExifInterface.ORIENTATION_NORMAL));
-                    } catch (IOException e) {
+                    final ExifIndex.Entry exif = ExifIndex.get(Uri.parse(mUri).getPath());
+                    if (exif != null) {
+                        item.mRotation = Shared.exifOrientationToDegrees(exif.orientation);
+                    } else {
                         Log.i(TAG, "Error reading Exif information, probably not a jpeg.");
                     }
                 }
@@ -184,7 +186,9 @@ public class LocalDataSource implements DataSource {
                 if (dateTaken != -1L) {
                     item.mDateTakenInMs = dateTaken;
                 }
-                CacheService.loadMediaItemsIntoMediaFeed(mContext, feed, parentSet, rangeStart, rangeEnd, mIncludeImages, mIncludeVideos);
+                // The whole bucket is loaded at once in this mode.
+                CacheService.loadMediaItemsIntoMediaFeed(mContext, feed, parentSet, 0, Integer.MAX_VALUE, mIncludeImages,
+                        mIncludeVideos);
                 ArrayList<MediaItem> items = parentSet.getItems();
                 int numItems = items.size();
                 if (numItems == 1 && parentSet.mNumItemsLoaded > 1) {
@@ -314,7 +318,7 @@ public class LocalDataSource implements DataSource {
                     try {
                         for (int j = 0; j < numItems; ++j) {
                             MediaItem item = items.get(j);
-                            cr.delete(Uri.parse(item.mContentUri), null, null);
+                            cr.delete(Uri.parse(item.getContentUri()), null, null);
                         }
                     } catch (Exception e) {
                         // If the database operation failed for any reason.
@@ -359,14 +363,14 @@ public class LocalDataSource implements DataSource {
             ContentValues values = new ContentValues();
             values.put(Images.ImageColumns.ORIENTATION, rotationString);
             try {
-                cr.update(Uri.parse(item.mContentUri), values, null, null);
+                cr.update(Uri.parse(item.getContentUri()), values, null, null);
             } catch (Exception e) {
                 // If the database operation fails for any reason.
                 ;
             }
 
 //            // Update the file EXIF information.
-//            Uri uri = Uri.parse(item.mContentUri);
+//            Uri uri = Uri.parse(item.getContentUri());
 //            String uriScheme = uri.getScheme();
 //            if (uriScheme.equals("file") || uriScheme.equals("content")) {
 //                final String path = (uriScheme.equals("file")) ? uri.getPath() : item.mFilePath;
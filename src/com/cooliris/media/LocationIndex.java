@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.media;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Spatial index of the items of a MediaSet that have a location. The items
+ * are bucketed in a grid of CELL_SIZE_IN_DEGREES cells, and a query returns
+ * the items of the cells that intersect the bounding box of a circle. Only the
+ * cells holding items are stored, so a query visits at most as many buckets
+ * as there are places in the set.
+ */
+final class LocationIndex {
+    // About 28 km at the equator.
+    private static final double CELL_SIZE_IN_DEGREES = 0.25;
+    private static final int NUM_LAT_CELLS = (int) Math.ceil((LocationMediaFilter.LAT_MAX - LocationMediaFilter.LAT_MIN)
+            / CELL_SIZE_IN_DEGREES) + 1;
+    private static final int NUM_LON_CELLS = (int) Math.ceil((LocationMediaFilter.LON_MAX - LocationMediaFilter.LON_MIN)
+            / CELL_SIZE_IN_DEGREES);
+
+    private final LongHashMap<Bucket> mCells = new LongHashMap<Bucket>();
+    private final ArrayList<Bucket> mBuckets = new ArrayList<Bucket>();
+    // Order of the next item added, the candidates of a query are returned in
+    // the order their items were added.
+    private long mNextOrder = 0;
+
+    private static final class Bucket {
+        final long mCell;
+        MediaItem[] mItems = new MediaItem[4];
+        long[] mOrders = new long[4];
+        int mSize;
+
+        Bucket(long cell) {
+            mCell = cell;
+        }
+    }
+
+    public synchronized void add(MediaItem item) {
+        if (!item.isLatLongValid()) {
+            return;
+        }
+        final long cell = getCell(item.mLatitude, item.mLongitude);
+        Bucket bucket = mCells.get(cell);
+        if (bucket == null) {
+            bucket = new Bucket(cell);
+            mCells.put(cell, bucket);
+            mBuckets.add(bucket);
+        }
+        final int size = bucket.mSize;
+        if (size == bucket.mItems.length) {
+            final MediaItem[] items = new MediaItem[size * 2];
+            final long[] orders = new long[size * 2];
+            System.arraycopy(bucket.mItems, 0, items, 0, size);
+            System.arraycopy(bucket.mOrders, 0, orders, 0, size);
+            bucket.mItems = items;
+            bucket.mOrders = orders;
+        }
+        bucket.mItems[size] = item;
+        bucket.mOrders[size] = mNextOrder++;
+        bucket.mSize = size + 1;
+    }
+
+    public synchronized void remove(MediaItem item) {
+        if (!item.isLatLongValid()) {
+            return;
+        }
+        final long cell = getCell(item.mLatitude, item.mLongitude);
+        final Bucket bucket = mCells.get(cell);
+        if (bucket == null) {
+            return;
+        }
+        final MediaItem[] items = bucket.mItems;
+        final int last = bucket.mSize - 1;
+        for (int i = 0; i <= last; ++i) {
+            if (items[i] == item) {
+                items[i] = items[last];
+                bucket.mOrders[i] = bucket.mOrders[last];
+                items[last] = null;
+                bucket.mSize = last;
+                break;
+            }
+        }
+        if (bucket.mSize == 0) {
+            mCells.remove(cell);
+            mBuckets.remove(bucket);
+        }
+    }
+
+    public synchronized void clear() {
+        mCells.clear();
+        mBuckets.clear();
+    }
+
+    /**
+     * Adds the items that may lie within the given distance in meters of the
+     * center to the list, in the order they were added to the index. The
+     * candidates lie in the cells intersecting the bounding box of the circle,
+     * the exact distance is left to the caller.
+     */
+    public synchronized void query(double centerLatitude, double centerLongitude, double radius, ArrayList<MediaItem> candidates) {
+        // Bounding box of the circle, see "Finding Points Within a Distance of
+        // a Latitude/Longitude Using Bounding Coordinates" by J. Matuschek.
+        final double angularRadius = radius / LocationMediaFilter.EARTH_RADIUS_METERS;
+        final double latitudeRadius = Math.toDegrees(angularRadius);
+        final double minLatitude = centerLatitude - latitudeRadius;
+        final double maxLatitude = centerLatitude + latitudeRadius;
+        int minLonCell = 0;
+        int numLonCells = NUM_LON_CELLS;
+        if (minLatitude > LocationMediaFilter.LAT_MIN && maxLatitude < LocationMediaFilter.LAT_MAX) {
+            final double sinRatio = Math.sin(angularRadius) / Math.cos(Math.toRadians(centerLatitude));
+            if (sinRatio < 1.0) {
+                final double longitudeRadius = Math.toDegrees(Math.asin(sinRatio));
+                minLonCell = getLonCell(centerLongitude - longitudeRadius);
+                int lonCellSpan = getLonCell(centerLongitude + longitudeRadius) - minLonCell;
+                if (lonCellSpan < 0) {
+                    // The box crosses the 180th meridian.
+                    lonCellSpan += NUM_LON_CELLS;
+                }
+                numLonCells = lonCellSpan + 1;
+            }
+        }
+        final int minLatCell = getLatCell(minLatitude);
+        final int numLatCells = getLatCell(maxLatitude) - minLatCell + 1;
+
+        final ArrayList<Bucket> buckets = mBuckets;
+        final int numBuckets = buckets.size();
+        final ArrayList<Bucket> hits = new ArrayList<Bucket>();
+        if ((long) numLatCells * numLonCells > numBuckets) {
+            // The box covers more cells than there are buckets.
+            for (int i = 0; i < numBuckets; ++i) {
+                final Bucket bucket = buckets.get(i);
+                final int latCell = (int) (bucket.mCell / NUM_LON_CELLS);
+                int lonOffset = (int) (bucket.mCell % NUM_LON_CELLS) - minLonCell;
+                if (lonOffset < 0) {
+                    lonOffset += NUM_LON_CELLS;
+                }
+                if (latCell >= minLatCell && latCell - minLatCell < numLatCells && lonOffset < numLonCells) {
+                    hits.add(bucket);
+                }
+            }
+        } else {
+            for (int latCell = minLatCell; latCell < minLatCell + numLatCells; ++latCell) {
+                for (int i = 0; i < numLonCells; ++i) {
+                    final int lonCell = (minLonCell + i) % NUM_LON_CELLS;
+                    final Bucket bucket = mCells.get((long) latCell * NUM_LON_CELLS + lonCell);
+                    if (bucket != null) {
+                        hits.add(bucket);
+                    }
+                }
+            }
+        }
+        addInOrder(hits, candidates);
+    }
+
+    private static void addInOrder(ArrayList<Bucket> hits, ArrayList<MediaItem> candidates) {
+        final int numHits = hits.size();
+        int numItems = 0;
+        for (int i = 0; i < numHits; ++i) {
+            numItems += hits.get(i).mSize;
+        }
+        if (numItems == 0) {
+            return;
+        }
+        // Sort the orders with the index of their item packed in the low bits.
+        final long[] keys = new long[numItems];
+        final MediaItem[] items = new MediaItem[numItems];
+        int position = 0;
+        for (int i = 0; i < numHits; ++i) {
+            final Bucket bucket = hits.get(i);
+            for (int j = 0; j < bucket.mSize; ++j) {
+                items[position] = bucket.mItems[j];
+                keys[position] = (bucket.mOrders[j] << 32) | position;
+                ++position;
+            }
+        }
+        Arrays.sort(keys);
+        candidates.ensureCapacity(candidates.size() + numItems);
+        for (int i = 0; i < numItems; ++i) {
+            candidates.add(items[(int) (keys[i] & 0xFFFFFFFFL)]);
+        }
+    }
+
+    private static long getCell(double latitude, double longitude) {
+        return (long) getLatCell(latitude) * NUM_LON_CELLS + getLonCell(longitude);
+    }
+
+    private static int getLatCell(double latitude) {
+        final int cell = (int) Math.floor((latitude - LocationMediaFilter.LAT_MIN) / CELL_SIZE_IN_DEGREES);
+        return Shared.clamp(cell, 0, NUM_LAT_CELLS - 1);
+    }
+
+    private static int getLonCell(double longitude) {
+        int cell = (int) Math.floor((longitude - LocationMediaFilter.LON_MIN) / CELL_SIZE_IN_DEGREES) % NUM_LON_CELLS;
+        if (cell < 0) {
+            cell += NUM_LON_CELLS;
+        }
+        return cell;
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.cooliris.media;
 
+import java.util.ArrayList;
+
 public class LocationMediaFilter extends MediaFilter {
     private double mRadius;
     private double mCenterLat;
@@ -84,4 +86,21 @@ public class LocationMediaFilter extends MediaFilter {
         }
         return false;
     }
+
+    @Override
+    public void filter(MediaSet set, ArrayList<MediaItem> passedItems) {
+        // Only the items in the cells around the circle are measured.
+        final int first = passedItems.size();
+        set.queryLocation(mCenterLat, mCenterLon, mRadius, passedItems);
+        int numPassed = first;
+        for (int i = first, numCandidates = passedItems.size(); i < numCandidates; ++i) {
+            final MediaItem item = passedItems.get(i);
+            if (pass(item)) {
+                passedItems.set(numPassed++, item);
+            }
+        }
+        for (int i = passedItems.size() - 1; i >= numPassed; --i) {
+            passedItems.remove(i);
+        }
+    }
 }
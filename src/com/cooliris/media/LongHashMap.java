@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.media;
+
+/**
+ * Maps longs to Objects with open addressing and linear probing. Unlike
+ * LongSparseArray, inserting is constant time whatever the order of the keys,
+ * which matters when the ids of an album arrive in date order. The keys are
+ * not boxed and removals shift the following entries back instead of leaving
+ * tombstones. Null values are not stored.
+ */
+public final class LongHashMap<E> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    // A null value marks an empty slot.
+    private Object[] mValues;
+    private int mSize;
+    private int mThreshold;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * Creates a map that holds the given number of mappings without growing.
+     */
+    public LongHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (E) value;
+            }
+        }
+    }
+
+    /**
+     * Maps the key to the value, replacing the previous mapping of the key.
+     * A null value removes the mapping.
+     */
+    public void put(long key, E value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++mSize > mThreshold) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    public void remove(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (;;) {
+            if (values[i] == null) {
+                return;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        --mSize;
+        // Move back the entries of the probe sequence that follows the hole
+        // when the hole lies between their home slot and their slot.
+        for (;;) {
+            values[i] = null;
+            int j = i;
+            for (;;) {
+                j = (j + 1) & mask;
+                if (values[j] == null) {
+                    return;
+                }
+                final int home = hash(keys[j]) & mask;
+                if ((j > i) ? (home <= i || home > j) : (home <= i && home > j)) {
+                    break;
+                }
+            }
+            keys[i] = keys[j];
+            values[i] = values[j];
+            i = j;
+        }
+    }
+
+    public void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        final Object[] values = mValues;
+        for (int i = 0, length = values.length; i < length; ++i) {
+            values[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mThreshold = capacity * 3 / 4;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        allocate(capacity);
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = capacity - 1;
+        for (int i = 0, length = oldKeys.length; i < length; ++i) {
+            final Object value = oldValues[i];
+            if (value != null) {
+                final long key = oldKeys[i];
+                int j = hash(key) & mask;
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = key;
+                values[j] = value;
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // Ids are mostly consecutive, spread them over the table.
+        final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -20,18 +20,43 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 public final class MediaBucketList {
-    private static final Boolean TRUE = new Boolean(true);
-    private static final Boolean FALSE = new Boolean(false);
-
     private ArrayList<MediaBucket> mBuckets = new ArrayList<MediaBucket>(1024);
-    private boolean mDirtyCount;
-    private boolean mDirtyAcceleratedLookup;
-    private int mCount;
-    private HashMap<MediaItem, Boolean> mCachedItems = new HashMap<MediaItem, Boolean>(1024);
+    private HashMap<MediaSet, Selection> mSelections = new HashMap<MediaSet, Selection>();
 
     // If only albums are selected, a bucket contains mediaSets.
     // If items are selected, a bucket contains mediaSets and mediaItems.
 
+    // The selected items of a set, keyed by id and media type, so that
+    // adding, removing and finding an item take constant time. The items of
+    // the bucket are kept in selection order. Removed items are left in it
+    // until the buckets are next read.
+    private static final class Selection {
+        final MediaBucket mBucket;
+        // Null if the whole set is selected.
+        LongHashMap<MediaItem> mItems;
+        boolean mHasRemovedItems;
+
+        Selection(MediaBucket bucket) {
+            mBucket = bucket;
+        }
+
+        void compact() {
+            final ArrayList<MediaItem> items = mBucket.mediaItems;
+            final LongHashMap<MediaItem> selectedItems = mItems;
+            int numItems = 0;
+            for (int i = 0, size = items.size(); i < size; ++i) {
+                final MediaItem item = items.get(i);
+                if (selectedItems.get(getKey(item)) == item) {
+                    items.set(numItems++, item);
+                }
+            }
+            for (int i = items.size() - 1; i >= numItems; --i) {
+                items.remove(i);
+            }
+            mHasRemovedItems = false;
+        }
+    }
+
     // Returns the first item selection (ignoring items within set selections).
     public static MediaItem getFirstItemSelection(ArrayList<MediaBucket> buckets) {
         MediaItem item = null;
@@ -68,45 +93,42 @@ public final class MediaBucketList {
     }
 
     public ArrayList<MediaBucket> get() {
-        return mBuckets;
+        final ArrayList<MediaBucket> buckets = mBuckets;
+        final int numBuckets = buckets.size();
+        for (int i = 0; i < numBuckets; ++i) {
+            final Selection selection = mSelections.get(buckets.get(i).mediaSet);
+            if (selection != null && selection.mHasRemovedItems) {
+                selection.compact();
+            }
+        }
+        return buckets;
     }
 
     public int size() {
-        if (mDirtyCount) {
-            ArrayList<MediaBucket> buckets = mBuckets;
-            int numBuckets = buckets.size();
-            int count = 0;
-            for (int i = 0; i < numBuckets; ++i) {
-                MediaBucket bucket = buckets.get(i);
-                int numItems = 0;
-                if (bucket.mediaItems == null && bucket.mediaSet != null) {
-                    numItems = bucket.mediaSet.getNumItems();
-                    // This selection reflects the bucket itself, and not the
-                    // items inside the bucket (which is 0).
-                    if (numItems == 0) {
-                        numItems = 1;
-                    }
-                } else if (bucket.mediaItems != null && bucket.mediaItems != null) {
-                    numItems = bucket.mediaItems.size();
-                }
-                count += numItems;
+        ArrayList<MediaBucket> buckets = mBuckets;
+        int numBuckets = buckets.size();
+        int count = 0;
+        for (int i = 0; i < numBuckets; ++i) {
+            MediaBucket bucket = buckets.get(i);
+            Selection selection = mSelections.get(bucket.mediaSet);
+            if (selection.mItems == null) {
+                int numItems = bucket.mediaSet.getNumItems();
+                // This selection reflects the bucket itself, and not the
+                // items inside the bucket (which is 0).
+                count += (numItems == 0) ? 1 : numItems;
+            } else {
+                count += selection.mItems.size();
             }
-            mCount = count;
-            mDirtyCount = false;
         }
-        return mCount;
+        return count;
     }
 
     public void add(int slotId, MediaFeed feed, boolean removeIfAlreadyAdded) {
         if (slotId == Shared.INVALID) {
             return;
         }
-        setDirty();
-        final ArrayList<MediaBucket> selectedBuckets = mBuckets;
-        final int numSelectedBuckets = selectedBuckets.size();
         MediaSet mediaSetToAdd = null;
-        ArrayList<MediaItem> selectedItems = null;
-        MediaBucket bucket = null;
+        MediaSet slotSet = null;
         final boolean hasExpandedMediaSet = feed.hasExpandedMediaSet();
         if (!hasExpandedMediaSet) {
             ArrayList<MediaSet> mediaSets = feed.getMediaSets();
@@ -117,126 +139,101 @@ public final class MediaBucketList {
         } else {
             int numSlots = feed.getNumSlots();
             if (slotId < numSlots) {
-                MediaSet set = feed.getSetForSlot(slotId);
-                if (set != null) {
-                    ArrayList<MediaItem> items = set.getItems();
-                    if (set.getNumItems() > 0) {
+                slotSet = feed.getSetForSlot(slotId);
+                if (slotSet != null) {
+                    ArrayList<MediaItem> items = slotSet.getItems();
+                    if (slotSet.getNumItems() > 0) {
                         mediaSetToAdd = items.get(0).mParentMediaSet;
                     }
                 }
             }
         }
+        if (mediaSetToAdd == null) {
+            return;
+        }
 
-        // Search for the bucket for this media set
-        for (int i = 0; i < numSelectedBuckets; ++i) {
-            final MediaBucket bucketCompare = selectedBuckets.get(i);
-            if (bucketCompare != null && bucketCompare.mediaSet != null
-                && mediaSetToAdd != null && bucketCompare.mediaSet == mediaSetToAdd) {
-                // We found the MediaSet.
-                if (!hasExpandedMediaSet) {
-                    // Remove this bucket from the list since this bucket was
-                    // already selected.
-                    if (removeIfAlreadyAdded) {
-                        selectedBuckets.remove(bucketCompare);
-                    }
-                    return;
-                } else {
-                    bucket = bucketCompare;
-                    break;
-                }
+        Selection selection = mSelections.get(mediaSetToAdd);
+        if (selection != null && !hasExpandedMediaSet) {
+            // Remove this bucket from the list since this bucket was already
+            // selected.
+            if (removeIfAlreadyAdded) {
+                mSelections.remove(mediaSetToAdd);
+                mBuckets.remove(selection.mBucket);
             }
+            return;
         }
-        if (bucket == null) {
-            // Did not find the media bucket.
-            bucket = new MediaBucket();
+        if (selection == null) {
+            MediaBucket bucket = new MediaBucket();
             bucket.mediaSet = mediaSetToAdd;
-            bucket.mediaItems = selectedItems;
-            selectedBuckets.add(bucket);
+            selection = new Selection(bucket);
+            mSelections.put(mediaSetToAdd, selection);
+            mBuckets.add(bucket);
         }
         if (hasExpandedMediaSet) {
-            int numSlots = feed.getNumSlots();
-            if (slotId < numSlots) {
-                MediaSet set = feed.getSetForSlot(slotId);
-                if (set != null) {
-                    ArrayList<MediaItem> items = set.getItems();
-                    int numItems = set.getNumItems();
-                    selectedItems = bucket.mediaItems;
-                    if (selectedItems == null) {
-                        selectedItems = new ArrayList<MediaItem>(numItems);
-                        bucket.mediaItems = selectedItems;
+            final MediaBucket bucket = selection.mBucket;
+            if (selection.mItems == null) {
+                selection.mItems = new LongHashMap<MediaItem>();
+                bucket.mediaItems = new ArrayList<MediaItem>();
+            }
+            final LongHashMap<MediaItem> selectedItems = selection.mItems;
+            final ArrayList<MediaItem> items = slotSet.getItems();
+            final int numItems = slotSet.getNumItems();
+            ArrayList<MediaItem> itemsToAdd = null;
+            for (int i = 0; i < numItems; ++i) {
+                final MediaItem item = items.get(i);
+                if (item == null || item.mId == Shared.INVALID) {
+                    continue;
+                }
+                final long key = getKey(item);
+                if (selectedItems.get(key) != null) {
+                    // This item was already present, we need to remove it.
+                    if (removeIfAlreadyAdded) {
+                        selectedItems.remove(key);
+                        selection.mHasRemovedItems = true;
                     }
-                    for (int i = 0; i < numItems; ++i) {
-                        MediaItem item = items.get(i);
-                        // We see if this item has already been added.
-                        int numPresentItems = selectedItems.size();
-                        boolean foundIndex = false;
-                        for (int j = 0; j < numPresentItems; ++j) {
-                            final MediaItem selectedItem = selectedItems.get(j);
-                            if (selectedItem != null && item != null && selectedItem == item) {
-                                // This index was already present, we need to
-                                // remove it.
-                                foundIndex = true;
-                                if (removeIfAlreadyAdded) {
-                                    selectedItems.remove(j);
-                                }
-                                break;
-                            }
-                        }
-                        if (foundIndex == false) {
-                            selectedItems.add(item);
-                        }
+                } else {
+                    if (itemsToAdd == null) {
+                        itemsToAdd = new ArrayList<MediaItem>(numItems);
                     }
+                    itemsToAdd.add(item);
+                }
+            }
+            if (itemsToAdd != null) {
+                // An item removed earlier may still be in the bucket.
+                if (selection.mHasRemovedItems) {
+                    selection.compact();
+                }
+                final int numItemsToAdd = itemsToAdd.size();
+                bucket.mediaItems.ensureCapacity(bucket.mediaItems.size() + numItemsToAdd);
+                for (int i = 0; i < numItemsToAdd; ++i) {
+                    final MediaItem item = itemsToAdd.get(i);
+                    selectedItems.put(getKey(item), item);
+                    bucket.mediaItems.add(item);
                 }
             }
         }
-        setDirty();
     }
 
     public boolean find(MediaItem item) {
-        HashMap<MediaItem, Boolean> cachedItems = mCachedItems;
-        if (mDirtyAcceleratedLookup) {
-            cachedItems.clear();
-            mDirtyAcceleratedLookup = false;
+        final MediaSet parentMediaSet = item.mParentMediaSet;
+        if (parentMediaSet == null) {
+            return false;
         }
-        Boolean itemAdded = cachedItems.get(item);
-        if (itemAdded == null) {
-            ArrayList<MediaBucket> selectedBuckets = mBuckets;
-            int numSelectedBuckets = selectedBuckets.size();
-            for (int i = 0; i < numSelectedBuckets; ++i) {
-                MediaBucket bucket = selectedBuckets.get(i);
-                ArrayList<MediaItem> mediaItems = bucket.mediaItems;
-                if (mediaItems == null) {
-                    MediaSet parentMediaSet = item.mParentMediaSet;
-                    if (parentMediaSet != null && parentMediaSet.equals(bucket.mediaSet)) {
-                        cachedItems.put(item, TRUE);
-                        return true;
-                    }
-                } else {
-                    int numMediaItems = mediaItems.size();
-                    for (int j = 0; j < numMediaItems; ++j) {
-                        MediaItem itemCompare = mediaItems.get(j);
-                        if (itemCompare == item) {
-                            cachedItems.put(item, TRUE);
-                            return true;
-                        }
-                    }
-                }
-            }
-            cachedItems.put(item, FALSE);
+        final Selection selection = mSelections.get(parentMediaSet);
+        if (selection == null) {
             return false;
-        } else {
-            return itemAdded.booleanValue();
         }
+        return selection.mItems == null || selection.mItems.get(getKey(item)) != null;
     }
 
     public void clear() {
         mBuckets.clear();
-        setDirty();
+        mSelections.clear();
     }
 
-    private void setDirty() {
-        mDirtyCount = true;
-        mDirtyAcceleratedLookup = true;
+    // Images and videos have separate ids.
+    private static long getKey(MediaItem item) {
+        return (item.mId << 1) | ((item.getMediaType() == MediaItem.MEDIA_TYPE_VIDEO) ? 1 : 0);
     }
 
     // Assumption: No item and set selection combinations.
@@ -36,6 +36,11 @@ import com.cooliris.app.Res;
  * TODO: Limitation: Can deal with items not being added incrementally to the
  * end of the current date range but effectively assumes this is the case for
  * efficient performance.
+ *
+ * The clusters of a local album are computed when the album cache is written
+ * and stored with it as breaks, the cumulative number of items of the
+ * clusters. A clustering seeded with them puts the items in their cluster as
+ * they are loaded, only the items past the last break are clustered here.
  */
 
 public final class MediaClustering {
@@ -83,6 +88,12 @@ public final class MediaClustering {
     private int mMinClusterSize = (MIN_MIN_CLUSTER_SIZE + MAX_MIN_CLUSTER_SIZE) / 2;
     private int mMaxClusterSize = (MIN_MAX_CLUSTER_SIZE + MAX_MAX_CLUSTER_SIZE) / 2;
 
+    // The clusters given by setBreaks(), or null.
+    private int[] mBreaks;
+    private Cluster[] mBreakClusters;
+    private int mBreakIndex;
+    private int mNumItemsAdded;
+
     MediaClustering(boolean isPicassaAlbum) {
         mClusters = new ArrayList<Cluster>();
         mIsPicassaAlbum = isPicassaAlbum;
@@ -115,8 +126,66 @@ public final class MediaClustering {
         mMaxClusterSize = Shared.clamp(mMaxClusterSize, MIN_MAX_CLUSTER_SIZE, MAX_MAX_CLUSTER_SIZE);
     }
 
+    /**
+     * Clusters the items of an album in the given order and returns the
+     * breaks, or null if the clusters are not contiguous.
+     */
+    public static int[] computeBreaks(MediaItem[] items, long timeRange) {
+        final int numItems = items.length;
+        final MediaClustering clustering = new MediaClustering(false);
+        clustering.setTimeRange(timeRange, numItems);
+        for (int i = 0; i < numItems; ++i) {
+            clustering.compute(items[i], false);
+        }
+        clustering.compute(null, true);
+        final ArrayList<Cluster> clusters = clustering.mClusters;
+        final int numClusters = clusters.size();
+        final int[] breaks = new int[numClusters];
+        int numClusteredItems = 0;
+        for (int i = 0; i < numClusters; ++i) {
+            numClusteredItems += clusters.get(i).mNumItemsLoaded;
+            breaks[i] = numClusteredItems;
+        }
+        // Items with an invalid id are not counted by the clusters.
+        return (numClusteredItems == numItems) ? breaks : null;
+    }
+
+    /**
+     * Creates the clusters from breaks computed by computeBreaks(). The items
+     * must then be added in the same order as they were clustered. Ignored if
+     * items were already added.
+     */
+    public synchronized void setBreaks(int[] breaks) {
+        if (mNumItemsAdded != 0 || breaks == null || breaks.length == 0) {
+            return;
+        }
+        final int numClusters = breaks.length;
+        final Cluster[] breakClusters = new Cluster[numClusters];
+        int begin = 0;
+        for (int i = 0; i < numClusters; ++i) {
+            final Cluster cluster = new Cluster(mIsPicassaAlbum);
+            cluster.setNumExpectedItems(breaks[i] - begin);
+            cluster.mNumItemsPreset = true;
+            breakClusters[i] = cluster;
+            mClusters.add(cluster);
+            begin = breaks[i];
+        }
+        mBreaks = breaks;
+        mBreakClusters = breakClusters;
+        mBreakIndex = 0;
+    }
+
     public void addItemForClustering(MediaItem mediaItem) {
-        compute(mediaItem, false);
+        final int[] breaks = mBreaks;
+        final int index = mNumItemsAdded++;
+        if (breaks != null && index < breaks[breaks.length - 1]) {
+            while (index >= breaks[mBreakIndex]) {
+                ++mBreakIndex;
+            }
+            mBreakClusters[mBreakIndex].addItem(mediaItem);
+        } else {
+            compute(mediaItem, false);
+        }
     }
 
     public void removeItemFromClustering(MediaItem mediaItem) {
@@ -128,7 +197,8 @@ public final class MediaClustering {
         for (int i = 0; i < numClusters; i++) {
             Cluster cluster = mClusters.get(i);
             if (cluster.removeItem(mediaItem)) {
-                if (cluster.mNumItemsLoaded == 0) {
+                // A preset cluster may still have items to load.
+                if (cluster.mNumItemsLoaded == 0 && (!cluster.mNumItemsPreset || cluster.getNumExpectedItems() <= 0)) {
                     mClusters.remove(cluster);
                 }
                 return;
@@ -277,10 +347,31 @@ public final class MediaClustering {
         return mClusters;
     }
 
+    /**
+     * Returns the cumulative number of items of the clusters. Unlike
+     * compute(null, true) this does not close the current cluster, so it can
+     * be called while the items are being added.
+     */
+    public synchronized ArrayList<Integer> getBreaks() {
+        final ArrayList<Cluster> clusters = getClusters();
+        final int numClusters = clusters.size();
+        final ArrayList<Integer> breaks = new ArrayList<Integer>(numClusters);
+        int size = 0;
+        for (int i = 0; i < numClusters; ++i) {
+            final Cluster cluster = clusters.get(i);
+            size += (cluster.mNumItemsPreset) ? cluster.getNumExpectedItems() : cluster.mNumItemsLoaded;
+            breaks.add(size);
+        }
+        return breaks;
+    }
+
     public static final class Cluster extends MediaSet {
         private boolean mGeographicallySeparatedFromPrevCluster = false;
         private boolean mClusterChanged = false;
         private boolean mIsPicassaAlbum = false;
+        // The number of items was given by the breaks, before the items are
+        // loaded.
+        private boolean mNumItemsPreset = false;
         private static final String MMDDYY_FORMAT = "MMddyy";
 
         public Cluster(boolean isPicassaAlbum) {
@@ -343,7 +434,9 @@ public final class MediaClustering {
                 } else {
                     mName = resources.getString(Res.string.date_unknown);
                 }
-                updateNumExpectedItems();
+                if (!mNumItemsPreset) {
+                    updateNumExpectedItems();
+                }
                 generateTitle(false);
                 mClusterChanged = false;
             }
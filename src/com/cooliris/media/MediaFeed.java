@@ -20,6 +20,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.ContentResolver;
 import android.content.Context;
@@ -30,6 +37,7 @@ import android.widget.Toast;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Process;
+import android.os.SystemClock;
 
 import com.cooliris.app.App;
 import com.cooliris.app.Res;
@@ -42,16 +50,45 @@ public final class MediaFeed implements Runnable {
     public static final int OPERATION_CROP = 2;
 
     private static final int NUM_ITEMS_LOOKAHEAD = 60;
+    private static final int NUM_ITEMS_FIRST_PAGE = 8;
     private static final int NUM_INTERRUPT_RETRIES = 30;
     private static final int JOIN_TIMEOUT = 50;
 
+    // Tasks of the feed thread. A task requested several times before the
+    // thread gets to it runs once.
+    private static final int TASK_REFRESH = 1;
+    private static final int TASK_LOAD = 2;
+    private static final int TASK_UPDATE_LISTENER = 4;
+    // Loads are put off while the app is paused, and retried at this interval.
+    private static final int PAUSED_RETRY_INTERVAL = 300;
+    // While the media scanner is running, the media sets are reloaded when the
+    // media database has changed, but not more often than the reload interval
+    // so that the reloads do not compete with the scanner for I/O. There is no
+    // notification when the scanner finishes, so it is polled.
+    private static final int SCANNER_RELOAD_INTERVAL = 10000;
+    private static final int SCANNER_POLL_INTERVAL = 2000;
+
+    // The first page of items of the sets in the buffered range is loaded by
+    // these threads, shared by the feeds.
+    private static final int NUM_SET_LOADERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService sSetLoader = Executors.newFixedThreadPool(NUM_SET_LOADERS, new ThreadFactory() {
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "MediaSetLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private IndexRange mVisibleRange = new IndexRange();
     private IndexRange mBufferedRange = new IndexRange();
     private ArrayList<MediaSet> mMediaSets = new ArrayList<MediaSet>();
     private Listener mListener;
     private DataSource mDataSource;
     private boolean mListenerNeedsUpdate = false;
-    private boolean mMediaFeedNeedsToRun = false;
+    private final Object mTaskLock = new Object();
+    private int mPendingTasks = 0;
+    private final Object mScannerLock = new Object();
+    private boolean mMediaChangedWhileScanning = false;
     private MediaSet mSingleWrapper = new MediaSet();
     private boolean mInClusteringMode = false;
     private HashMap<MediaSet, MediaClustering> mClusterSets = new HashMap<MediaSet, MediaClustering>(32);
@@ -141,7 +178,7 @@ public final class MediaFeed implements Runnable {
             int numItemsBy4 = numItems / 4;
             mBufferedRange.begin = (begin / numItemsBy2) * numItemsBy2 - numItemsBy4;
             mBufferedRange.end = mBufferedRange.begin + numItems;
-            mMediaFeedNeedsToRun = true;
+            requestTask(TASK_LOAD);
         }
     }
 
@@ -151,7 +188,7 @@ public final class MediaFeed implements Runnable {
         if (mListener != null) {
             mListener.onFeedAboutToChange(this);
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
     }
 
     public void removeFilter() {
@@ -161,7 +198,7 @@ public final class MediaFeed implements Runnable {
             mListener.onFeedAboutToChange(this);
             updateListener(true);
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
     }
 
     public ArrayList<MediaSet> getMediaSets() {
@@ -209,7 +246,7 @@ public final class MediaFeed implements Runnable {
         if (mDataSourceThread != null && !mDataSourceThread.isAlive()) {
             mDataSourceThread.start();
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
         return mediaSet;
     }
 
@@ -250,7 +287,22 @@ public final class MediaFeed implements Runnable {
                 item.mClusteringState = MediaItem.CLUSTERED;
             }
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
+    }
+
+    /**
+     * Seeds the clustering of a set with the clusters stored in the album
+     * cache, before the items of the set are added.
+     */
+    public void setClusterBreaks(MediaSet mediaSet, int[] breaks) {
+        synchronized (mClusterSets) {
+            MediaClustering clustering = mClusterSets.get(mediaSet);
+            if (clustering == null) {
+                clustering = new MediaClustering(mediaSet.isPicassaAlbum());
+                mClusterSets.put(mediaSet, clustering);
+            }
+            clustering.setBreaks(breaks);
+        }
     }
 
     public void performOperation(final int operation, final ArrayList<MediaBucket> mediaBuckets, final Object data) {
@@ -303,7 +355,7 @@ public final class MediaFeed implements Runnable {
                         mGridLayer.setState(GridLayer.STATE_MEDIA_SETS);
 
                     updateListener(true);
-                    mMediaFeedNeedsToRun = true;
+                    requestTask(TASK_LOAD);
                     mGridLayer.afterDeleteReflush();
                 } else {
                     if (mDataSource != null) {
@@ -320,7 +372,7 @@ public final class MediaFeed implements Runnable {
         synchronized (mMediaSets) {
             mMediaSets.remove(set);
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
     }
 
     private void removeItemFromMediaSet(MediaItem item, MediaSet mediaSet) {
@@ -331,12 +383,13 @@ public final class MediaFeed implements Runnable {
                 clustering.removeItemFromClustering(item);
             }
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
     }
 
     public void updateListener(boolean needsLayout) {
         mListenerNeedsUpdate = true;
         mListenerNeedsLayout = needsLayout;
+        requestTask(TASK_UPDATE_LISTENER);
     }
 
     public int getNumSlots() {
@@ -367,6 +420,8 @@ public final class MediaFeed implements Runnable {
     }
 
     public ArrayList<Integer> getBreaks() {
+        // The grid layout does not place the breaks yet, computing them for
+        // every layout would only lock the cluster sets for nothing.
         if (true)
             return null;
         int currentMediaSetIndex = mExpandedMediaSetIndex;
@@ -375,20 +430,9 @@ public final class MediaFeed implements Runnable {
         if (currentMediaSetIndex == Shared.INVALID || currentMediaSetIndex >= mediaSetsSize)
             return null;
         MediaSet set = mediaSets.get(currentMediaSetIndex);
-        MediaClustering clustering = mClusterSets.get(set);
-        if (clustering != null) {
-            clustering.compute(null, true);
-            final ArrayList<Cluster> clusters = clustering.getClustersForDisplay();
-            int numClusters = clusters.size();
-            final ArrayList<Integer> retVal = new ArrayList<Integer>(numClusters);
-            int size = 0;
-            for (int i = 0; i < numClusters; ++i) {
-                size += clusters.get(i).getItems().size();
-                retVal.add(size);
-            }
-            return retVal;
-        } else {
-            return null;
+        synchronized (mClusterSets) {
+            MediaClustering clustering = mClusterSets.get(set);
+            return (clustering != null) ? clustering.getBreaks() : null;
         }
     }
 
@@ -459,19 +503,27 @@ public final class MediaFeed implements Runnable {
                     loadMediaSets();
                 }
                 mWaitingForMediaScanner = false;
+                long lastReloadTime = SystemClock.uptimeMillis();
+                boolean reload = false;
                 while (ImageManager.isMediaScannerScanning(mContext.getContentResolver())) {
                     // MediaScanner is still running, wait
                     if (Thread.interrupted())
                         return;
+                    final boolean firstWait = !mWaitingForMediaScanner;
                     mWaitingForMediaScanner = true;
                     try {
                         if (mContext == null)
                             return;
-                        showToast(mContext.getResources().getString(Res.string.initializing), Toast.LENGTH_LONG);
-                        if (dataSource != null) {
-                            loadMediaSets();
+                        if (firstWait || reload) {
+                            showToast(mContext.getResources().getString(Res.string.initializing), Toast.LENGTH_LONG);
+                        }
+                        if (reload) {
+                            if (dataSource != null) {
+                                loadMediaSets();
+                            }
+                            lastReloadTime = SystemClock.uptimeMillis();
                         }
-                        Thread.sleep(10000);
+                        reload = waitForMediaChange(lastReloadTime);
                     } catch (InterruptedException e) {
                         return;
                     }
@@ -513,7 +565,7 @@ public final class MediaFeed implements Runnable {
             }
             setsToRemove.clear();
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
         updateListener(false);
     }
 
@@ -527,232 +579,349 @@ public final class MediaFeed implements Runnable {
         }
     }
 
+    private void requestTask(int task) {
+        synchronized (mTaskLock) {
+            mPendingTasks |= task;
+            mTaskLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for tasks and returns them. Loads are held back while the app is
+     * paused.
+     */
+    private int takeTasks() throws InterruptedException {
+        synchronized (mTaskLock) {
+            for (;;) {
+                int tasks = mPendingTasks;
+                if ((tasks & TASK_LOAD) != 0) {
+                    App app = App.get(mContext);
+                    if (app == null || app.isPaused()) {
+                        tasks &= ~TASK_LOAD;
+                        if (tasks == 0) {
+                            mTaskLock.wait(PAUSED_RETRY_INTERVAL);
+                            continue;
+                        }
+                    }
+                }
+                if (tasks != 0) {
+                    mPendingTasks &= ~tasks;
+                    return tasks;
+                }
+                mTaskLock.wait();
+            }
+        }
+    }
+
+    private boolean isLoadPending() {
+        synchronized (mTaskLock) {
+            return (mPendingTasks & TASK_LOAD) != 0;
+        }
+    }
+
+    /**
+     * Waits until the media sets should be reloaded or the scanner polled
+     * again. Returns true if the media database has changed and the reload
+     * interval has elapsed since the last reload.
+     */
+    private boolean waitForMediaChange(long lastReloadTime) throws InterruptedException {
+        final long pollTime = SystemClock.uptimeMillis() + SCANNER_POLL_INTERVAL;
+        final long reloadTime = lastReloadTime + SCANNER_RELOAD_INTERVAL;
+        synchronized (mScannerLock) {
+            for (;;) {
+                final long now = SystemClock.uptimeMillis();
+                if (mMediaChangedWhileScanning && now >= reloadTime) {
+                    mMediaChangedWhileScanning = false;
+                    return true;
+                }
+                if (now >= pollTime) {
+                    return false;
+                }
+                long waitTime = pollTime - now;
+                if (mMediaChangedWhileScanning) {
+                    waitTime = Math.min(waitTime, reloadTime - now);
+                }
+                mScannerLock.wait(waitTime);
+            }
+        }
+    }
+
+    private void onMediaChangedWhileScanning() {
+        synchronized (mScannerLock) {
+            mMediaChangedWhileScanning = true;
+            mScannerLock.notifyAll();
+        }
+    }
+
+    private String[] takeRequestedRefresh() {
+        String[] databaseUris = null;
+        synchronized (mRequestedRefresh) {
+            if (mRequestedRefresh.size() > 0) {
+                // We prune this first.
+                int numRequests = mRequestedRefresh.size();
+                for (int i = 0; i < numRequests; ++i) {
+                    databaseUris = ArrayUtils.addAll(databaseUris, mRequestedRefresh.get(i));
+                }
+                mRequestedRefresh.clear();
+                // We need to eliminate duplicate uris in this array
+                final HashMap<String, String> uris = new HashMap<String, String>();
+                if (databaseUris != null) {
+                    int numUris = databaseUris.length;
+                    for (int i = 0; i < numUris; ++i) {
+                        final String uri = databaseUris[i];
+                        if (uri != null)
+                            uris.put(uri, uri);
+                    }
+                }
+                databaseUris = new String[0];
+                databaseUris = (String[]) uris.keySet().toArray(databaseUris);
+            }
+        }
+        return databaseUris;
+    }
+
     public void run() {
         DataSource dataSource = mDataSource;
-        int sleepMs = 10;
         if (dataSource != null) {
             while (!Thread.interrupted() && !mIsShutdown) {
-                String[] databaseUris = null;
-                boolean performRefresh = false;
-                synchronized (mRequestedRefresh) {
-                    if (mRequestedRefresh.size() > 0) {
-                        // We prune this first.
-                        int numRequests = mRequestedRefresh.size();
-                        for (int i = 0; i < numRequests; ++i) {
-                            databaseUris = ArrayUtils.addAll(databaseUris, mRequestedRefresh.get(i));
-                        }
-                        mRequestedRefresh.clear();
-                        performRefresh = true;
-                        // We need to eliminate duplicate uris in this array
-                        final HashMap<String, String> uris = new HashMap<String, String>();
-                        if (databaseUris != null) {
-                            int numUris = databaseUris.length;
-                            for (int i = 0; i < numUris; ++i) {
-                                final String uri = databaseUris[i];
-                                if (uri != null)
-                                    uris.put(uri, uri);
-                            }
-                        }
-                        databaseUris = new String[0];
-                        databaseUris = (String[]) uris.keySet().toArray(databaseUris);
-                    }
+                int tasks;
+                try {
+                    tasks = takeTasks();
+                } catch (InterruptedException e) {
+                    return;
                 }
-                boolean settingFeedAboutToChange = false;
-                if (performRefresh) {
-                    if (dataSource != null) {
+                if ((tasks & TASK_REFRESH) != 0) {
+                    String[] databaseUris = takeRequestedRefresh();
+                    if (databaseUris != null) {
                         if (mListener != null) {
-                            settingFeedAboutToChange = true;
                             mListener.onFeedAboutToChange(this);
                         }
                         dataSource.refresh(this, databaseUris);
-                        mMediaFeedNeedsToRun = true;
+                        updateListener(true);
+                        requestTask(TASK_LOAD);
                     }
                 }
-                if (mListenerNeedsUpdate && !mMediaFeedNeedsToRun) {
+                if ((tasks & TASK_LOAD) != 0) {
+                    loadVisibleSets(dataSource);
+                }
+                // The listener is updated once the loads are done, loading
+                // items requests another load.
+                if (mListenerNeedsUpdate && !isLoadPending()) {
                     mListenerNeedsUpdate = false;
                     if (mListener != null)
                         synchronized (mMediaSets) {
                             mListener.onFeedChanged(this, mListenerNeedsLayout);
                         }
-                    try {
-                        Thread.sleep(sleepMs);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-                } else {
-                    try {
-                        Thread.sleep(sleepMs);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
                 }
-                sleepMs = 300;
-                if (!mMediaFeedNeedsToRun)
-                    continue;
-                App app = App.get(mContext);
-                if (app == null || app.isPaused())
-                    continue;
-                if (settingFeedAboutToChange) {
-                    updateListener(true);
+            }
+        }
+    }
+
+    private void loadVisibleSets(DataSource dataSource) {
+        ArrayList<MediaSet> mediaSets = mMediaSets;
+        synchronized (mediaSets) {
+            int expandedSetIndex = mExpandedMediaSetIndex;
+            if (expandedSetIndex >= mMediaSets.size()) {
+                expandedSetIndex = Shared.INVALID;
+            }
+            if (expandedSetIndex == Shared.INVALID) {
+                // The first page of the visible sets is loaded first, then the
+                // first page of the other sets in the buffered range.
+                IndexRange visibleRange = mVisibleRange;
+                IndexRange bufferedRange = mBufferedRange;
+                ArrayList<MediaSet> setsToLoad = new ArrayList<MediaSet>();
+                collectSetsToLoad(mediaSets, visibleRange.begin, visibleRange.end, Shared.INVALID, Shared.INVALID, setsToLoad);
+                if (!loadFirstPages(dataSource, setsToLoad, visibleRange)) {
+                    return;
                 }
-                mMediaFeedNeedsToRun = false;
-                ArrayList<MediaSet> mediaSets = mMediaSets;
-                synchronized (mediaSets) {
-                    int expandedSetIndex = mExpandedMediaSetIndex;
-                    if (expandedSetIndex >= mMediaSets.size()) {
-                        expandedSetIndex = Shared.INVALID;
-                    }
-                    if (expandedSetIndex == Shared.INVALID) {
-                        // We purge the sets outside this visibleRange.
-                        int numSets = mediaSets.size();
-                        IndexRange visibleRange = mVisibleRange;
-                        IndexRange bufferedRange = mBufferedRange;
-                        boolean scanMediaSets = true;
-                        for (int i = 0; i < numSets; ++i) {
-                            if (i >= visibleRange.begin && i <= visibleRange.end && scanMediaSets) {
-                                MediaSet set = mediaSets.get(i);
-                                int numItemsLoaded = set.mNumItemsLoaded;
-                                if (numItemsLoaded < set.getNumExpectedItems() && numItemsLoaded < 8) {
-                                    synchronized (set) {
-                                        dataSource.loadItemsForSet(this, set, numItemsLoaded, 8);
-                                        set.checkForDeletedItems();
-                                    }
-                                    if (set.getNumExpectedItems() == 0) {
-                                        mediaSets.remove(set);
-                                        break;
-                                    }
-                                    if (mListener != null) {
-                                        mListenerNeedsUpdate = false;
-                                        mListener.onFeedChanged(this, mListenerNeedsLayout);
-                                        mListenerNeedsLayout = false;
-                                    }
-                                    sleepMs = 100;
-                                    scanMediaSets = false;
-                                }
-                                if (!set.setContainsValidItems()) {
-                                    mediaSets.remove(set);
-                                    if (mListener != null) {
-                                        mListenerNeedsUpdate = false;
-                                        mListener.onFeedChanged(this, mListenerNeedsLayout);
-                                        mListenerNeedsLayout = false;
-                                    }
-                                    break;
-                                }
-                            }
+                setsToLoad.clear();
+                collectSetsToLoad(mediaSets, bufferedRange.begin, bufferedRange.end, visibleRange.begin, visibleRange.end,
+                        setsToLoad);
+                if (!loadFirstPages(dataSource, setsToLoad, visibleRange)) {
+                    return;
+                }
+                // We purge the sets outside the buffered range.
+                int numSets = mediaSets.size();
+                for (int i = 0; i < numSets; ++i) {
+                    if (!mListenerNeedsUpdate && (i < bufferedRange.begin || i > bufferedRange.end)) {
+                        // Purge this set to its initial status.
+                        MediaSet set = mediaSets.get(i);
+                        MediaClustering clustering = mClusterSets.get(set);
+                        if (clustering != null) {
+                            clustering.clear();
+                            mClusterSets.remove(set);
                         }
-                        numSets = mediaSets.size();
-                        for (int i = 0; i < numSets; ++i) {
-                            MediaSet set = mediaSets.get(i);
-                            if (i >= bufferedRange.begin && i <= bufferedRange.end) {
-                                if (scanMediaSets) {
-                                    int numItemsLoaded = set.mNumItemsLoaded;
-                                    if (numItemsLoaded < set.getNumExpectedItems() && numItemsLoaded < 8) {
-                                        synchronized (set) {
-                                            dataSource.loadItemsForSet(this, set, numItemsLoaded, 8);
-                                            set.checkForDeletedItems();
-                                        }
-                                        if (set.getNumExpectedItems() == 0) {
-                                            mediaSets.remove(set);
-                                            break;
-                                        }
-                                        if (mListener != null) {
-                                            mListenerNeedsUpdate = false;
-                                            mListener.onFeedChanged(this, mListenerNeedsLayout);
-                                            mListenerNeedsLayout = false;
-                                        }
-                                        sleepMs = 100;
-                                        scanMediaSets = false;
-                                    }
-                                }
-                            } else if (!mListenerNeedsUpdate && (i < bufferedRange.begin || i > bufferedRange.end)) {
-                                // Purge this set to its initial status.
-                                MediaClustering clustering = mClusterSets.get(set);
-                                if (clustering != null) {
-                                    clustering.clear();
-                                    mClusterSets.remove(set);
-                                }
-                                if (set.getNumItems() != 0)
-                                    set.clear();
-                            }
+                        if (set.getNumItems() != 0)
+                            set.clear();
+                    }
+                }
+            }
+            if (expandedSetIndex != Shared.INVALID) {
+                int numSets = mMediaSets.size();
+                for (int i = 0; i < numSets; ++i) {
+                    // Purge other sets.
+                    if (i != expandedSetIndex) {
+                        MediaSet set = mediaSets.get(i);
+                        MediaClustering clustering = mClusterSets.get(set);
+                        if (clustering != null) {
+                            clustering.clear();
+                            mClusterSets.remove(set);
                         }
+                        if (set.mNumItemsLoaded != 0)
+                            set.clear();
                     }
-                    if (expandedSetIndex != Shared.INVALID) {
-                        int numSets = mMediaSets.size();
-                        for (int i = 0; i < numSets; ++i) {
-                            // Purge other sets.
-                            if (i != expandedSetIndex) {
-                                MediaSet set = mediaSets.get(i);
-                                MediaClustering clustering = mClusterSets.get(set);
-                                if (clustering != null) {
-                                    clustering.clear();
-                                    mClusterSets.remove(set);
-                                }
-                                if (set.mNumItemsLoaded != 0)
-                                    set.clear();
-                            }
+                }
+                // Make sure all the items are loaded for the album.
+                int numItemsLoaded = mediaSets.get(expandedSetIndex).mNumItemsLoaded;
+                int requestedItems = mVisibleRange.end;
+                // requestedItems count changes in clustering mode.
+                if (mInClusteringMode && mClusterSets != null) {
+                    requestedItems = 0;
+                    MediaClustering clustering = mClusterSets.get(mediaSets.get(expandedSetIndex));
+                    if (clustering != null) {
+                        ArrayList<Cluster> clusters = clustering.getClustersForDisplay();
+                        int numClusters = clusters.size();
+                        for (int i = 0; i < numClusters; i++) {
+                            requestedItems += clusters.get(i).getNumExpectedItems();
                         }
-                        // Make sure all the items are loaded for the album.
-                        int numItemsLoaded = mediaSets.get(expandedSetIndex).mNumItemsLoaded;
-                        int requestedItems = mVisibleRange.end;
-                        // requestedItems count changes in clustering mode.
-                        if (mInClusteringMode && mClusterSets != null) {
-                            requestedItems = 0;
-                            MediaClustering clustering = mClusterSets.get(mediaSets.get(expandedSetIndex));
-                            if (clustering != null) {
-                                ArrayList<Cluster> clusters = clustering.getClustersForDisplay();
-                                int numClusters = clusters.size();
-                                for (int i = 0; i < numClusters; i++) {
-                                    requestedItems += clusters.get(i).getNumExpectedItems();
-                                }
-                            }
+                    }
+                }
+                MediaSet set = mediaSets.get(expandedSetIndex);
+                if (numItemsLoaded < set.getNumExpectedItems()) {
+                    // We perform calculations for a window that gets
+                    // anchored to a multiple of NUM_ITEMS_LOOKAHEAD.
+                    // The start of the window is 0, x, 2x, 3x ... etc
+                    // where x = NUM_ITEMS_LOOKAHEAD.
+                    synchronized (set) {
+                        dataSource.loadItemsForSet(this, set, numItemsLoaded, (requestedItems / NUM_ITEMS_LOOKAHEAD)
+                                * NUM_ITEMS_LOOKAHEAD + NUM_ITEMS_LOOKAHEAD);
+                        set.checkForDeletedItems();
+                    }
+                    if (set.getNumExpectedItems() == 0) {
+                        mediaSets.remove(set);
+                        mListenerNeedsUpdate = false;
+                        mListener.onFeedChanged(this, mListenerNeedsLayout);
+                        mListenerNeedsLayout = false;
+                    }
+                    if (numItemsLoaded != set.mNumItemsLoaded && mListener != null) {
+                        mListenerNeedsUpdate = false;
+                        mListener.onFeedChanged(this, mListenerNeedsLayout);
+                        mListenerNeedsLayout = false;
+                    }
+                }
+            }
+            MediaFilter filter = mMediaFilter;
+            if (filter != null && mMediaFilteredSet == null) {
+                if (expandedSetIndex != Shared.INVALID) {
+                    MediaSet set = mediaSets.get(expandedSetIndex);
+                    ArrayList<MediaItem> items = new ArrayList<MediaItem>();
+                    filter.filter(set, items);
+                    int numItems = items.size();
+                    MediaSet filteredSet = new MediaSet();
+                    filteredSet.setNumExpectedItems(numItems);
+                    mMediaFilteredSet = filteredSet;
+                    for (int i = 0; i < numItems; ++i) {
+                        filteredSet.addItem(items.get(i));
+                    }
+                    filteredSet.updateNumExpectedItems();
+                    filteredSet.generateTitle(true);
+                }
+                updateListener(true);
+            }
+        }
+    }
+
+    /**
+     * Adds the sets between begin and end, skipping those between skipBegin and
+     * skipEnd, whose first page of items is not loaded.
+     */
+    private static void collectSetsToLoad(ArrayList<MediaSet> mediaSets, int begin, int end, int skipBegin, int skipEnd,
+            ArrayList<MediaSet> setsToLoad) {
+        int numSets = mediaSets.size();
+        for (int i = Math.max(begin, 0); i <= end && i < numSets; ++i) {
+            if (i >= skipBegin && i <= skipEnd) {
+                continue;
+            }
+            MediaSet set = mediaSets.get(i);
+            int numItemsLoaded = set.mNumItemsLoaded;
+            if (numItemsLoaded < set.getNumExpectedItems() && numItemsLoaded < NUM_ITEMS_FIRST_PAGE) {
+                setsToLoad.add(set);
+            }
+        }
+    }
+
+    /**
+     * Loads the first page of items of the given sets on the set loader
+     * threads, then removes the empty sets and notifies the listener once.
+     * Must be called with the media sets locked. Returns false if the thread
+     * was interrupted.
+     */
+    private boolean loadFirstPages(final DataSource dataSource, final ArrayList<MediaSet> sets, IndexRange visibleRange) {
+        final int numSetsToLoad = sets.size();
+        if (numSetsToLoad > 0) {
+            final AtomicInteger nextSet = new AtomicInteger(0);
+            // The loaders are stopped between sets rather than interrupted,
+            // so that no set is left half loaded.
+            final AtomicBoolean stopped = new AtomicBoolean(false);
+            final Runnable loader = new Runnable() {
+                public void run() {
+                    while (!stopped.get()) {
+                        final int i = nextSet.getAndIncrement();
+                        if (i >= numSetsToLoad) {
+                            return;
                         }
-                        MediaSet set = mediaSets.get(expandedSetIndex);
-                        if (numItemsLoaded < set.getNumExpectedItems()) {
-                            // We perform calculations for a window that gets
-                            // anchored to a multiple of NUM_ITEMS_LOOKAHEAD.
-                            // The start of the window is 0, x, 2x, 3x ... etc
-                            // where x = NUM_ITEMS_LOOKAHEAD.
-                            synchronized (set) {
-                                dataSource.loadItemsForSet(this, set, numItemsLoaded, (requestedItems / NUM_ITEMS_LOOKAHEAD)
-                                        * NUM_ITEMS_LOOKAHEAD + NUM_ITEMS_LOOKAHEAD);
-                                set.checkForDeletedItems();
-                            }
-                            if (set.getNumExpectedItems() == 0) {
-                                mediaSets.remove(set);
-                                mListenerNeedsUpdate = false;
-                                mListener.onFeedChanged(this, mListenerNeedsLayout);
-                                mListenerNeedsLayout = false;
-                            }
-                            if (numItemsLoaded != set.mNumItemsLoaded && mListener != null) {
-                                mListenerNeedsUpdate = false;
-                                mListener.onFeedChanged(this, mListenerNeedsLayout);
-                                mListenerNeedsLayout = false;
-                            }
+                        final MediaSet set = sets.get(i);
+                        synchronized (set) {
+                            dataSource.loadItemsForSet(MediaFeed.this, set, set.mNumItemsLoaded, NUM_ITEMS_FIRST_PAGE);
+                            set.checkForDeletedItems();
                         }
                     }
-                    MediaFilter filter = mMediaFilter;
-                    if (filter != null && mMediaFilteredSet == null) {
-                        if (expandedSetIndex != Shared.INVALID) {
-                            MediaSet set = mediaSets.get(expandedSetIndex);
-                            ArrayList<MediaItem> items = set.getItems();
-                            int numItems = set.getNumItems();
-                            MediaSet filteredSet = new MediaSet();
-                            filteredSet.setNumExpectedItems(numItems);
-                            mMediaFilteredSet = filteredSet;
-                            for (int i = 0; i < numItems; ++i) {
-                                MediaItem item = items.get(i);
-                                if (filter.pass(item)) {
-                                    filteredSet.addItem(item);
-                                }
-                            }
-                            filteredSet.updateNumExpectedItems();
-                            filteredSet.generateTitle(true);
-                        }
-                        updateListener(true);
+                }
+            };
+            final int numLoaders = Math.min(NUM_SET_LOADERS, numSetsToLoad);
+            final Future<?>[] futures = new Future<?>[numLoaders];
+            for (int i = 0; i < numLoaders; ++i) {
+                futures[i] = sSetLoader.submit(loader);
+            }
+            // Every loader is waited for, even after an interrupt, since the
+            // sets must not be unlocked while they are being loaded.
+            boolean interrupted = false;
+            for (int i = 0; i < numLoaders; ++i) {
+                for (;;) {
+                    try {
+                        futures[i].get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        stopped.set(true);
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Error loading media sets", e.getCause());
+                        break;
                     }
                 }
             }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        // Remove the sets that turned out to be empty.
+        final ArrayList<MediaSet> mediaSets = mMediaSets;
+        boolean setsChanged = numSetsToLoad > 0;
+        for (int i = mediaSets.size() - 1; i >= 0; --i) {
+            MediaSet set = mediaSets.get(i);
+            if (!set.setContainsValidItems() && ((i >= visibleRange.begin && i <= visibleRange.end) || sets.contains(set))) {
+                mediaSets.remove(i);
+                setsChanged = true;
+            }
+        }
+        if (setsChanged && mListener != null) {
+            mListenerNeedsUpdate = false;
+            mListener.onFeedChanged(this, mListenerNeedsLayout);
+            mListenerNeedsLayout = false;
         }
+        return true;
     }
 
     public void expandMediaSet(int mediaSetIndex) {
@@ -777,7 +946,7 @@ public final class MediaFeed implements Runnable {
             // PicasaService.TYPE_ALBUM_PHOTOS, set.mPicasaAlbumId);
         }
         updateListener(true);
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
     }
 
     public boolean canExpandSet(int slotIndex) {
@@ -806,7 +975,7 @@ public final class MediaFeed implements Runnable {
                 mListener.onFeedAboutToChange(this);
             }
             updateListener(true);
-            mMediaFeedNeedsToRun = true;
+            requestTask(TASK_LOAD);
         }
         return retVal;
     }
@@ -815,7 +984,7 @@ public final class MediaFeed implements Runnable {
         if (mInClusteringMode) {
             // Disable clustering.
             mInClusteringMode = false;
-            mMediaFeedNeedsToRun = true;
+            requestTask(TASK_LOAD);
             return true;
         }
         return false;
@@ -885,7 +1054,7 @@ public final class MediaFeed implements Runnable {
                 mediaSets.set(i - 1, setEnd);
             }
         }
-        mMediaFeedNeedsToRun = true;
+        requestTask(TASK_LOAD);
     }
 
     public MediaSet replaceMediaSet(long setId, DataSource dataSource) {
@@ -905,7 +1074,7 @@ public final class MediaFeed implements Runnable {
             break;
         }
     }
-    mMediaFeedNeedsToRun = true;
+    requestTask(TASK_LOAD);
     return mediaSet;
 }
 
@@ -930,6 +1099,7 @@ public final class MediaFeed implements Runnable {
             synchronized (mRequestedRefresh) {
                 mRequestedRefresh.add(mDataSource.getDatabaseUris());
             }
+            requestTask(TASK_REFRESH);
         }
     }
 
@@ -939,6 +1109,7 @@ public final class MediaFeed implements Runnable {
                 synchronized (mRequestedRefresh) {
                     mRequestedRefresh.add(databaseUris);
                 }
+                requestTask(TASK_REFRESH);
             }
         }
     }
@@ -988,6 +1159,8 @@ public final class MediaFeed implements Runnable {
                             public void onChange(boolean selfChange) {
                                 if (!mWaitingForMediaScanner) {
                                     MediaFeed.this.refresh(new String[] { uri });
+                                } else {
+                                    onMediaChangedWhileScanning();
                                 }
                             }
                         };
@@ -16,6 +16,24 @@
 
 package com.cooliris.media;
 
+import java.util.ArrayList;
+
 public abstract class MediaFilter {
     public abstract boolean pass(MediaItem item);
+
+    /**
+     * Adds the items of the set that pass the filter to the list, in the
+     * order of the set. Filters that can narrow down the candidates override
+     * this, the default tests every item.
+     */
+    public void filter(MediaSet set, ArrayList<MediaItem> passedItems) {
+        final ArrayList<MediaItem> items = set.getItems();
+        final int numItems = set.getNumItems();
+        for (int i = 0; i < numItems; ++i) {
+            final MediaItem item = items.get(i);
+            if (pass(item)) {
+                passedItems.add(item);
+            }
+        }
+    }
 }
@@ -32,23 +32,24 @@ public final class MediaItem {
 
     // mId is not a unique identifier of the item mId is initialized to -1 in
     // some cases.
-    public static final String ID = new String("id");
     public long mId;
 
-    public String mGuid;
     public String mCaption;
     public String mEditUri;
-    public String mContentUri;
     public String mThumbnailUri;
     public String mScreennailUri;
-    public String mMicroThumbnailUri;
     public String mWeblink;
     public String mMimeType;
     private String mDisplayMimeType;
     private int mMediaType = -1;
-    public String mRole;
     public String mDescription;
 
+    // The content URI of a local item is its id appended to the base URI of
+    // its media type. Only the shared base is kept so that large albums don't
+    // hold a string per item, other items set the full URI.
+    private String mContentUri;
+    private String mContentUriBase;
+
     // Location-based properties of the item.
     public double mLatitude;
     public double mLongitude;
@@ -61,11 +62,6 @@ public final class MediaItem {
     public long mDateAddedInSec = 0;
     public int mDurationInSec;
 
-    public int mPrimingState = 0;
-    public static final int NOT_PRIMED = 0;
-    public static final int STARTED_PRIMING = 1;
-    public static final int PRIMED = 2;
-
     public int mClusteringState = 0;
     public static final int NOT_CLUSTERED = 0;
     public static final int CLUSTERED = 1;
@@ -130,6 +126,23 @@ public final class MediaItem {
         mMediaType = mediaType;
     }
 
+    public String getContentUri() {
+        if (mContentUri != null) {
+            return mContentUri;
+        }
+        return (mContentUriBase == null) ? null : mContentUriBase + mId;
+    }
+
+    public void setContentUri(final String contentUri) {
+        mContentUri = contentUri;
+        mContentUriBase = null;
+    }
+
+    public void setContentUriBase(final String contentUriBase) {
+        mContentUri = null;
+        mContentUriBase = contentUriBase;
+    }
+
     public String getDisplayMimeType() {
         if (mDisplayMimeType == null && mMimeType != null) {
             int slashPos = mMimeType.indexOf('/');
@@ -16,10 +16,9 @@
 
 package com.cooliris.media;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -36,6 +35,16 @@ public final class MediaItemTexture extends Texture {
     private static final String TAG = "MediaItemTexture";
     private static final int CACHE_HEADER_SIZE = 12;
 
+    // Each texture load thread reuses its own buffer for cached thumbnails.
+    private static final ThreadLocal<ByteBuffer> sReadBuffer = new ThreadLocal<ByteBuffer>();
+
+    // Recently decoded thumbnails and their cache records, shared by all grids
+    // so that scrolling back over an album does not hit the disk cache again.
+    private static final int MEMORY_CACHE_BITMAP_SIZE = 4 * 1024 * 1024;
+    private static final int MEMORY_CACHE_DATA_SIZE = 2 * 1024 * 1024;
+    public static final ThumbnailMemoryCache sMemoryCache = new ThumbnailMemoryCache(MEMORY_CACHE_BITMAP_SIZE,
+            MEMORY_CACHE_DATA_SIZE);
+
     private final Config mConfig;
     private final MediaItem mItem;
     private Context mContext;
@@ -70,10 +79,8 @@ public final class MediaItemTexture extends Texture {
         if (cache == null) {
             return false;
         }
-        synchronized (cache) {
-            long id = parentMediaSet.mPicasaAlbumId == Shared.INVALID ? Utils.Crc64Long(item.mFilePath) : item.mId;
-            return cache.isDataAvailable(id, item.mDateModifiedInSec * 1000);
-        }
+        long id = parentMediaSet.mPicasaAlbumId == Shared.INVALID ? Utils.Crc64Long(item.mFilePath) : item.mId;
+        return cache.isDataAvailable(id, item.mDateModifiedInSec * 1000);
     }
 
     @Override
@@ -100,7 +107,7 @@ public final class MediaItemTexture extends Texture {
 
         // Special case for non-MediaStore content URIs, do not cache the
         // thumbnail.
-        String uriString = item.mContentUri;
+        String uriString = item.getContentUri();
         if (uriString != null) {
             Uri uri = Uri.parse(uriString);
             if (uri.getScheme().equals("content") && !uri.getAuthority().equals("media")) {
@@ -142,11 +149,11 @@ public final class MediaItemTexture extends Texture {
                             }
                         }
                         if (mIsScreennail) {
-                            retVal = UriTexture.createFromUri(mContext, mItem.mContentUri, 
+                            retVal = UriTexture.createFromUri(mContext, mItem.getContentUri(), 
                                     max_resolution_screennail, max_resolution_screennail,
                                     Utils.Crc64Long(item.mFilePath), null);
                         } else if (mIsHiRes) {
-                            retVal = UriTexture.createFromUri(mContext, mItem.mContentUri, 
+                            retVal = UriTexture.createFromUri(mContext, mItem.getContentUri(), 
                                     max_resolution, max_resolution,
                                     Utils.Crc64Long(item.mFilePath), null);
                         }
@@ -193,46 +200,92 @@ public final class MediaItemTexture extends Texture {
             }
             return retVal;
         } else {
-            byte[] data = null;
-            MediaSet parentMediaSet = item.mParentMediaSet;
-            if (parentMediaSet != null && !parentMediaSet.mIsLocal) {
-                DiskCache thumbnailCache = parentMediaSet.mDataSource.getThumbnailCache();
-                data = thumbnailCache.get(item.mId, 0);
-                if (data == null) {
-                    // We need to generate the cache.
-                    try {
-                        Bitmap retVal = UriTexture.createFromUri(mContext, item.mThumbnailUri, 256, 256, 0, null);
-                        data = CacheService.writeBitmapToCache(thumbnailCache, item.mId, item.mId, retVal, config.thumbnailWidth,
-                                config.thumbnailHeight, item.mDateModifiedInSec * 1000);
-                    } catch (IOException e) {
-                        return null;
-                    } catch (URISyntaxException e) {
-                        return null;
+            // Identify the disk cache record backing this thumbnail, which
+            // also keys the in-memory cache.
+            final MediaSet parentMediaSet = item.mParentMediaSet;
+            final boolean isLocal = parentMediaSet == null || parentMediaSet.mIsLocal;
+            final boolean isVideo = item.getMediaType() == MediaItem.MEDIA_TYPE_VIDEO;
+            final DiskCache thumbnailCache;
+            final long key;
+            final long timestamp;
+            if (!isLocal) {
+                thumbnailCache = parentMediaSet.mDataSource.getThumbnailCache();
+                key = item.mId;
+                timestamp = 0;
+            } else {
+                thumbnailCache = isVideo ? LocalDataSource.sThumbnailCacheVideo : LocalDataSource.sThumbnailCache;
+                key = Utils.Crc64Long(item.mFilePath);
+                timestamp = item.mDateModifiedInSec * 1000;
+            }
+
+            // Look up the decoded thumbnail in memory first.
+            final ThumbnailMemoryCache memoryCache = sMemoryCache;
+            final ThumbnailMemoryCache.BitmapEntry cachedBitmap = memoryCache.getBitmap(thumbnailCache, key, timestamp);
+            if (cachedBitmap != null) {
+                item.mThumbnailId = cachedBitmap.thumbnailId;
+                item.mThumbnailFocusX = cachedBitmap.focusX;
+                item.mThumbnailFocusY = cachedBitmap.focusY;
+                return cachedBitmap.bitmap;
+            }
+
+            // Then the raw record in memory, and finally the disk cache.
+            ByteBuffer data = null;
+            final byte[] cachedData = memoryCache.getData(thumbnailCache, key, timestamp);
+            if (cachedData != null) {
+                data = ByteBuffer.wrap(cachedData);
+            } else {
+                if (!isLocal) {
+                    data = thumbnailCache.get(key, 0, sReadBuffer.get());
+                    if (data == null) {
+                        // We need to generate the cache.
+                        try {
+                            Bitmap retVal = UriTexture.createFromUri(mContext, item.mThumbnailUri, 256, 256, 0, null);
+                            byte[] bytes = CacheService.writeBitmapToCache(thumbnailCache, item.mId, item.mId, retVal,
+                                    config.thumbnailWidth, config.thumbnailHeight, item.mDateModifiedInSec * 1000);
+                            if (bytes != null) {
+                                data = ByteBuffer.wrap(bytes);
+                            }
+                        } catch (IOException e) {
+                            return null;
+                        } catch (URISyntaxException e) {
+                            return null;
+                        }
+                    } else {
+                        sReadBuffer.set(data);
+                    }
+                } else {
+                    data = CacheService.queryThumbnail(mContext, key, item.mId, item.mFilePath, isVideo, timestamp,
+                            sReadBuffer.get());
+                    if (data != null) {
+                        sReadBuffer.set(data);
                     }
                 }
-            } else {
-                data = CacheService.queryThumbnail(mContext, Utils.Crc64Long(item.mFilePath), item.mId,
-                        item.getMediaType() == MediaItem.MEDIA_TYPE_VIDEO, item.mDateModifiedInSec * 1000);
+                if (data != null) {
+                    final byte[] record = new byte[data.limit()];
+                    System.arraycopy(data.array(), data.arrayOffset(), record, 0, record.length);
+                    memoryCache.putData(thumbnailCache, key, timestamp, record);
+                }
             }
-            if (data != null) {
-                try {
-                    // Parse record header.
-                    final ByteArrayInputStream cacheInput = new ByteArrayInputStream(data);
-                    final DataInputStream dataInput = new DataInputStream(cacheInput);
-                    item.mThumbnailId = dataInput.readLong();
-                    item.mThumbnailFocusX = dataInput.readShort();
-                    item.mThumbnailFocusY = dataInput.readShort();
-                    // Decode the thumbnail.
-                    final BitmapFactory.Options options = new BitmapFactory.Options();
-                    options.inDither = false;
-                    options.inScaled = false;
-                    options.inPreferredConfig = Bitmap.Config.RGB_565;
-                    final Bitmap bitmap = BitmapFactory.decodeByteArray(data, CACHE_HEADER_SIZE, data.length - CACHE_HEADER_SIZE,
-                            options);
-                    return bitmap;
-                } catch (IOException e) {
-                    // Fall through to regenerate the cached thumbnail.
+            if (data != null && data.limit() >= CACHE_HEADER_SIZE) {
+                // Parse record header.
+                item.mThumbnailId = data.getLong(0);
+                item.mThumbnailFocusX = data.getShort(8);
+                item.mThumbnailFocusY = data.getShort(10);
+                // Decode the thumbnail directly out of the read buffer.
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inDither = false;
+                options.inScaled = false;
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                final Bitmap bitmap = BitmapFactory.decodeByteArray(data.array(), data.arrayOffset() + CACHE_HEADER_SIZE,
+                        data.limit() - CACHE_HEADER_SIZE, options);
+                if (bitmap != null) {
+                    final Bitmap copy = bitmap.copy(Bitmap.Config.RGB_565, false);
+                    if (copy != null) {
+                        memoryCache.putBitmap(key, new ThumbnailMemoryCache.BitmapEntry(thumbnailCache, timestamp, copy,
+                                item.mThumbnailId, item.mThumbnailFocusX, item.mThumbnailFocusY));
+                    }
                 }
+                return bitmap;
             }
         }
         return null;
@@ -79,9 +79,16 @@ public class MediaSet {
     public boolean mSyncPending = false;
 
     private ArrayList<MediaItem> mItems;
-    private LongSparseArray<MediaItem> mItemsLookup;
-    private LongSparseArray<MediaItem> mItemsLookupVideo;
+    private LongHashMap<MediaItem> mItemsLookup;
+    private LongHashMap<MediaItem> mItemsLookupVideo;
+    // Built by the first location query, then kept up to date as items are
+    // appended and removed. Items are indexed in the order of the set.
+    private LocationIndex mLocationIndex;
     public int mNumItemsLoaded = 0;
+    // Index of the next record to decode when the items are loaded from the
+    // album cache a window at a time. It differs from mNumItemsLoaded when
+    // images or videos are filtered out.
+    public int mNumCacheRecordsRead = 0;
     // mNumExpectedItems is preset to how many items are expected to be in the
     // set as it is used to visually
     // display the number of items in the set and we don't want this display to
@@ -96,10 +103,8 @@ public class MediaSet {
 
     public MediaSet(DataSource dataSource) {
         mItems = new ArrayList<MediaItem>(16);
-        mItemsLookup = new LongSparseArray<MediaItem>();
-        mItemsLookup.clear();
-        mItemsLookupVideo = new LongSparseArray<MediaItem>();
-        mItemsLookupVideo.clear();
+        mItemsLookup = new LongHashMap<MediaItem>();
+        mItemsLookupVideo = new LongHashMap<MediaItem>();
         mDataSource = dataSource;
         // TODO(Venkat): Can we move away from this dummy item setup?
         MediaItem item = new MediaItem();
@@ -153,6 +158,7 @@ public class MediaSet {
             refresh();
             mItemsLookup.clear();
             mItemsLookupVideo.clear();
+            mLocationIndex = null;
         }
     }
 
@@ -187,7 +193,7 @@ public class MediaSet {
         if (itemToAdd == null) {
             return;
         }
-        final LongSparseArray<MediaItem> lookup = (itemToAdd.getMediaType() == MediaItem.MEDIA_TYPE_IMAGE) ? mItemsLookup
+        final LongHashMap<MediaItem> lookup = (itemToAdd.getMediaType() == MediaItem.MEDIA_TYPE_IMAGE) ? mItemsLookup
                 : mItemsLookupVideo;
         MediaItem lookupItem = lookup.get(itemToAdd.mId);
         if (lookupItem != null && !lookupItem.mFilePath.equals(itemToAdd.mFilePath)) {
@@ -196,17 +202,29 @@ public class MediaSet {
         final MediaItem item = (lookupItem == null) ? itemToAdd : lookupItem;
         item.mFlagForDelete = false;
         synchronized(mItems) {
+            MediaItem replacedItem = null;
             if (mItems.size() == 0) {
                 mItems.add(item);
             } else if (mItems.get(0).mId == -1L) {
                 mItems.set(0, item);
             } else {
                 if (mItems.size() > mCurrentLocation) {
-                    mItems.set(mCurrentLocation, item);
+                    replacedItem = mItems.set(mCurrentLocation, item);
                 } else {
                     mItems.add(mCurrentLocation, item);
                 }
             }
+            if (mLocationIndex != null) {
+                if (replacedItem != null && replacedItem != item) {
+                    // The set is being reloaded over its previous items. The
+                    // index is rebuilt by the next query, so that it neither
+                    // keeps the replaced item nor misorders the new one.
+                    mLocationIndex = null;
+                } else if (replacedItem == null && lookupItem == null && item.mId != Shared.INVALID) {
+                    // Appended at the end, after every indexed item.
+                    mLocationIndex.add(item);
+                }
+            }
         }
         if (item.mId != Shared.INVALID) {
             if (lookupItem == null) {
@@ -274,9 +292,12 @@ public class MediaSet {
                 --mNumExpectedItems;
                 --mNumItemsLoaded;
                 --mCurrentLocation;
-                final LongSparseArray<MediaItem> lookup = (itemToRemove.getMediaType() == MediaItem.MEDIA_TYPE_IMAGE) ? mItemsLookup
+                final LongHashMap<MediaItem> lookup = (itemToRemove.getMediaType() == MediaItem.MEDIA_TYPE_IMAGE) ? mItemsLookup
                         : mItemsLookupVideo;
                 lookup.remove(itemToRemove.mId);
+                if (mLocationIndex != null) {
+                    mLocationIndex.remove(itemToRemove);
+                }
                 return true;
             }
             return false;
@@ -304,11 +325,36 @@ public class MediaSet {
         }
     }
 
+    /**
+     * Adds the items that may lie within the given distance in meters of the
+     * center to the list, in the order of the set. The exact distance of the
+     * candidates is left to the caller.
+     */
+    public void queryLocation(double centerLatitude, double centerLongitude, double radius, ArrayList<MediaItem> candidates) {
+        LocationIndex locationIndex;
+        synchronized (mItems) {
+            locationIndex = mLocationIndex;
+            if (locationIndex == null) {
+                locationIndex = new LocationIndex();
+                final ArrayList<MediaItem> items = mItems;
+                final int numItems = items.size();
+                for (int i = 0; i < numItems; ++i) {
+                    final MediaItem item = items.get(i);
+                    if (item.mId != Shared.INVALID) {
+                        locationIndex.add(item);
+                    }
+                }
+                mLocationIndex = locationIndex;
+            }
+        }
+        locationIndex.query(centerLatitude, centerLongitude, radius, candidates);
+    }
+
     /**
      * @return true if this MediaSet contains the argument MediaItem.
      */
     public boolean lookupContainsItem(final MediaItem item) {
-        final LongSparseArray<MediaItem> lookupTable = (item.getMediaType() == MediaItem.MEDIA_TYPE_IMAGE) ? mItemsLookup
+        final LongHashMap<MediaItem> lookupTable = (item.getMediaType() == MediaItem.MEDIA_TYPE_IMAGE) ? mItemsLookup
                 : mItemsLookupVideo;
         MediaItem lookUp = lookupTable.get(item.mId);
         if (lookUp != null && lookUp.mFilePath.equals(item.mFilePath)) {
@@ -369,6 +415,7 @@ public class MediaSet {
 
     public void refresh() {
         mNumItemsLoaded = 0;
+        mNumCacheRecordsRead = 0;
         mCurrentLocation = 0;
         final ArrayList<MediaItem> items = mItems;
         final int numItems = items.size();
@@ -379,6 +426,12 @@ public class MediaSet {
     }
 
     public void checkForDeletedItems() {
+        if (mNumItemsLoaded < mNumExpectedItems) {
+            // The set is still being loaded a window at a time, items flagged
+            // after the current location are about to be replaced and must
+            // not be removed yet.
+            return;
+        }
         final ArrayList<MediaItem> items = mItems;
         final ArrayList<MediaItem> itemsToDelete = new ArrayList<MediaItem>();
         synchronized (items) {
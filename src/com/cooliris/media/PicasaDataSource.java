@@ -42,7 +42,10 @@ import com.cooliris.picasa.PicasaService;
 
 public final class PicasaDataSource implements DataSource {
     private static final String TAG = "PicasaDataSource";
-    public static final DiskCache sThumbnailCache = new DiskCache("picasa-thumbs");
+    // The Picasa thumbnails get their own budget so that they cannot crowd
+    // out the local ones.
+    private static final long THUMBNAIL_CACHE_MAX_SIZE = 48 * 1024 * 1024;
+    public static final DiskCache sThumbnailCache = new DiskCache("picasa-thumbs", THUMBNAIL_CACHE_MAX_SIZE);
     private static final String DEFAULT_BUCKET_SORT_ORDER = AlbumEntry.Columns.USER + ", " + AlbumEntry.Columns.DATE_PUBLISHED
             + " DESC";
 
@@ -177,11 +180,11 @@ public final class PicasaDataSource implements DataSource {
                 item.mLongitude = photo.longitude;
                 item.mThumbnailUri = photo.thumbnailUrl;
                 item.mScreennailUri = photo.screennailUrl;
-                item.mContentUri = photo.contentUrl;
+                item.setContentUri(photo.contentUrl);
                 item.mCaption = photo.title;
                 item.mWeblink = photo.htmlPageUrl;
                 item.mDescription = photo.summary;
-                item.mFilePath = item.mContentUri;
+                item.mFilePath = item.getContentUri();
                 feed.addItemToMediaSet(item, set);
                 if (!cursor.moveToNext()) {
                     break;
@@ -47,7 +47,7 @@ import javax.microedition.khronos.opengles.GL11Ext;
 
 public final class RenderView extends GLSurfaceView implements GLSurfaceView.Renderer, SensorEventListener {
     private static final String TAG = "RenderView";
-    private static final int NUM_TEXTURE_LOAD_THREADS = 4;
+    private static final int NUM_TEXTURE_LOAD_THREADS = TextureLoadScheduler.MAX_CONCURRENT_LOADS;
     private static final int MAX_LOADING_COUNT = 8;
 
     private static final int EVENT_NONE = 0;
@@ -73,12 +73,8 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
     private volatile boolean mPendingSensorEvent = false;
 
     private int mLoadingCount = 0;
-    private static final Deque<Texture> sLoadInputQueue = new Deque<Texture>();
-    private static final Deque<Texture> sLoadInputQueueCached = new Deque<Texture>();
-    private static final Deque<Texture> sLoadInputQueueVideo = new Deque<Texture>();
+    private static final TextureLoadScheduler sLoadScheduler = new TextureLoadScheduler();
     private static final Deque<Texture> sLoadOutputQueue = new Deque<Texture>();
-    private static TextureLoadThread sCachedTextureLoadThread = null;
-    private static TextureLoadThread sVideoTextureLoadThread = null;
     private static final TextureLoadThread[] sTextureLoadThreads = new TextureLoadThread[NUM_TEXTURE_LOAD_THREADS];
 
     private final Deque<MotionEvent> mTouchEventQueue = new Deque<MotionEvent>();
@@ -141,15 +137,9 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
 	}
         setRenderer(this);
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        if (sCachedTextureLoadThread == null) {
+        if (sTextureLoadThreads[0] == null) {
             for (int i = 0; i != NUM_TEXTURE_LOAD_THREADS; ++i) {
                 TextureLoadThread thread = new TextureLoadThread();
-                if (i == 0) {
-                    sCachedTextureLoadThread = thread;
-                }
-                if (i == 1) {
-                    sVideoTextureLoadThread = thread;
-                }
                 sTextureLoadThreads[i] = thread;
                 thread.start();
             }
@@ -209,8 +199,24 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
     }
 
     public void prime(Texture texture, boolean highPriority) {
-        if (texture != null && texture.mState == Texture.STATE_UNLOADED && (highPriority || mLoadingCount < MAX_LOADING_COUNT)) {
-            queueLoad(texture, highPriority);
+        prime(texture, highPriority ? TextureLoadScheduler.PRIORITY_HIGH : TextureLoadScheduler.PRIORITY_LOW);
+    }
+
+    /**
+     * Requests the texture to be loaded, lower priorities being loaded first.
+     * Textures that are not requested again for a few frames are cancelled.
+     */
+    public void prime(Texture texture, int priority) {
+        if (texture == null) {
+            return;
+        }
+        switch (texture.mState) {
+        case Texture.STATE_UNLOADED:
+            queueLoad(texture, priority);
+            break;
+        case Texture.STATE_LOADING:
+            sLoadScheduler.update(texture, priority, true);
+            break;
         }
     }
 
@@ -285,9 +291,10 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
                     loadTexture(texture);
                     return false;
                 }
-                if (mLoadingCount < MAX_LOADING_COUNT) {
-                    queueLoad(texture, false);
-                }
+                queueLoad(texture, TextureLoadScheduler.PRIORITY_LOW);
+                break;
+            case Texture.STATE_LOADING:
+                sLoadScheduler.update(texture, 0, false);
                 break;
             case Texture.STATE_LOADED:
                 mGL.glBindTexture(GL11.GL_TEXTURE_2D, texture.mId);
@@ -361,35 +368,28 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
         }
     }
 
-    private void queueLoad(final Texture texture, boolean highPriority) {
+    private void queueLoad(final Texture texture, int priority) {
         // Allow the texture to defer queuing.
         if (!texture.shouldQueue()) {
             return;
         }
 
-        // Change the texture state to loading.
-        texture.mState = Texture.STATE_LOADING;
-
-        // Push the texture onto the load input queue.
-        Deque<Texture> inputQueue = (texture.isUncachedVideo()) ? sLoadInputQueueVideo
-                : (texture.isCached()) ? sLoadInputQueueCached : sLoadInputQueue;
-        ;
-        synchronized (inputQueue) {
-            if (highPriority) {
-                inputQueue.addFirst(texture);
-                // Enforce the maximum loading count by removing something from the end of
-                // the loading queue, if necessary.
-                if (mLoadingCount >= MAX_LOADING_COUNT) {
-                	Texture unloadTexture = inputQueue.pollLast();
-                	unloadTexture.mState = Texture.STATE_UNLOADED;
-                	--mLoadingCount;
-                }
-            } else {
-                inputQueue.addLast(texture);
+        // Enforce the maximum loading count by evicting a less urgent request,
+        // if necessary. High priority and visible requests are always queued.
+        final TextureLoadScheduler scheduler = sLoadScheduler;
+        if (mLoadingCount >= MAX_LOADING_COUNT) {
+            if (scheduler.evictLeastUrgent(priority)) {
+                --mLoadingCount;
+            } else if (priority > TextureLoadScheduler.PRIORITY_VISIBLE) {
+                return;
             }
-            inputQueue.notify();
         }
-        ++mLoadingCount;
+
+        // Change the texture state to loading and hand it to the scheduler.
+        texture.mState = Texture.STATE_LOADING;
+        if (scheduler.add(texture, priority)) {
+            ++mLoadingCount;
+        }
     }
 
     public void draw2D(Texture texture, float x, float y) {
@@ -522,6 +522,13 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
             }
             mActiveTextureList.remove(textureReference.activeListEntry);
         }
+
+        // Cancel the requests for textures that are no longer drawn.
+        mLoadingCount -= sLoadScheduler.startFrame();
+        if (mLoadingCount < 0) {
+            mLoadingCount = 0;
+        }
+
         Deque<Texture> outputQueue = sLoadOutputQueue;
         Texture texture;
         do {
@@ -613,6 +620,7 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
     public void onPause() {
         super.onPause();
         Log.i(TAG, "OnPause RenderView " + this);
+        sLoadScheduler.logMetrics();
         mSensorManager.unregisterListener(this);
         if (mRootLayer != null) {
             mRootLayer.onPause();
@@ -663,14 +671,7 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
         }
 
         boolean wasLoadingExpensiveTextures = isLoadingExpensiveTextures();
-        boolean loadingExpensiveTextures = false;
-        int numTextureThreads = sTextureLoadThreads.length;
-        for (int i = 2; i < numTextureThreads; ++i) {
-            if (sTextureLoadThreads[i].mIsLoading) {
-                loadingExpensiveTextures = true;
-                break;
-            }
-        }
+        boolean loadingExpensiveTextures = sLoadScheduler.isLoadingExpensiveTextures();
         if (loadingExpensiveTextures != wasLoadingExpensiveTextures) {
             mLoadingExpensiveTexturesStartTime = loadingExpensiveTextures ? SystemClock.uptimeMillis() : 0;
         }
@@ -1059,8 +1060,6 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
     }
 
     private final class TextureLoadThread extends Thread {
-        public boolean mIsLoading;
-
         public TextureLoadThread() {
             super("TextureLoad");
         }
@@ -1068,23 +1067,17 @@ public final class RenderView extends GLSurfaceView implements GLSurfaceView.Ren
         @Override
         public void run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            Deque<Texture> inputQueue = (sVideoTextureLoadThread == this) ? sLoadInputQueueVideo
-                    : ((sCachedTextureLoadThread == this) ? sLoadInputQueueCached : sLoadInputQueue);
+            TextureLoadScheduler scheduler = sLoadScheduler;
             Deque<Texture> outputQueue = sLoadOutputQueue;
             try {
                 for (;;) {
-                    // Pop the next texture from the input queue.
-                    Texture texture = null;
-                    synchronized (inputQueue) {
-                        while ((texture = inputQueue.pollFirst()) == null) {
-                            inputQueue.wait();
-                        }
-                    }
-                    if (sCachedTextureLoadThread != this)
-                        mIsLoading = true;
+                    // Take the most urgent texture from the scheduler.
+                    Texture texture = scheduler.take();
+
                     // Load the texture bitmap.
+                    long startTime = SystemClock.uptimeMillis();
                     load(texture);
-                    mIsLoading = false;
+                    scheduler.finish(texture, SystemClock.uptimeMillis() - startTime);
 
                     // Push the texture onto the output queue.
                     synchronized (outputQueue) {
@@ -42,7 +42,8 @@ public final class ReverseGeocoder extends Thread {
     // "California, US".
     private static final int MAX_LOCALITY_MILE_RANGE = 20;
     private static final Deque<MediaSet> sQueue = new Deque<MediaSet>();
-    private static final DiskCache sGeoCache = new DiskCache("geocoder-cache");
+    private static final long GEO_CACHE_MAX_SIZE = 2 * 1024 * 1024;
+    private static final DiskCache sGeoCache = new DiskCache("geocoder-cache", GEO_CACHE_MAX_SIZE);
     private static final String TAG = "ReverseGeocoder";
     private static Criteria LOCATION_CRITERIA = new Criteria();
     private static Address sCurrentAddress; // last known address
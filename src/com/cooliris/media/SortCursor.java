@@ -29,33 +29,42 @@ import android.util.Log;
 /**
  * A variant of MergeCursor that sorts the cursors being merged. If decent
  * performance is ever obtained, it can be put back under android.database.
+ *
+ * The merge is done once, in one forward pass over the cursors with a heap of
+ * their current rows, and records the cursor and the row of every position.
+ * Moving to any position then only moves the cursor it comes from.
  */
 public class SortCursor extends AbstractCursor {
     private static final String TAG = "SortCursor";
     private Cursor mCursor; // updated in onMove
     private Cursor[] mCursors;
     private int[] mSortColumns;
-    private final int ROWCACHESIZE = 64;
-    private int mRowNumCache[] = new int[ROWCACHESIZE];
-    private int mCursorCache[] = new int[ROWCACHESIZE];
-    private int mCurRowNumCache[][];
-    private int mLastCacheHit = -1;
     private int mType;
     private boolean mAscending;
     public static final int TYPE_STRING = 0;
     public static final int TYPE_NUMERIC = 1;
 
+    // The cursor and its row for each position, null until the first move.
+    private short[] mPositionCursors;
+    private int[] mPositionRows;
+    // The sort key of the current row of each cursor during the merge.
+    private String[] mStringKeys;
+    private long[] mLongKeys;
+
     private DataSetObserver mObserver = new DataSetObserver() {
         @Override
         public void onChanged() {
-            // Reset our position so the optimizations in move-related code
-            // don't screw us over
+            // Reset our position and merge again on the next move.
             mPos = -1;
+            mPositionCursors = null;
+            mPositionRows = null;
         }
 
         @Override
         public void onInvalidated() {
             mPos = -1;
+            mPositionCursors = null;
+            mPositionRows = null;
         }
     };
     private int mCursorIndex;
@@ -65,6 +74,9 @@ public class SortCursor extends AbstractCursor {
         mCursors = cursors;
         mType = type;
         int length = mCursors.length;
+        if (length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many cursors: " + length);
+        }
         mSortColumns = new int[length];
         for (int i = 0; i < length; i++) {
             if (mCursors[i] == null) {
@@ -72,43 +84,10 @@ public class SortCursor extends AbstractCursor {
             }
             // Register ourself as a data set observer
             mCursors[i].registerDataSetObserver(mObserver);
-            mCursors[i].moveToFirst();
             // We don't catch the exception.
             mSortColumns[i] = mCursors[i].getColumnIndexOrThrow(sortcolumn);
         }
         mCursor = null;
-        if (type == TYPE_STRING) {
-            String smallest = "";
-            for (int j = 0; j < length; j++) {
-                if (mCursors[j] == null || mCursors[j].isAfterLast())
-                    continue;
-                String current = mCursors[j].getString(mSortColumns[j]);
-                if (mCursor == null || current == null || current.compareToIgnoreCase(smallest) < 0) {
-                    smallest = current;
-                    mCursor = mCursors[j];
-                    mCursorIndex = j;
-                }
-            }
-        } else {
-            long smallest = (ascending) ? Long.MAX_VALUE : Long.MIN_VALUE;
-            for (int j = 0; j < length; j++) {
-                if (mCursors[j] == null || mCursors[j].isAfterLast()) {
-                    continue;
-                }
-                long current = mCursors[j].getLong(mSortColumns[j]);
-                boolean comparison = (ascending) ? (current < smallest) : (current > smallest);
-                if (mCursor == null || comparison) {
-                    smallest = current;
-                    mCursor = mCursors[j];
-                    mCursorIndex = j;
-                }
-            }
-        }
-
-        for (int i = mRowNumCache.length - 1; i >= 0; i--) {
-            mRowNumCache[i] = -2;
-        }
-        mCurRowNumCache = new int[ROWCACHESIZE][length];
     }
 
     @Override
@@ -125,112 +104,139 @@ public class SortCursor extends AbstractCursor {
 
     @Override
     public boolean onMove(int oldPosition, int newPosition) {
-        if (oldPosition == newPosition)
-            return true;
-
-        /*
-         * Find the right cursor Because the client of this cursor (the
-         * listadapter/view) tends to jump around in the cursor somewhat, a
-         * simple cache strategy is used to avoid having to search all cursors
-         * from the start. TODO: investigate strategies for optimizing random
-         * access and reverse-order access.
-         */
-
-        int cache_entry = newPosition % ROWCACHESIZE;
-
-        if (mRowNumCache[cache_entry] == newPosition) {
-            int which = mCursorCache[cache_entry];
-            mCursor = mCursors[which];
-            mCursorIndex = which;
-            if (mCursor == null) {
-                Log.w(TAG, "onMove: cache results in a null cursor.");
-                return false;
-            }
-            mCursor.moveToPosition(mCurRowNumCache[cache_entry][which]);
-            mLastCacheHit = cache_entry;
-            return true;
+        if (mPositionRows == null) {
+            merge();
         }
+        if (newPosition < 0 || newPosition >= mPositionRows.length) {
+            return false;
+        }
+        final int which = mPositionCursors[newPosition];
+        mCursor = mCursors[which];
+        mCursorIndex = which;
+        return mCursor.moveToPosition(mPositionRows[newPosition]);
+    }
 
-        mCursor = null;
-        int length = mCursors.length;
-
-        if (mLastCacheHit >= 0) {
-            for (int i = 0; i < length; i++) {
-                if (mCursors[i] == null)
-                    continue;
-                mCursors[i].moveToPosition(mCurRowNumCache[mLastCacheHit][i]);
+    /**
+     * Merges the cursors in one forward pass and records the cursor and the
+     * row of every position. Among rows with the same key the row of the
+     * cursor that comes first is taken first.
+     */
+    private void merge() {
+        final Cursor[] cursors = mCursors;
+        final int length = cursors.length;
+        if (mType == TYPE_STRING) {
+            mStringKeys = new String[length];
+        } else {
+            mLongKeys = new long[length];
+        }
+        final int[] heap = new int[length];
+        int heapSize = 0;
+        for (int i = 0; i < length; i++) {
+            if (cursors[i] != null && cursors[i].moveToFirst()) {
+                readKey(i);
+                heap[heapSize] = i;
+                siftUp(heap, heapSize++);
             }
         }
 
-        if (newPosition < oldPosition || oldPosition == -1) {
-            for (int i = 0; i < length; i++) {
-                if (mCursors[i] == null)
-                    continue;
-                mCursors[i].moveToFirst();
+        final int count = getCount();
+        short[] positionCursors = new short[count];
+        int[] positionRows = new int[count];
+        int position = 0;
+        while (heapSize > 0 && position < count) {
+            final int which = heap[0];
+            final Cursor cursor = cursors[which];
+            positionCursors[position] = (short) which;
+            positionRows[position] = cursor.getPosition();
+            ++position;
+            if (cursor.moveToNext()) {
+                readKey(which);
+            } else {
+                heap[0] = heap[--heapSize];
             }
-            oldPosition = 0;
+            siftDown(heap, heapSize, 0);
         }
-        if (oldPosition < 0) {
-            oldPosition = 0;
+        if (position < count) {
+            Log.w(TAG, "merge: " + position + " rows of " + count);
+            final short[] trimmedCursors = new short[position];
+            final int[] trimmedRows = new int[position];
+            System.arraycopy(positionCursors, 0, trimmedCursors, 0, position);
+            System.arraycopy(positionRows, 0, trimmedRows, 0, position);
+            positionCursors = trimmedCursors;
+            positionRows = trimmedRows;
         }
+        mStringKeys = null;
+        mLongKeys = null;
+        mPositionCursors = positionCursors;
+        mPositionRows = positionRows;
+    }
 
-        // search forward to the new position
-        int smallestIdx = -1;
+    private void readKey(int which) {
         if (mType == TYPE_STRING) {
-            for (int i = oldPosition; i <= newPosition; i++) {
-                String smallest = "";
-                smallestIdx = -1;
-                for (int j = 0; j < length; j++) {
-                    if (mCursors[j] == null || mCursors[j].isAfterLast()) {
-                        continue;
-                    }
-                    String current = mCursors[j].getString(mSortColumns[j]);
-                    if (smallestIdx < 0 || current == null || current.compareToIgnoreCase(smallest) < 0) {
-                        smallest = current;
-                        smallestIdx = j;
-                    }
-                }
-                if (i == newPosition) {
-                    break;
-                }
-                if (mCursors[smallestIdx] != null) {
-                    mCursors[smallestIdx].moveToNext();
-                }
+            mStringKeys[which] = mCursors[which].getString(mSortColumns[which]);
+        } else {
+            mLongKeys[which] = mCursors[which].getLong(mSortColumns[which]);
+        }
+    }
+
+    /**
+     * Returns true if the current row of the first cursor comes before the
+     * current row of the second one. Null strings come first.
+     */
+    private boolean precedes(int first, int second) {
+        int comparison;
+        if (mType == TYPE_STRING) {
+            final String firstKey = mStringKeys[first];
+            final String secondKey = mStringKeys[second];
+            if (firstKey == null || secondKey == null) {
+                comparison = (firstKey == secondKey) ? 0 : ((firstKey == null) ? -1 : 1);
+            } else {
+                comparison = firstKey.compareToIgnoreCase(secondKey);
             }
         } else {
-            for (int i = oldPosition; i <= newPosition; i++) {
-                long smallest = (mAscending) ? Long.MAX_VALUE : Long.MIN_VALUE;
-                smallestIdx = -1;
-                for (int j = 0; j < length; j++) {
-                    if (mCursors[j] == null || mCursors[j].isAfterLast()) {
-                        continue;
-                    }
-                    long current = mCursors[j].getLong(mSortColumns[j]);
-                    boolean comparison = (mAscending) ? current < smallest : current > smallest;
-                    if (smallestIdx < 0 || comparison) {
-                        smallest = current;
-                        smallestIdx = j;
-                    }
-                }
-                if (i == newPosition) {
-                    break;
-                }
-                if (mCursors[smallestIdx] != null) {
-                    mCursors[smallestIdx].moveToNext();
-                }
+            final long firstKey = mLongKeys[first];
+            final long secondKey = mLongKeys[second];
+            comparison = (firstKey == secondKey) ? 0 : ((firstKey < secondKey) ? -1 : 1);
+        }
+        if (comparison == 0) {
+            return first < second;
+        }
+        return (mAscending) ? comparison < 0 : comparison > 0;
+    }
+
+    private void siftUp(int[] heap, int index) {
+        final int value = heap[index];
+        while (index > 0) {
+            final int parent = (index - 1) >> 1;
+            if (!precedes(value, heap[parent])) {
+                break;
             }
+            heap[index] = heap[parent];
+            index = parent;
         }
-        mCursor = mCursors[smallestIdx];
-        mCursorIndex = smallestIdx;
-        mRowNumCache[cache_entry] = newPosition;
-        mCursorCache[cache_entry] = smallestIdx;
-        for (int i = 0; i < length; i++) {
-            if (mCursors[i] != null) {
-                mCurRowNumCache[cache_entry][i] = mCursors[i].getPosition();
+        heap[index] = value;
+    }
+
+    private void siftDown(int[] heap, int heapSize, int index) {
+        if (heapSize == 0) {
+            return;
+        }
+        final int value = heap[index];
+        for (;;) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
             }
+            if (child + 1 < heapSize && precedes(heap[child + 1], heap[child])) {
+                ++child;
+            }
+            if (!precedes(heap[child], value)) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
         }
-        mLastCacheHit = -1;
-        return true;
+        heap[index] = value;
     }
 
     @Override
@@ -39,6 +39,13 @@ public abstract class Texture {
     boolean mIsScreennail = false;
     boolean mIsHiRes = false;
 
+    // Load request state, owned by the TextureLoadScheduler.
+    int mLoadClass;
+    int mLoadPriority;
+    long mLoadOrder;
+    int mLoadFrame;
+    long mLoadQueueTime;
+
     public boolean isCached() {
         return false;
     }
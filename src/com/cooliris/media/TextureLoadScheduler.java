@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.media;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Orders the texture load requests for the texture load threads. Requests
+ * are served by priority, a lower value being more urgent, with the most
+ * recent request first among requests of the same priority. The number of
+ * requests of each class that are loaded at the same time is limited so that
+ * slow decodes cannot hold up the cheap ones.
+ *
+ * Requests are made and refreshed from the GL thread every frame the texture
+ * is needed. A request that was not refreshed for a few frames belongs to a
+ * texture that scrolled out of view and is cancelled. The queue only holds a
+ * handful of requests since RenderView bounds the number of loading textures,
+ * so it is a plain list.
+ */
+final class TextureLoadScheduler {
+    private static final String TAG = "TextureLoadScheduler";
+
+    public static final int CLASS_CACHED = 0;
+    public static final int CLASS_UNCACHED = 1;
+    public static final int CLASS_VIDEO = 2;
+    public static final int CLASS_HIRES = 3;
+    private static final int NUM_CLASSES = 4;
+    private static final String[] CLASS_NAMES = { "cached", "uncached", "video", "hires" };
+    private static final int[] MAX_ACTIVE_LOADS = { 1, 2, 1, 1 };
+
+    // The number of load threads needed to run every class at its limit.
+    public static final int MAX_CONCURRENT_LOADS = 5;
+
+    // Requests with this priority are always queued.
+    public static final int PRIORITY_HIGH = 0;
+    // Priority of a texture in the visible range, which is also always
+    // queued. Textures outside of it get this plus their distance to the
+    // range in slots.
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_LOW = 1000;
+
+    // Frames are only rendered on demand, so this is about half a second of
+    // animation.
+    private static final int STALE_FRAMES = 30;
+
+    private final ArrayList<Texture> mQueue = new ArrayList<Texture>();
+    private final int[] mNumActiveLoads = new int[NUM_CLASSES];
+    private long mNextOrder = 0;
+    private int mFrame = 0;
+
+    // Metrics, per class.
+    private final int[] mNumRequests = new int[NUM_CLASSES];
+    private final int[] mNumLoads = new int[NUM_CLASSES];
+    private final int[] mNumCancelled = new int[NUM_CLASSES];
+    private final int[] mNumEvicted = new int[NUM_CLASSES];
+    private final long[] mTotalWaitTime = new long[NUM_CLASSES];
+    private final long[] mTotalLoadTime = new long[NUM_CLASSES];
+
+    public static int getLoadClass(Texture texture) {
+        if (texture.isUncachedVideo()) {
+            return CLASS_VIDEO;
+        } else if (texture.isCached()) {
+            return CLASS_CACHED;
+        } else if (texture.mIsHiRes || texture.mIsScreennail) {
+            return CLASS_HIRES;
+        } else {
+            return CLASS_UNCACHED;
+        }
+    }
+
+    public synchronized int getNumQueued() {
+        return mQueue.size();
+    }
+
+    /**
+     * Starts a new frame and cancels the requests that were not refreshed
+     * during the last frames. The textures of the cancelled requests are
+     * marked as unloaded. Returns the number of cancelled requests.
+     */
+    public synchronized int startFrame() {
+        final int frame = ++mFrame;
+        final ArrayList<Texture> queue = mQueue;
+        int numCancelled = 0;
+        for (int i = queue.size() - 1; i >= 0; --i) {
+            final Texture texture = queue.get(i);
+            if (frame - texture.mLoadFrame > STALE_FRAMES) {
+                queue.remove(i);
+                texture.mState = Texture.STATE_UNLOADED;
+                ++mNumCancelled[texture.mLoadClass];
+                ++numCancelled;
+            }
+        }
+        return numCancelled;
+    }
+
+    /**
+     * Queues a load request for a texture in the STATE_LOADING state. Returns
+     * false if the texture was already queued, in which case the request is
+     * only updated.
+     */
+    public synchronized boolean add(Texture texture, int priority) {
+        if (update(texture, priority, true)) {
+            return false;
+        }
+        final int loadClass = getLoadClass(texture);
+        texture.mLoadClass = loadClass;
+        texture.mLoadPriority = priority;
+        texture.mLoadOrder = ++mNextOrder;
+        texture.mLoadFrame = mFrame;
+        texture.mLoadQueueTime = SystemClock.uptimeMillis();
+        mQueue.add(texture);
+        ++mNumRequests[loadClass];
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Refreshes the request for a queued texture and changes its priority if
+     * one is given. Returns false if the texture is not queued.
+     */
+    public synchronized boolean update(Texture texture, int priority, boolean updatePriority) {
+        if (!mQueue.contains(texture)) {
+            return false;
+        }
+        texture.mLoadFrame = mFrame;
+        if (updatePriority && priority != texture.mLoadPriority) {
+            texture.mLoadPriority = priority;
+            texture.mLoadOrder = ++mNextOrder;
+        }
+        return true;
+    }
+
+    /**
+     * Evicts the least urgent queued request if it is less urgent than the
+     * given priority. Returns true if a request was evicted.
+     */
+    public synchronized boolean evictLeastUrgent(int priority) {
+        final ArrayList<Texture> queue = mQueue;
+        int worstIndex = -1;
+        Texture worst = null;
+        for (int i = 0, size = queue.size(); i < size; ++i) {
+            final Texture texture = queue.get(i);
+            if (worst == null || compare(texture, worst) > 0) {
+                worst = texture;
+                worstIndex = i;
+            }
+        }
+        if (worst == null || worst.mLoadPriority <= priority) {
+            return false;
+        }
+        queue.remove(worstIndex);
+        worst.mState = Texture.STATE_UNLOADED;
+        ++mNumEvicted[worst.mLoadClass];
+        return true;
+    }
+
+    /**
+     * Removes and returns the most urgent request whose class is below its
+     * concurrency limit, waiting if there is none.
+     */
+    public synchronized Texture take() throws InterruptedException {
+        for (;;) {
+            final ArrayList<Texture> queue = mQueue;
+            final int[] numActiveLoads = mNumActiveLoads;
+            int bestIndex = -1;
+            Texture best = null;
+            for (int i = 0, size = queue.size(); i < size; ++i) {
+                final Texture texture = queue.get(i);
+                if (numActiveLoads[texture.mLoadClass] >= MAX_ACTIVE_LOADS[texture.mLoadClass]) {
+                    continue;
+                }
+                if (best == null || compare(texture, best) < 0) {
+                    best = texture;
+                    bestIndex = i;
+                }
+            }
+            if (best != null) {
+                queue.remove(bestIndex);
+                final int loadClass = best.mLoadClass;
+                ++numActiveLoads[loadClass];
+                mTotalWaitTime[loadClass] += SystemClock.uptimeMillis() - best.mLoadQueueTime;
+                return best;
+            }
+            wait();
+        }
+    }
+
+    /** Called by the load thread once the texture returned by take() is loaded. */
+    public synchronized void finish(Texture texture, long loadTime) {
+        final int loadClass = texture.mLoadClass;
+        --mNumActiveLoads[loadClass];
+        ++mNumLoads[loadClass];
+        mTotalLoadTime[loadClass] += loadTime;
+        notifyAll();
+    }
+
+    /** Returns true if uncached thumbnails or hi-res images are being loaded. */
+    public synchronized boolean isLoadingExpensiveTextures() {
+        return mNumActiveLoads[CLASS_UNCACHED] != 0 || mNumActiveLoads[CLASS_HIRES] != 0;
+    }
+
+    public synchronized void logMetrics() {
+        for (int i = 0; i < NUM_CLASSES; ++i) {
+            final int numLoads = mNumLoads[i];
+            Log.i(TAG, CLASS_NAMES[i] + ": " + mNumRequests[i] + " requests, " + numLoads + " loaded, " + mNumCancelled[i]
+                    + " cancelled, " + mNumEvicted[i] + " evicted, avg wait " + (numLoads == 0 ? 0 : mTotalWaitTime[i] / numLoads) + "ms, avg load "
+                    + (numLoads == 0 ? 0 : mTotalLoadTime[i] / numLoads) + "ms");
+        }
+    }
+
+    private static int compare(Texture texture1, Texture texture2) {
+        if (texture1.mLoadPriority != texture2.mLoadPriority) {
+            return (texture1.mLoadPriority < texture2.mLoadPriority) ? -1 : 1;
+        }
+        // The most recent request first.
+        return (texture1.mLoadOrder > texture2.mLoadOrder) ? -1 : 1;
+    }
+}
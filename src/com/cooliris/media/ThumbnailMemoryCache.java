@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.media;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * A two tier, byte budgeted LRU cache of thumbnails kept in memory in front of
+ * the thumbnail DiskCaches. The first tier holds decoded bitmaps, the second
+ * the raw cache records (header and JPEG data) so that a thumbnail whose
+ * bitmap was evicted can still be decoded without going to flash.
+ *
+ * Entries are keyed by the DiskCache they came from and their key in it, and
+ * are only returned if they are at least as recent as the requested
+ * timestamp, mirroring DiskCache.get(). Cached bitmaps are never handed out
+ * directly since textures recycle their bitmap after the upload, callers get
+ * a copy instead.
+ */
+public final class ThumbnailMemoryCache {
+    private final LinkedHashMap<Long, BitmapEntry> mBitmaps = new LinkedHashMap<Long, BitmapEntry>(16, 0.75f, true);
+    private final LinkedHashMap<Long, DataEntry> mData = new LinkedHashMap<Long, DataEntry>(16, 0.75f, true);
+    private final int mMaxBitmapBytes;
+    private final int mMaxDataBytes;
+    private int mBitmapBytes = 0;
+    private int mDataBytes = 0;
+
+    public static final class BitmapEntry {
+        public final DiskCache source;
+        public final long timestamp;
+        public final Bitmap bitmap;
+        public final long thumbnailId;
+        public final int focusX;
+        public final int focusY;
+
+        public BitmapEntry(DiskCache source, long timestamp, Bitmap bitmap, long thumbnailId, int focusX, int focusY) {
+            this.source = source;
+            this.timestamp = timestamp;
+            this.bitmap = bitmap;
+            this.thumbnailId = thumbnailId;
+            this.focusX = focusX;
+            this.focusY = focusY;
+        }
+    }
+
+    private static final class DataEntry {
+        public final DiskCache source;
+        public final long timestamp;
+        public final byte[] data;
+
+        public DataEntry(DiskCache source, long timestamp, byte[] data) {
+            this.source = source;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+    }
+
+    public ThumbnailMemoryCache(int maxBitmapBytes, int maxDataBytes) {
+        mMaxBitmapBytes = maxBitmapBytes;
+        mMaxDataBytes = maxDataBytes;
+    }
+
+    /**
+     * Returns a copy of the cached decoded thumbnail, or null. The bitmap of
+     * the returned entry is owned by the caller.
+     */
+    public synchronized BitmapEntry getBitmap(DiskCache source, long key, long timestamp) {
+        final BitmapEntry entry = mBitmaps.get(key);
+        if (entry == null || entry.source != source || entry.timestamp < timestamp) {
+            return null;
+        }
+        final Bitmap bitmap = entry.bitmap.copy(entry.bitmap.getConfig(), false);
+        if (bitmap == null) {
+            return null;
+        }
+        return new BitmapEntry(source, entry.timestamp, bitmap, entry.thumbnailId, entry.focusX, entry.focusY);
+    }
+
+    /** Returns the cached record data for the thumbnail, or null. */
+    public synchronized byte[] getData(DiskCache source, long key, long timestamp) {
+        final DataEntry entry = mData.get(key);
+        if (entry == null || entry.source != source || entry.timestamp < timestamp) {
+            return null;
+        }
+        return entry.data;
+    }
+
+    /** Takes ownership of the bitmap held by the entry. */
+    public synchronized void putBitmap(long key, BitmapEntry entry) {
+        final int size = getByteCount(entry.bitmap);
+        if (size > mMaxBitmapBytes) {
+            entry.bitmap.recycle();
+            return;
+        }
+        final BitmapEntry oldEntry = mBitmaps.put(key, entry);
+        if (oldEntry != null) {
+            mBitmapBytes -= getByteCount(oldEntry.bitmap);
+            if (oldEntry.bitmap != entry.bitmap) {
+                oldEntry.bitmap.recycle();
+            }
+        }
+        mBitmapBytes += size;
+        final Iterator<BitmapEntry> iterator = mBitmaps.values().iterator();
+        while (mBitmapBytes > mMaxBitmapBytes && iterator.hasNext()) {
+            final BitmapEntry eldestEntry = iterator.next();
+            mBitmapBytes -= getByteCount(eldestEntry.bitmap);
+            eldestEntry.bitmap.recycle();
+            iterator.remove();
+        }
+    }
+
+    /** Takes ownership of the data array. */
+    public synchronized void putData(DiskCache source, long key, long timestamp, byte[] data) {
+        if (data.length > mMaxDataBytes) {
+            return;
+        }
+        final DataEntry oldEntry = mData.put(key, new DataEntry(source, timestamp, data));
+        if (oldEntry != null) {
+            mDataBytes -= oldEntry.data.length;
+        }
+        mDataBytes += data.length;
+        final Iterator<Map.Entry<Long, DataEntry>> iterator = mData.entrySet().iterator();
+        while (mDataBytes > mMaxDataBytes && iterator.hasNext()) {
+            mDataBytes -= iterator.next().getValue().data.length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        for (BitmapEntry entry : mBitmaps.values()) {
+            entry.bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mData.clear();
+        mBitmapBytes = 0;
+        mDataBytes = 0;
+    }
+
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -60,8 +60,8 @@ public class Utils {
         App.get(context).getHandler().post(new Runnable() {
             public void run() {
                 try {
-                    Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(item.mContentUri));
-                    intent.setDataAndType(Uri.parse(item.mContentUri), item.mMimeType);
+                    Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(item.getContentUri()));
+                    intent.setDataAndType(Uri.parse(item.getContentUri()), item.mMimeType);
                     context.startActivity(intent);
                 } catch (ActivityNotFoundException e) {
                     Toast.makeText(context, context.getResources().getString(Res.string.video_err), Toast.LENGTH_SHORT).show();
@@ -41,15 +41,20 @@ public class JpegMetadataReader
 //    public static Metadata readMetadata(IIOImage image) throws JpegProcessingException{}
 //    public static Metadata readMetadata(ImageReader reader) throws JpegProcessingException{}
 
+    /** The segments extractMetadataFromJpegSegmentReader() reads metadata from. */
+    private static final byte[] METADATA_SEGMENTS = {
+        JpegSegmentReader.SEGMENT_APP1, JpegSegmentReader.SEGMENT_SOF0, JpegSegmentReader.SEGMENT_COM
+    };
+
     public static Metadata readMetadata(InputStream in) throws JpegProcessingException
     {
-        JpegSegmentReader segmentReader = new JpegSegmentReader(in);
+        JpegSegmentReader segmentReader = new JpegSegmentReader(in, METADATA_SEGMENTS);
         return extractMetadataFromJpegSegmentReader(segmentReader);
     }
 
     public static Metadata readMetadata(File file) throws JpegProcessingException
     {
-        JpegSegmentReader segmentReader = new JpegSegmentReader(file);
+        JpegSegmentReader segmentReader = new JpegSegmentReader(file, METADATA_SEGMENTS);
         return extractMetadataFromJpegSegmentReader(segmentReader);
     }
 
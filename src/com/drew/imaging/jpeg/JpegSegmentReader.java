@@ -21,6 +21,8 @@
 package com.drew.imaging.jpeg;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Performs read functions of Jpeg files, returning specific file segments.
@@ -40,6 +42,9 @@ public class JpegSegmentReader
     /** Jpeg data as an InputStream */
     private final InputStream _stream;
 
+    /** Markers of the segments to read, or null to read all segments */
+    private final byte[] _wantedSegmentMarkers;
+
     private JpegSegmentData _segmentData;
 
     /**
@@ -101,10 +106,25 @@ public class JpegSegmentReader
      * @param file the Jpeg file to read segments from
      */
     public JpegSegmentReader(File file) throws JpegProcessingException
+    {
+        this(file, null);
+    }
+
+    /**
+     * Creates a JpegSegmentReader for a specific file that only reads the first
+     * instance of each of the given segments.  Other segments are skipped by
+     * seeking over them, and reading stops as soon as all the given segments
+     * have been found, so that only a few KB of the file are read.
+     * @param file the Jpeg file to read segments from
+     * @param wantedSegmentMarkers the byte identifiers of the segments to read,
+     *        or null to read all segments
+     */
+    public JpegSegmentReader(File file, byte[] wantedSegmentMarkers) throws JpegProcessingException
     {
         _file = file;
         _data = null;
         _stream = null;
+        _wantedSegmentMarkers = wantedSegmentMarkers;
 
         readSegments();
     }
@@ -114,20 +134,47 @@ public class JpegSegmentReader
      * @param fileContents the byte array containing Jpeg data
      */
     public JpegSegmentReader(byte[] fileContents) throws JpegProcessingException
+    {
+        this(fileContents, null);
+    }
+
+    /**
+     * Creates a JpegSegmentReader for a byte array that only reads the first
+     * instance of each of the given segments.
+     * @param fileContents the byte array containing Jpeg data
+     * @param wantedSegmentMarkers the byte identifiers of the segments to read,
+     *        or null to read all segments
+     */
+    public JpegSegmentReader(byte[] fileContents, byte[] wantedSegmentMarkers) throws JpegProcessingException
     {
         _file = null;
         _data = fileContents;
         _stream = null;
+        _wantedSegmentMarkers = wantedSegmentMarkers;
 
         readSegments();
     }
 
     public JpegSegmentReader(InputStream in) throws JpegProcessingException
+    {
+        this(in, null);
+    }
+
+    /**
+     * Creates a JpegSegmentReader for a stream that only reads the first
+     * instance of each of the given segments.  Other segments are skipped, and
+     * reading stops as soon as all the given segments have been found.
+     * @param in the stream of Jpeg data, which is closed once read
+     * @param wantedSegmentMarkers the byte identifiers of the segments to read,
+     *        or null to read all segments
+     */
+    public JpegSegmentReader(InputStream in, byte[] wantedSegmentMarkers) throws JpegProcessingException
     {
         _stream = in;
         _file = null;
         _data = null;
-        
+        _wantedSegmentMarkers = wantedSegmentMarkers;
+
         readSegments();
     }
 
@@ -136,6 +183,7 @@ public class JpegSegmentReader
         _file = null;
         _data = null;
         _stream = null;
+        _wantedSegmentMarkers = null;
 
         _segmentData = segmentData;
     }
@@ -175,55 +223,102 @@ public class JpegSegmentReader
         return _segmentData;
     }
 
+    /**
+     * Maps the first instance of a given segment of a Jpeg file into memory, so that
+     * it can be read in place without copying it into a byte array.  The segments
+     * before it are seeked over.
+     * @param file the Jpeg file to read the segment from
+     * @param segmentMarker the byte identifier for the desired segment
+     * @return a read-only buffer over the segment data if found, else null
+     * @throws JpegProcessingException for any problems processing the Jpeg data,
+     *         including inner IOExceptions
+     */
+    public static ByteBuffer mapSegment(File file, byte segmentMarker) throws JpegProcessingException
+    {
+        RandomAccessFile jpegFile;
+        try {
+            jpegFile = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            throw new JpegProcessingException("Jpeg file does not exist", e);
+        }
+        try {
+            final long fileLength = jpegFile.length();
+            byte[] segmentHeader = new byte[4];
+            jpegFile.readFully(segmentHeader, 0, 2);
+            if ((segmentHeader[0] & 0xFF) != 0xFF || (segmentHeader[1] & 0xFF) != 0xD8) {
+                throw new JpegProcessingException("not a jpeg file");
+            }
+            long offset = 2;
+            while (offset + 4 <= fileLength) {
+                jpegFile.readFully(segmentHeader, 0, 4);
+                byte thisSegmentMarker = segmentHeader[1];
+                int segmentLength = getSegmentLength(segmentHeader, offset);
+                offset += 4;
+                if (isEndOfSegments(thisSegmentMarker)) {
+                    return null;
+                }
+                if (segmentLength > fileLength - offset) {
+                    throw new JpegProcessingException("segment size would extend beyond file stream length");
+                }
+                if (thisSegmentMarker == segmentMarker) {
+                    // the mapping stays valid once the file is closed
+                    return jpegFile.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, segmentLength);
+                }
+                offset += segmentLength;
+                jpegFile.seek(offset);
+            }
+            return null;
+        } catch (IOException ioe) {
+            throw new JpegProcessingException("IOException processing Jpeg file: " + ioe.getMessage(), ioe);
+        } finally {
+            try {
+                jpegFile.close();
+            } catch (IOException ioe) {
+                throw new JpegProcessingException("IOException processing Jpeg file: " + ioe.getMessage(), ioe);
+            }
+        }
+    }
+
     private void readSegments() throws JpegProcessingException
     {
         _segmentData = new JpegSegmentData();
 
+        if (_file != null) {
+            readSegmentsFromFile();
+            return;
+        }
+
         BufferedInputStream inStream = getJpegInputStream();
         try {
-            int offset = 0;
             // first two bytes should be jpeg magic number
             if (!isValidJpegHeaderBytes(inStream)) {
                 throw new JpegProcessingException("not a jpeg file");
             }
-            offset += 2;
-            do {
-                // next byte is 0xFF
-                byte segmentIdentifier = (byte)(inStream.read() & 0xFF);
-                if ((segmentIdentifier & 0xFF) != 0xFF) {
-                    throw new JpegProcessingException("expected jpeg segment start identifier 0xFF at offset " + offset + ", not 0x" + Integer.toHexString(segmentIdentifier & 0xFF));
+            int offset = 2;
+            byte[] segmentHeader = new byte[4];
+            while (!hasAllWantedSegments()) {
+                // <0xFF> <segment-marker> <segment-size high-byte> <segment-size low-byte>
+                if (!readFully(inStream, segmentHeader, 4)) {
+                    throw new JpegProcessingException("unexpected end of stream at offset " + offset);
                 }
-                offset++;
-                // next byte is <segment-marker>
-                byte thisSegmentMarker = (byte)(inStream.read() & 0xFF);
-                offset++;
-                // next 2-bytes are <segment-size>: [high-byte] [low-byte]
-                byte[] segmentLengthBytes = new byte[2];
-                inStream.read(segmentLengthBytes, 0, 2);
-                offset += 2;
-                int segmentLength = ((segmentLengthBytes[0] << 8) & 0xFF00) | (segmentLengthBytes[1] & 0xFF);
-                // segment length includes size bytes, so subtract two
-                segmentLength -= 2;
-                if (segmentLength > inStream.available())
-                    throw new JpegProcessingException("segment size would extend beyond file stream length");
-                else if (segmentLength < 0)
-                    throw new JpegProcessingException("segment size would be less than zero");
-                byte[] segmentBytes = new byte[segmentLength];
-                inStream.read(segmentBytes, 0, segmentLength);
-                offset += segmentLength;
-                if ((thisSegmentMarker & 0xFF) == (SEGMENT_SOS & 0xFF)) {
-                    // The 'Start-Of-Scan' segment's length doesn't include the image data, instead would
-                    // have to search for the two bytes: 0xFF 0xD9 (EOI).
-                    // It comes last so simply return at this point
-                    return;
-                } else if ((thisSegmentMarker & 0xFF) == (MARKER_EOI & 0xFF)) {
-                    // the 'End-Of-Image' segment -- this should never be found in this fashion
+                offset += 4;
+                byte thisSegmentMarker = segmentHeader[1];
+                int segmentLength = getSegmentLength(segmentHeader, offset - 4);
+                if (isEndOfSegments(thisSegmentMarker)) {
                     return;
-                } else {
+                }
+                if (isWantedSegment(thisSegmentMarker)) {
+                    byte[] segmentBytes = new byte[segmentLength];
+                    if (!readFully(inStream, segmentBytes, segmentLength)) {
+                        throw new JpegProcessingException("segment size would extend beyond file stream length");
+                    }
                     _segmentData.addSegment(thisSegmentMarker, segmentBytes);
+                } else if (!skipFully(inStream, segmentLength)) {
+                    throw new JpegProcessingException("segment size would extend beyond file stream length");
                 }
+                offset += segmentLength;
                 // didn't find the one we're looking for, loop through to the next segment
-            } while (true);
+            }
         } catch (IOException ioe) {
             //throw new JpegProcessingException("IOException processing Jpeg file", ioe);
             throw new JpegProcessingException("IOException processing Jpeg file: " + ioe.getMessage(), ioe);
@@ -239,6 +334,154 @@ public class JpegSegmentReader
         }
     }
 
+    /**
+     * Reads the segments of a file, seeking over the segments that are not wanted
+     * instead of reading them.
+     */
+    private void readSegmentsFromFile() throws JpegProcessingException
+    {
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(_file, "r");
+        } catch (FileNotFoundException e) {
+            throw new JpegProcessingException("Jpeg file does not exist", e);
+        }
+        try {
+            final long fileLength = file.length();
+            byte[] segmentHeader = new byte[4];
+            file.readFully(segmentHeader, 0, 2);
+            if ((segmentHeader[0] & 0xFF) != 0xFF || (segmentHeader[1] & 0xFF) != 0xD8) {
+                throw new JpegProcessingException("not a jpeg file");
+            }
+            long offset = 2;
+            while (!hasAllWantedSegments()) {
+                if (offset + 4 > fileLength) {
+                    throw new JpegProcessingException("unexpected end of file at offset " + offset);
+                }
+                file.readFully(segmentHeader, 0, 4);
+                byte thisSegmentMarker = segmentHeader[1];
+                int segmentLength = getSegmentLength(segmentHeader, offset);
+                offset += 4;
+                if (isEndOfSegments(thisSegmentMarker)) {
+                    return;
+                }
+                if (segmentLength > fileLength - offset) {
+                    throw new JpegProcessingException("segment size would extend beyond file stream length");
+                }
+                if (isWantedSegment(thisSegmentMarker)) {
+                    byte[] segmentBytes = new byte[segmentLength];
+                    file.readFully(segmentBytes, 0, segmentLength);
+                    _segmentData.addSegment(thisSegmentMarker, segmentBytes);
+                } else {
+                    file.seek(offset + segmentLength);
+                }
+                offset += segmentLength;
+            }
+        } catch (IOException ioe) {
+            throw new JpegProcessingException("IOException processing Jpeg file: " + ioe.getMessage(), ioe);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException ioe) {
+                throw new JpegProcessingException("IOException processing Jpeg file: " + ioe.getMessage(), ioe);
+            }
+        }
+    }
+
+    /**
+     * Validates a segment header and returns the length of the segment data
+     * following it.
+     */
+    private static int getSegmentLength(byte[] segmentHeader, long offset) throws JpegProcessingException
+    {
+        if ((segmentHeader[0] & 0xFF) != 0xFF) {
+            throw new JpegProcessingException("expected jpeg segment start identifier 0xFF at offset " + offset + ", not 0x" + Integer.toHexString(segmentHeader[0] & 0xFF));
+        }
+        int segmentLength = ((segmentHeader[2] << 8) & 0xFF00) | (segmentHeader[3] & 0xFF);
+        // segment length includes size bytes, so subtract two
+        segmentLength -= 2;
+        if (segmentLength < 0) {
+            throw new JpegProcessingException("segment size would be less than zero");
+        }
+        return segmentLength;
+    }
+
+    /**
+     * The 'Start-Of-Scan' segment's length doesn't include the image data, instead would
+     * have to search for the two bytes: 0xFF 0xD9 (EOI).  It comes last so reading stops
+     * there.  The 'End-Of-Image' segment should never be found in this fashion.
+     */
+    private static boolean isEndOfSegments(byte segmentMarker)
+    {
+        return segmentMarker == SEGMENT_SOS || segmentMarker == MARKER_EOI;
+    }
+
+    private boolean isWantedSegment(byte segmentMarker)
+    {
+        final byte[] wantedSegmentMarkers = _wantedSegmentMarkers;
+        if (wantedSegmentMarkers == null) {
+            return true;
+        }
+        for (int i = 0; i < wantedSegmentMarkers.length; i++) {
+            if (wantedSegmentMarkers[i] == segmentMarker) {
+                return !_segmentData.containsSegment(segmentMarker);
+            }
+        }
+        return false;
+    }
+
+    private boolean hasAllWantedSegments()
+    {
+        final byte[] wantedSegmentMarkers = _wantedSegmentMarkers;
+        if (wantedSegmentMarkers == null) {
+            return false;
+        }
+        for (int i = 0; i < wantedSegmentMarkers.length; i++) {
+            if (!_segmentData.containsSegment(wantedSegmentMarkers[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads exactly length bytes.  Unlike relying on InputStream.available(), this
+     * works for streams that don't know their remaining length.
+     * @return false if the end of the stream was reached first
+     */
+    private static boolean readFully(InputStream in, byte[] buffer, int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(buffer, offset, length - offset);
+            if (count < 0) {
+                return false;
+            }
+            offset += count;
+        }
+        return true;
+    }
+
+    /**
+     * Skips exactly length bytes.
+     * @return false if the end of the stream was reached first
+     */
+    private static boolean skipFully(InputStream in, long length) throws IOException
+    {
+        while (length > 0) {
+            long count = in.skip(length);
+            if (count <= 0) {
+                // skip() may return 0 before the end of the stream, read a byte to tell
+                if (in.read() < 0) {
+                    return false;
+                }
+                count = 1;
+            }
+            length -= count;
+        }
+        return true;
+    }
+
     /**
      * Private helper method to create a BufferedInputStream of Jpeg data from whichever
      * data source was specified upon construction of this instance.
@@ -277,7 +520,9 @@ public class JpegSegmentReader
     private boolean isValidJpegHeaderBytes(InputStream fileStream) throws IOException
     {
         byte[] header = new byte[2];
-        fileStream.read(header, 0, 2);
+        if (!readFully(fileStream, header, 2)) {
+            return false;
+        }
         return (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8;
     }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+/*
+ * This is public domain software - that is, you can do whatever you want
+ * with it, and include it software that is licensed under the GNU or the
+ * BSD license, or whatever other licence you choose, including proprietary
+ * closed source licenses.  I do ask that you leave this header in tact.
+ *
+ * If you make modifications to this code that you think would benefit the
+ * wider community, please send me a copy and I'll post it on my site.
+ *
+ * If you make use of this code, I'd appreciate hearing about it.
+ *   drew@drewnoakes.com
+ * Latest version of this software kept at
+ *   http://drewnoakes.com/
+ */
+package com.drew.metadata;
+
+import java.io.Serializable;
+
+/**
+ * A tag value that is only decoded from its raw bytes the first time it is read.
+ * Readers store instances of this class using <code>Directory.setDeferredValue()</code>,
+ * and the directory replaces them with the decoded value on first access, so that
+ * tags nobody reads are never decoded.
+ */
+public abstract class DeferredTagValue implements Serializable
+{
+    /**
+     * Decodes the value.
+     * @return the decoded value, or null if it cannot be decoded
+     */
+    public abstract Object decode();
+}
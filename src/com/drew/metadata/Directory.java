@@ -18,6 +18,8 @@ package com.drew.metadata;
 
 import com.drew.lang.Rational;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.text.DateFormat;
@@ -25,6 +27,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Base class for all Metadata directory types with supporting methods for setting and
@@ -32,23 +35,37 @@ import java.util.List;
  */
 public abstract class Directory implements Serializable
 {
-    /**
-     * Map of values hashed by type identifiers.
+    /*
+     * Tag values are kept in an open addressing hash table keyed by tag type, which
+     * avoids boxing the keys.  Directories hold a few dozen tags at most, so the
+     * table is small and rarely grows.  Int, long and rational values are stored
+     * unboxed in _numbers, other values in _objects.  A deferred value that fails to
+     * decode keeps its slot as KIND_INVALID, so that it is reported only once.
      */
-    protected final HashMap _tagMap;
+    private static final int INITIAL_CAPACITY = 32;
+    private static final int EMPTY = -1;
+
+    private static final byte KIND_OBJECT = 0;
+    private static final byte KIND_INT = 1;
+    private static final byte KIND_LONG = 2;
+    private static final byte KIND_RATIONAL = 3;
+    private static final byte KIND_INVALID = 4;
+
+    /** Tag type of each slot, or EMPTY. */
+    private int[] _keys;
+    private byte[] _kinds;
+    private long[] _numbers;
+    private Object[] _objects;
+
+    /** Tag types in the order in which they were first stored. */
+    private int[] _definedTagTypes;
+    private int _tagCount;
 
     /**
      * The descriptor used to interperet tag values.
      */
     protected TagDescriptor _descriptor;
 
-    /**
-     * A convenient list holding tag values in the order in which they were stored.
-     * This is used for creation of an iterator, and for counting the number of
-     * defined tags.
-     */
-    protected final List _definedTagList;
-
     private List _errorList;
 
 // ABSTRACT METHODS
@@ -72,8 +89,8 @@ public abstract class Directory implements Serializable
      */
     public Directory()
     {
-        _tagMap = new HashMap();
-        _definedTagList = new ArrayList();
+        allocateTable(INITIAL_CAPACITY);
+        _definedTagTypes = new int[INITIAL_CAPACITY / 2];
     }
 
 // VARIOUS METHODS
@@ -85,7 +102,8 @@ public abstract class Directory implements Serializable
      */
     public boolean containsTag(int tagType)
     {
-        return _tagMap.containsKey(new Integer(tagType));
+        int slot = findSlot(tagType);
+        return _keys[slot]!=EMPTY && _kinds[slot]!=KIND_INVALID;
     }
 
     /**
@@ -94,7 +112,28 @@ public abstract class Directory implements Serializable
      */
     public Iterator getTagIterator()
     {
-        return _definedTagList.iterator();
+        return new Iterator()
+        {
+            private int _index = 0;
+
+            public boolean hasNext()
+            {
+                return _index<_tagCount;
+            }
+
+            public Object next()
+            {
+                if (_index>=_tagCount) {
+                    throw new NoSuchElementException();
+                }
+                return new Tag(_definedTagTypes[_index++], Directory.this);
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     /**
@@ -103,7 +142,7 @@ public abstract class Directory implements Serializable
      */
     public int getTagCount()
     {
-        return _definedTagList.size();
+        return _tagCount;
     }
 
     /**
@@ -150,7 +189,7 @@ public abstract class Directory implements Serializable
      */
     public void setInt(int tagType, int value)
     {
-        setObject(tagType, new Integer(value));
+        setNumber(tagType, KIND_INT, value);
     }
 
     /**
@@ -200,7 +239,7 @@ public abstract class Directory implements Serializable
      */
     public void setLong(int tagType, long value)
     {
-        setObject(tagType, new Long(value));
+        setNumber(tagType, KIND_LONG, value);
     }
 
     /**
@@ -223,6 +262,17 @@ public abstract class Directory implements Serializable
         setObject(tagType, rational);
     }
 
+    /**
+     * Sets a rational value for the specified tag without allocating a Rational.
+     * @param tagType the tag's value as an int
+     * @param numerator the numerator of the rational number
+     * @param denominator the denominator of the rational number
+     */
+    public void setRational(int tagType, int numerator, int denominator)
+    {
+        setNumber(tagType, KIND_RATIONAL, ((long)numerator << 32) | (denominator & 0xFFFFFFFFL));
+    }
+
     /**
      * Sets a Rational array for the specified tag.
      * @param tagType the tag identifier
@@ -276,11 +326,28 @@ public abstract class Directory implements Serializable
             throw new NullPointerException("cannot set a null object");
         }
 
-        Integer key = new Integer(tagType);
-        if (!_tagMap.containsKey(key)) {
-            _definedTagList.add(new Tag(tagType, this));
-        }
-        _tagMap.put(key, value);
+        int slot = addSlot(tagType);
+        _kinds[slot] = KIND_OBJECT;
+        _numbers[slot] = 0;
+        _objects[slot] = value;
+    }
+
+    private void setNumber(int tagType, byte kind, long value)
+    {
+        int slot = addSlot(tagType);
+        _kinds[slot] = kind;
+        _numbers[slot] = value;
+        _objects[slot] = null;
+    }
+
+    /**
+     * Sets a value for the specified tag that is decoded the first time it is read.
+     * @param tagType the tag's value as an int
+     * @param value the deferred value for the specified tag
+     */
+    public void setDeferredValue(int tagType, DeferredTagValue value)
+    {
+        setObject(tagType, value);
     }
 
     /**
@@ -302,6 +369,10 @@ public abstract class Directory implements Serializable
      */
     public int getInt(int tagType) throws MetadataException
     {
+        int slot = findSlot(tagType);
+        if (_keys[slot]!=EMPTY && _kinds[slot]==KIND_INT) {
+            return (int)_numbers[slot];
+        }
         Object o = getObject(tagType);
         if (o==null) {
             throw new MetadataException("Tag " + getTagName(tagType) + " has not been set -- check using containsTag() first");
@@ -508,6 +579,10 @@ public abstract class Directory implements Serializable
      */
     public long getLong(int tagType) throws MetadataException
     {
+        int slot = findSlot(tagType);
+        if (_keys[slot]!=EMPTY && (_kinds[slot]==KIND_INT || _kinds[slot]==KIND_LONG)) {
+            return _numbers[slot];
+        }
         Object o = getObject(tagType);
         if (o==null) {
             throw new MetadataException("Tag " + getTagName(tagType) + " has not been set -- check using containsTag() first");
@@ -610,6 +685,10 @@ public abstract class Directory implements Serializable
      */
     public String getString(int tagType)
     {
+        int slot = findSlot(tagType);
+        if (_keys[slot]!=EMPTY && (_kinds[slot]==KIND_INT || _kinds[slot]==KIND_LONG)) {
+            return Long.toString(_numbers[slot]);
+        }
         Object o = getObject(tagType);
         if (o==null)
             return null;
@@ -646,7 +725,115 @@ public abstract class Directory implements Serializable
      */
     public Object getObject(int tagType)
     {
-        return _tagMap.get(new Integer(tagType));
+        int slot = findSlot(tagType);
+        if (_keys[slot]==EMPTY) {
+            return null;
+        }
+        switch (_kinds[slot]) {
+            case KIND_INT:
+                return new Integer((int)_numbers[slot]);
+            case KIND_LONG:
+                return new Long(_numbers[slot]);
+            case KIND_RATIONAL:
+                return new Rational((int)(_numbers[slot] >> 32), (int)_numbers[slot]);
+            case KIND_INVALID:
+                return null;
+        }
+        Object o = _objects[slot];
+        if (o instanceof DeferredTagValue) {
+            o = ((DeferredTagValue)o).decode();
+            if (o==null) {
+                addError("Unable to decode tag " + getTagName(tagType));
+                _kinds[slot] = KIND_INVALID;
+                _objects[slot] = null;
+            } else if (o instanceof Integer) {
+                _kinds[slot] = KIND_INT;
+                _numbers[slot] = ((Integer)o).intValue();
+                _objects[slot] = null;
+            } else {
+                _objects[slot] = o;
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Returns the slot of the given tag type, or the empty slot where it would be stored.
+     */
+    private int findSlot(int tagType)
+    {
+        final int[] keys = _keys;
+        final int mask = keys.length - 1;
+        int slot = (tagType * 0x9E3779B9) >>> 16 & mask;
+        while (keys[slot]!=EMPTY && keys[slot]!=tagType) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of the given tag type, adding the tag if it has not been set.
+     */
+    private int addSlot(int tagType)
+    {
+        int slot = findSlot(tagType);
+        if (_keys[slot]!=EMPTY) {
+            return slot;
+        }
+        // keep the table at most half full
+        if (_tagCount + 1>_keys.length / 2) {
+            growTable();
+            slot = findSlot(tagType);
+        }
+        _keys[slot] = tagType;
+        if (_tagCount==_definedTagTypes.length) {
+            int[] definedTagTypes = new int[_tagCount * 2];
+            System.arraycopy(_definedTagTypes, 0, definedTagTypes, 0, _tagCount);
+            _definedTagTypes = definedTagTypes;
+        }
+        _definedTagTypes[_tagCount++] = tagType;
+        return slot;
+    }
+
+    private void allocateTable(int capacity)
+    {
+        _keys = new int[capacity];
+        _kinds = new byte[capacity];
+        _numbers = new long[capacity];
+        _objects = new Object[capacity];
+        for (int i = 0; i<capacity; i++) {
+            _keys[i] = EMPTY;
+        }
+    }
+
+    private void growTable()
+    {
+        final int[] keys = _keys;
+        final byte[] kinds = _kinds;
+        final long[] numbers = _numbers;
+        final Object[] objects = _objects;
+        allocateTable(keys.length * 2);
+        for (int i = 0; i<keys.length; i++) {
+            if (keys[i]!=EMPTY) {
+                int slot = findSlot(keys[i]);
+                _keys[slot] = keys[i];
+                _kinds[slot] = kinds[i];
+                _numbers[slot] = numbers[i];
+                _objects[slot] = objects[i];
+            }
+        }
+    }
+
+    /**
+     * Decodes the deferred values before writing the directory, since they refer to
+     * the raw bytes of the file, which are not serialized.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        for (int i = 0; i<_tagCount; i++) {
+            getObject(_definedTagTypes[i]);
+        }
+        out.defaultWriteObject();
     }
 
 // OTHER METHODS
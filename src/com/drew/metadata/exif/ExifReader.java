@@ -47,13 +47,16 @@ import com.drew.imaging.jpeg.JpegProcessingException;
 import com.drew.imaging.jpeg.JpegSegmentData;
 import com.drew.imaging.jpeg.JpegSegmentReader;
 import com.drew.lang.Rational;
+import com.drew.metadata.DeferredTagValue;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.MetadataReader;
 
 import java.io.File;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Extracts Exif data from a JPEG header segment, providing information about the
@@ -64,16 +67,16 @@ import java.util.HashMap;
 public class ExifReader implements MetadataReader
 {
     /**
-     * The JPEG segment as an array of bytes.
+     * The JPEG segment, starting at index 0.  Its byte order is set from the
+     * Motorola (big endian) or Intel (little endian) identifier of the TIFF header,
+     * so values are read with the absolute getters of the buffer.
      */
-    private final byte[] _data;
+    private ByteBuffer _buffer;
 
     /**
-     * Represents the native byte ordering used in the JPEG segment.  If true,
-     * then we're using Motorolla ordering (Big endian), else we're using Intel
-     * ordering (Little endian).
+     * The length of the JPEG segment.
      */
-    private boolean _isMotorollaByteOrder;
+    private final int _length;
 
     /**
      * Bean instance to store information about the image and camera/scanner/capture
@@ -81,6 +84,28 @@ public class ExifReader implements MetadataReader
      */
     private Metadata _metadata;
 
+    /**
+     * The sorted types of the tags to extract, or null to extract all tags.
+     */
+    private int[] _tagTypes;
+
+    /**
+     * Whether maker notes are processed.
+     */
+    private boolean _processMakerNotes = true;
+
+    /**
+     * Whether tag values are decoded on first access rather than during extraction.
+     */
+    private boolean _deferDecoding = false;
+
+    /**
+     * Offsets of the directories visited so far.  An image has only a handful of
+     * directories, so a linear search is cheaper than hashing boxed offsets.
+     */
+    private int[] _processedDirectoryOffsets = new int[8];
+    private int _processedDirectoryCount;
+
     /**
      * The number of bytes used per format descriptor.
      */
@@ -147,7 +172,26 @@ public class ExifReader implements MetadataReader
      */
     public ExifReader(byte[] data)
     {
-        _data = data;
+        this(data==null ? null : ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Creates an ExifReader for the JPEG header segment between the position and
+     * the limit of the given buffer, for example a region of the file mapped by
+     * <code>JpegSegmentReader.mapSegment</code>.  The segment is read in place
+     * rather than copied, and the values whose decoding is deferred keep a
+     * reference to it.  The position and the byte order of the given buffer are
+     * not changed.
+     */
+    public ExifReader(ByteBuffer buffer)
+    {
+        if (buffer==null) {
+            _buffer = null;
+            _length = 0;
+        } else {
+            _buffer = buffer.slice();
+            _length = _buffer.limit();
+        }
     }
 
     /**
@@ -163,30 +207,63 @@ public class ExifReader implements MetadataReader
      * instance of <code>Metadata</code>.
      */
     public Metadata extract(Metadata metadata)
+    {
+        _tagTypes = null;
+        _processMakerNotes = true;
+        _deferDecoding = false;
+        return extractDirectories(metadata);
+    }
+
+    /**
+     * Performs the Exif data extraction of only the given tags, adding found values
+     * to the specified instance of <code>Metadata</code>.  Tag values are not decoded
+     * during extraction; only the offset of their raw bytes within the segment is kept,
+     * and they are decoded the first time they are read from their directory.
+     * Extracting just the few tags a caller needs saves most of the work of a full
+     * extraction.
+     * @param metadata the metadata to add found values to
+     * @param tagTypes the types of the tags to extract, in any directory, or null to
+     *        extract all tags.  The thumbnail data is only stored if
+     *        <code>TAG_COMPRESSION</code>, <code>TAG_THUMBNAIL_OFFSET</code> and
+     *        <code>TAG_THUMBNAIL_LENGTH</code> are extracted.
+     * @param processMakerNotes false to skip the camera specific maker note directories
+     */
+    public Metadata extract(Metadata metadata, int[] tagTypes, boolean processMakerNotes)
+    {
+        if (tagTypes!=null) {
+            tagTypes = (int[])tagTypes.clone();
+            Arrays.sort(tagTypes);
+        }
+        _tagTypes = tagTypes;
+        _processMakerNotes = processMakerNotes;
+        _deferDecoding = true;
+        return extractDirectories(metadata);
+    }
+
+    private Metadata extractDirectories(Metadata metadata)
     {
         _metadata = metadata;
-        if (_data==null)
+        if (_buffer==null)
             return _metadata;
 
         // once we know there's some data, create the directory and start working on it
         ExifDirectory directory = (ExifDirectory)_metadata.getDirectory(ExifDirectory.class);
 
         // check for the header length
-        if (_data.length<=14) {
+        if (_length<=14) {
             directory.addError("Exif data segment must contain at least 14 bytes");
             return _metadata;
         }
 
         // check for the header preamble
-        if (!"Exif\0\0".equals(new String(_data, 0, 6))) {
+        if (!startsWith(0, "Exif\0\0")) {
             directory.addError("Exif data segment doesn't begin with 'Exif'");
             return _metadata;
         }
 
         // this should be either "MM" or "II"
-        String byteOrderIdentifier = new String(_data, 6, 2);
-        if (!setByteOrder(byteOrderIdentifier)) {
-            directory.addError("Unclear distinction between Motorola/Intel byte ordering: " + byteOrderIdentifier);
+        if (!setByteOrder()) {
+            directory.addError("Unclear distinction between Motorola/Intel byte ordering: " + readString(_buffer, 6, 2));
             return _metadata;
         }
 
@@ -199,16 +276,16 @@ public class ExifReader implements MetadataReader
         int firstDirectoryOffset = get32Bits(10) + TIFF_HEADER_START_OFFSET;
 
         // David Ekholm sent an digital camera image that has this problem
-        if (firstDirectoryOffset>=_data.length - 1) {
+        if (firstDirectoryOffset>=_length - 1) {
             directory.addError("First exif directory offset is beyond end of Exif data segment");
             // First directory normally starts 14 bytes in -- try it here and catch another error in the worst case
             firstDirectoryOffset = 14;
         }
 
-        HashMap processedDirectoryOffsets = new HashMap();
+        _processedDirectoryCount = 0;
 
         // 0th IFD (we merge with Exif IFD)
-        processDirectory(directory, processedDirectoryOffsets, firstDirectoryOffset, TIFF_HEADER_START_OFFSET);
+        processDirectory(directory, firstDirectoryOffset, TIFF_HEADER_START_OFFSET);
 
         // after the extraction process, if we have the correct tags, we may be able to store thumbnail information
         storeThumbnailBytes(directory, TIFF_HEADER_START_OFFSET);
@@ -228,28 +305,40 @@ public class ExifReader implements MetadataReader
         try {
             int offset = exifDirectory.getInt(ExifDirectory.TAG_THUMBNAIL_OFFSET);
             int length = exifDirectory.getInt(ExifDirectory.TAG_THUMBNAIL_LENGTH);
-            byte[] result = new byte[length];
-            for (int i = 0; i<result.length; i++) {
-                result[i] = _data[tiffHeaderOffset + offset + i];
-            }
-            exifDirectory.setByteArray(ExifDirectory.TAG_THUMBNAIL_DATA, result);
+            exifDirectory.setByteArray(ExifDirectory.TAG_THUMBNAIL_DATA, getBytes(_buffer, tiffHeaderOffset + offset, length));
         } catch (Throwable e) {
             exifDirectory.addError("Unable to extract thumbnail: " + e.getMessage());
         }
     }
 
-    private boolean setByteOrder(String byteOrderIdentifier)
+    private boolean setByteOrder()
     {
-        if ("MM".equals(byteOrderIdentifier)) {
-            _isMotorollaByteOrder = true;
-        } else if ("II".equals(byteOrderIdentifier)) {
-            _isMotorollaByteOrder = false;
+        if (startsWith(6, "MM")) {
+            _buffer.order(ByteOrder.BIG_ENDIAN);
+        } else if (startsWith(6, "II")) {
+            _buffer.order(ByteOrder.LITTLE_ENDIAN);
         } else {
             return false;
         }
         return true;
     }
 
+    /**
+     * Returns true if the segment holds the given ASCII characters at the given
+     * offset, comparing bytes rather than creating a String.
+     */
+    private boolean startsWith(int offset, String prefix)
+    {
+        final int length = prefix.length();
+        if (offset<0 || offset + length>_length)
+            return false;
+        for (int i = 0; i<length; i++) {
+            if (_buffer.get(offset + i)!=(byte)prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Process one of the nested Tiff IFD directories.
      * 2 bytes: number of tags
@@ -258,16 +347,23 @@ public class ExifReader implements MetadataReader
      *   2 bytes: format code
      *   4 bytes: component count
      */
-    private void processDirectory(Directory directory, HashMap processedDirectoryOffsets, int dirStartOffset, int tiffHeaderOffset)
+    private void processDirectory(Directory directory, int dirStartOffset, int tiffHeaderOffset)
     {
         // check for directories we've already visited to avoid stack overflows when recursive/cyclic directory structures exist
-        if (processedDirectoryOffsets.containsKey(new Integer(dirStartOffset)))
-            return;
+        for (int i = 0; i<_processedDirectoryCount; i++) {
+            if (_processedDirectoryOffsets[i]==dirStartOffset)
+                return;
+        }
 
         // remember that we've visited this directory so that we don't visit it again later
-        processedDirectoryOffsets.put(new Integer(dirStartOffset), "processed");
+        if (_processedDirectoryCount==_processedDirectoryOffsets.length) {
+            int[] offsets = new int[_processedDirectoryCount * 2];
+            System.arraycopy(_processedDirectoryOffsets, 0, offsets, 0, _processedDirectoryCount);
+            _processedDirectoryOffsets = offsets;
+        }
+        _processedDirectoryOffsets[_processedDirectoryCount++] = dirStartOffset;
 
-        if (dirStartOffset>=_data.length || dirStartOffset<0) {
+        if (dirStartOffset>=_length || dirStartOffset<0) {
             directory.addError("Ignored directory marked to start outside data segement");
             return;
         }
@@ -304,14 +400,14 @@ public class ExifReader implements MetadataReader
             // each component may have more than one byte... calculate the total number of bytes
             final int byteCount = componentCount * BYTES_PER_FORMAT[formatCode];
             final int tagValueOffset = calculateTagValueOffset(byteCount, tagOffset, tiffHeaderOffset);
-            if (tagValueOffset<0 || tagValueOffset > _data.length) {
+            if (tagValueOffset<0 || tagValueOffset > _length) {
                 directory.addError("Illegal pointer offset value in EXIF");
                 continue;
             }
 
             // Check that this tag isn't going to allocate outside the bounds of the data array.
             // This addresses an uncommon OutOfMemoryError.
-            if (byteCount < 0 || tagValueOffset + byteCount > _data.length)
+            if (byteCount < 0 || tagValueOffset + byteCount > _length)
             {
                 directory.addError("Illegal number of bytes: " + byteCount);
                 continue;
@@ -322,19 +418,25 @@ public class ExifReader implements MetadataReader
 
             switch (tagType) {
                 case TAG_EXIF_OFFSET:
-                    processDirectory(_metadata.getDirectory(ExifDirectory.class), processedDirectoryOffsets, subdirOffset, tiffHeaderOffset);
+                    processDirectory(_metadata.getDirectory(ExifDirectory.class), subdirOffset, tiffHeaderOffset);
                     continue;
                 case TAG_INTEROP_OFFSET:
-                    processDirectory(_metadata.getDirectory(ExifInteropDirectory.class), processedDirectoryOffsets, subdirOffset, tiffHeaderOffset);
+                    processDirectory(_metadata.getDirectory(ExifInteropDirectory.class), subdirOffset, tiffHeaderOffset);
                     continue;
                 case TAG_GPS_INFO_OFFSET:
-                    processDirectory(_metadata.getDirectory(GpsDirectory.class), processedDirectoryOffsets, subdirOffset, tiffHeaderOffset);
+                    processDirectory(_metadata.getDirectory(GpsDirectory.class), subdirOffset, tiffHeaderOffset);
                     continue;
                 case TAG_MAKER_NOTE:
-                    processMakerNote(tagValueOffset, processedDirectoryOffsets, tiffHeaderOffset);
+                    if (_processMakerNotes)
+                        processMakerNote(tagValueOffset, tiffHeaderOffset);
                     continue;
                 default:
-                    processTag(directory, tagType, tagValueOffset, componentCount, formatCode);
+                    if (_tagTypes!=null && Arrays.binarySearch(_tagTypes, tagType)<0)
+                        continue;
+                    if (_deferDecoding)
+                        directory.setDeferredValue(tagType, new DeferredExifValue(_buffer, tagValueOffset, componentCount, formatCode));
+                    else
+                        processTag(directory, tagType, tagValueOffset, componentCount, formatCode);
                     break;
             }
         }
@@ -344,7 +446,7 @@ public class ExifReader implements MetadataReader
         int nextDirectoryOffset = get32Bits(finalTagOffset);
         if (nextDirectoryOffset!=0) {
             nextDirectoryOffset += tiffHeaderOffset;
-            if (nextDirectoryOffset>=_data.length) {
+            if (nextDirectoryOffset>=_length) {
                 // Last 4 bytes of IFD reference another IFD with an address that is out of bounds
                 // Note this could have been caused by jhead 1.3 cropping too much
                 return;
@@ -353,11 +455,11 @@ public class ExifReader implements MetadataReader
                 return;
             }
             // the next directory is of same type as this one
-            processDirectory(directory, processedDirectoryOffsets, nextDirectoryOffset, tiffHeaderOffset);
+            processDirectory(directory, nextDirectoryOffset, tiffHeaderOffset);
         }
     }
 
-    private void processMakerNote(int subdirOffset, HashMap processedDirectoryOffsets, int tiffHeaderOffset)
+    private void processMakerNote(int subdirOffset, int tiffHeaderOffset)
     {
         // Determine the camera model and makernote format
         Directory exifDirectory = _metadata.getDirectory(ExifDirectory.class);
@@ -366,23 +468,16 @@ public class ExifReader implements MetadataReader
             return;
 
         String cameraModel = exifDirectory.getString(ExifDirectory.TAG_MAKE);
-        final String firstTwoChars = new String(_data, subdirOffset, 2);
-        final String firstThreeChars = new String(_data, subdirOffset, 3);
-        final String firstFourChars = new String(_data, subdirOffset, 4);
-        final String firstFiveChars = new String(_data, subdirOffset, 5);
-        final String firstSixChars = new String(_data, subdirOffset, 6);
-        final String firstSevenChars = new String(_data, subdirOffset, 7);
-        final String firstEightChars = new String(_data, subdirOffset, 8);
-        if ("OLYMP".equals(firstFiveChars) || "EPSON".equals(firstFiveChars) || "AGFA".equals(firstFourChars))
+        if (startsWith(subdirOffset, "OLYMP") || startsWith(subdirOffset, "EPSON") || startsWith(subdirOffset, "AGFA"))
         {
             // Olympus Makernote
             // Epson and Agfa use Olypus maker note standard, see:
             //     http://www.ozhiker.com/electronics/pjmt/jpeg_info/
-            processDirectory(_metadata.getDirectory(OlympusMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 8, tiffHeaderOffset);
+            processDirectory(_metadata.getDirectory(OlympusMakernoteDirectory.class), subdirOffset + 8, tiffHeaderOffset);
         }
         else if (cameraModel!=null && cameraModel.trim().toUpperCase().startsWith("NIKON"))
         {
-            if ("Nikon".equals(firstFiveChars))
+            if (startsWith(subdirOffset, "Nikon"))
             {
                 /* There are two scenarios here:
                  * Type 1:                  **
@@ -392,84 +487,84 @@ public class ExifReader implements MetadataReader
                  * :0000: 4E 69 6B 6F 6E 00 02 00-00 00 4D 4D 00 2A 00 00 Nikon....MM.*...
                  * :0010: 00 08 00 1E 00 01 00 07-00 00 00 04 30 32 30 30 ............0200
                  */
-                if (_data[subdirOffset+6]==1)
-                    processDirectory(_metadata.getDirectory(NikonType1MakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 8, tiffHeaderOffset);
-                else if (_data[subdirOffset+6]==2)
-                    processDirectory(_metadata.getDirectory(NikonType2MakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 18, subdirOffset + 10);
+                if (_buffer.get(subdirOffset+6)==1)
+                    processDirectory(_metadata.getDirectory(NikonType1MakernoteDirectory.class), subdirOffset + 8, tiffHeaderOffset);
+                else if (_buffer.get(subdirOffset+6)==2)
+                    processDirectory(_metadata.getDirectory(NikonType2MakernoteDirectory.class), subdirOffset + 18, subdirOffset + 10);
                 else
                     exifDirectory.addError("Unsupported makernote data ignored.");
             }
             else
             {
                 // The IFD begins with the first MakerNote byte (no ASCII name).  This occurs with CoolPix 775, E990 and D1 models.
-                processDirectory(_metadata.getDirectory(NikonType2MakernoteDirectory.class), processedDirectoryOffsets, subdirOffset, tiffHeaderOffset);
+                processDirectory(_metadata.getDirectory(NikonType2MakernoteDirectory.class), subdirOffset, tiffHeaderOffset);
             }
         }
-        else if ("SONY CAM".equals(firstEightChars) || "SONY DSC".equals(firstEightChars))
+        else if (startsWith(subdirOffset, "SONY CAM") || startsWith(subdirOffset, "SONY DSC"))
         {
-            processDirectory(_metadata.getDirectory(SonyMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 12, tiffHeaderOffset);
+            processDirectory(_metadata.getDirectory(SonyMakernoteDirectory.class), subdirOffset + 12, tiffHeaderOffset);
         }
-        else if ("KDK".equals(firstThreeChars))
+        else if (startsWith(subdirOffset, "KDK"))
         {
-            processDirectory(_metadata.getDirectory(KodakMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 20, tiffHeaderOffset);
+            processDirectory(_metadata.getDirectory(KodakMakernoteDirectory.class), subdirOffset + 20, tiffHeaderOffset);
         }
         else if ("Canon".equalsIgnoreCase(cameraModel))
         {
-            processDirectory(_metadata.getDirectory(CanonMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset, tiffHeaderOffset);
+            processDirectory(_metadata.getDirectory(CanonMakernoteDirectory.class), subdirOffset, tiffHeaderOffset);
         }
         else if (cameraModel!=null && cameraModel.toUpperCase().startsWith("CASIO"))
         {
-            if ("QVC\u0000\u0000\u0000".equals(firstSixChars))
-                processDirectory(_metadata.getDirectory(CasioType2MakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 6, tiffHeaderOffset);
+            if (startsWith(subdirOffset, "QVC\u0000\u0000\u0000"))
+                processDirectory(_metadata.getDirectory(CasioType2MakernoteDirectory.class), subdirOffset + 6, tiffHeaderOffset);
             else
-                processDirectory(_metadata.getDirectory(CasioType1MakernoteDirectory.class), processedDirectoryOffsets, subdirOffset, tiffHeaderOffset);
+                processDirectory(_metadata.getDirectory(CasioType1MakernoteDirectory.class), subdirOffset, tiffHeaderOffset);
         }
-        else if ("FUJIFILM".equals(firstEightChars) || "Fujifilm".equalsIgnoreCase(cameraModel))
+        else if (startsWith(subdirOffset, "FUJIFILM") || "Fujifilm".equalsIgnoreCase(cameraModel))
         {
-            // TODO make this field a passed parameter, to avoid threading issues
-            boolean byteOrderBefore = _isMotorollaByteOrder;
-            // bug in fujifilm makernote ifd means we temporarily use Intel byte ordering
-            _isMotorollaByteOrder = false;
+            ByteBuffer bufferBefore = _buffer;
+            // bug in fujifilm makernote ifd means we temporarily use Intel byte ordering.
+            // A duplicate is used so that the values deferred so far keep their byte order.
+            _buffer = _buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
             // the 4 bytes after "FUJIFILM" in the makernote point to the start of the makernote
             // IFD, though the offset is relative to the start of the makernote, not the TIFF
             // header (like everywhere else)
             int ifdStart = subdirOffset + get32Bits(subdirOffset + 8);
-            processDirectory(_metadata.getDirectory(FujifilmMakernoteDirectory.class), processedDirectoryOffsets, ifdStart, tiffHeaderOffset);
-            _isMotorollaByteOrder = byteOrderBefore;
+            processDirectory(_metadata.getDirectory(FujifilmMakernoteDirectory.class), ifdStart, tiffHeaderOffset);
+            _buffer = bufferBefore;
         }
         else if (cameraModel!=null && cameraModel.toUpperCase().startsWith("MINOLTA"))
         {
             // Cases seen with the model starting with MINOLTA in capitals seem to have a valid Olympus makernote
             // area that commences immediately.
-            processDirectory(_metadata.getDirectory(OlympusMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset, tiffHeaderOffset);
+            processDirectory(_metadata.getDirectory(OlympusMakernoteDirectory.class), subdirOffset, tiffHeaderOffset);
         }
-        else if ("KC".equals(firstTwoChars) || "MINOL".equals(firstFiveChars) || "MLY".equals(firstThreeChars) || "+M+M+M+M".equals(firstEightChars))
+        else if (startsWith(subdirOffset, "KC") || startsWith(subdirOffset, "MINOL") || startsWith(subdirOffset, "MLY") || startsWith(subdirOffset, "+M+M+M+M"))
         {
             // This Konica data is not understood.  Header identified in accordance with information at this site:
             // http://www.ozhiker.com/electronics/pjmt/jpeg_info/minolta_mn.html
             // TODO determine how to process the information described at the above website
             exifDirectory.addError("Unsupported Konica/Minolta data ignored.");
         }
-        else if ("KYOCERA".equals(firstSevenChars))
+        else if (startsWith(subdirOffset, "KYOCERA"))
         {
             // http://www.ozhiker.com/electronics/pjmt/jpeg_info/kyocera_mn.html
-            processDirectory(_metadata.getDirectory(KyoceraMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 22, tiffHeaderOffset);
+            processDirectory(_metadata.getDirectory(KyoceraMakernoteDirectory.class), subdirOffset + 22, tiffHeaderOffset);
         }
-        else if ("Panasonic\u0000\u0000\u0000".equals(new String(_data, subdirOffset, 12)))
+        else if (startsWith(subdirOffset, "Panasonic\u0000\u0000\u0000"))
         {
             // NON-Standard TIFF IFD Data using Panasonic Tags. There is no Next-IFD pointer after the IFD
             // Offsets are relative to the start of the TIFF header at the beginning of the EXIF segment
             // more information here: http://www.ozhiker.com/electronics/pjmt/jpeg_info/panasonic_mn.html
-            processDirectory(_metadata.getDirectory(PanasonicMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 12, tiffHeaderOffset);
+            processDirectory(_metadata.getDirectory(PanasonicMakernoteDirectory.class), subdirOffset + 12, tiffHeaderOffset);
         }
-        else if ("AOC\u0000".equals(firstFourChars))
+        else if (startsWith(subdirOffset, "AOC\u0000"))
         {
             // NON-Standard TIFF IFD Data using Casio Type 2 Tags
             // IFD has no Next-IFD pointer at end of IFD, and
             // Offsets are relative to the start of the current IFD tag, not the TIFF header
             // Observed for:
             // - Pentax ist D
-            processDirectory(_metadata.getDirectory(CasioType2MakernoteDirectory.class), processedDirectoryOffsets, subdirOffset + 6, subdirOffset);
+            processDirectory(_metadata.getDirectory(CasioType2MakernoteDirectory.class), subdirOffset + 6, subdirOffset);
         }
         else if (cameraModel!=null && (cameraModel.toUpperCase().startsWith("PENTAX") || cameraModel.toUpperCase().startsWith("ASAHI")))
         {
@@ -479,7 +574,7 @@ public class ExifReader implements MetadataReader
             // Observed for:
             // - PENTAX Optio 330
             // - PENTAX Optio 430
-            processDirectory(_metadata.getDirectory(PentaxMakernoteDirectory.class), processedDirectoryOffsets, subdirOffset, subdirOffset);
+            processDirectory(_metadata.getDirectory(PentaxMakernoteDirectory.class), subdirOffset, subdirOffset);
         }
         else
         {
@@ -493,7 +588,7 @@ public class ExifReader implements MetadataReader
     {
         int dirTagCount = get16Bits(dirStartOffset);
         int dirLength = (2 + (12 * dirTagCount) + 4);
-        if (dirLength + dirStartOffset + tiffHeaderOffset>=_data.length) {
+        if (dirLength + dirStartOffset + tiffHeaderOffset>=_length) {
             // Note: Files that had thumbnails trimmed with jhead 1.3 or earlier might trigger this
             return false;
         }
@@ -504,82 +599,124 @@ public class ExifReader implements MetadataReader
     {
         // Directory simply stores raw values
         // The display side uses a Descriptor class per directory to turn the raw values into 'pretty' descriptions
+        if (componentCount==1) {
+            // store single numeric values without boxing them
+            switch (formatCode)
+            {
+                case FMT_SRATIONAL:
+                case FMT_URATIONAL:
+                    directory.setRational(tagType, get32Bits(tagValueOffset), get32Bits(tagValueOffset + 4));
+                    return;
+                case FMT_SBYTE:
+                case FMT_BYTE:
+                case FMT_SINGLE:
+                case FMT_DOUBLE:
+                    directory.setInt(tagType, _buffer.get(tagValueOffset));
+                    return;
+                case FMT_USHORT:
+                case FMT_SSHORT:
+                    directory.setInt(tagType, get16Bits(tagValueOffset));
+                    return;
+                case FMT_SLONG:
+                case FMT_ULONG:
+                    directory.setInt(tagType, get32Bits(tagValueOffset));
+                    return;
+            }
+        }
+        Object value = decodeTagValue(_buffer, tagValueOffset, componentCount, formatCode);
+        if (value==null)
+            directory.addError("Unknown format code " + formatCode + " for tag " + tagType);
+        else
+            directory.setObject(tagType, value);
+    }
+
+    /**
+     * Decodes the raw value of a tag.
+     * @return the value, or null if the format code is unknown
+     */
+    private static Object decodeTagValue(ByteBuffer data, int tagValueOffset, int componentCount, int formatCode)
+    {
         switch (formatCode)
         {
             case FMT_UNDEFINED:
                 // this includes exif user comments
-                final byte[] tagBytes = new byte[componentCount];
-                final int byteCount = componentCount * BYTES_PER_FORMAT[formatCode];
-                for (int i=0; i<byteCount; i++)
-                    tagBytes[i] = _data[tagValueOffset + i];
-                directory.setByteArray(tagType, tagBytes);
-                break;
+                return getBytes(data, tagValueOffset, componentCount * BYTES_PER_FORMAT[formatCode]);
             case FMT_STRING:
-                directory.setString(tagType, readString(tagValueOffset, componentCount));
-                break;
+                return readString(data, tagValueOffset, componentCount);
             case FMT_SRATIONAL:
             case FMT_URATIONAL:
                 if (componentCount==1) {
-                    Rational rational = new Rational(get32Bits(tagValueOffset), get32Bits(tagValueOffset + 4));
-                    directory.setRational(tagType, rational);
+                    return new Rational(get32Bits(data, tagValueOffset), get32Bits(data, tagValueOffset + 4));
                 } else {
                     Rational[] rationals = new Rational[componentCount];
                     for (int i = 0; i<componentCount; i++)
-                        rationals[i] = new Rational(get32Bits(tagValueOffset + (8 * i)), get32Bits(tagValueOffset + 4 + (8 * i)));
-                    directory.setRationalArray(tagType, rationals);
+                        rationals[i] = new Rational(get32Bits(data, tagValueOffset + (8 * i)), get32Bits(data, tagValueOffset + 4 + (8 * i)));
+                    return rationals;
                 }
-                break;
             case FMT_SBYTE:
             case FMT_BYTE:
-                if (componentCount==1) {
-                    // this may need to be a byte, but I think casting to int is fine
-                    int b = _data[tagValueOffset];
-                    directory.setInt(tagType, b);
-                } else {
-                    int[] bytes = new int[componentCount];
-                    for (int i = 0; i<componentCount; i++)
-                        bytes[i] = _data[tagValueOffset + i];
-                    directory.setIntArray(tagType, bytes);
-                }
-                break;
             case FMT_SINGLE:
             case FMT_DOUBLE:
                 if (componentCount==1) {
-                    int i = _data[tagValueOffset];
-                    directory.setInt(tagType, i);
+                    // this may need to be a byte, but I think casting to int is fine
+                    return new Integer(data.get(tagValueOffset));
                 } else {
-                    int[] ints = new int[componentCount];
+                    int[] bytes = new int[componentCount];
                     for (int i = 0; i<componentCount; i++)
-                        ints[i] = _data[tagValueOffset + i];
-                    directory.setIntArray(tagType, ints);
+                        bytes[i] = data.get(tagValueOffset + i);
+                    return bytes;
                 }
-                break;
             case FMT_USHORT:
             case FMT_SSHORT:
                 if (componentCount==1) {
-                    int i = get16Bits(tagValueOffset);
-                    directory.setInt(tagType, i);
+                    return new Integer(get16Bits(data, tagValueOffset));
                 } else {
                     int[] ints = new int[componentCount];
                     for (int i = 0; i<componentCount; i++)
-                        ints[i] = get16Bits(tagValueOffset + (i * 2));
-                    directory.setIntArray(tagType, ints);
+                        ints[i] = get16Bits(data, tagValueOffset + (i * 2));
+                    return ints;
                 }
-                break;
             case FMT_SLONG:
             case FMT_ULONG:
                 if (componentCount==1) {
-                    int i = get32Bits(tagValueOffset);
-                    directory.setInt(tagType, i);
+                    return new Integer(get32Bits(data, tagValueOffset));
                 } else {
                     int[] ints = new int[componentCount];
                     for (int i = 0; i<componentCount; i++)
-                        ints[i] = get32Bits(tagValueOffset + (i * 4));
-                    directory.setIntArray(tagType, ints);
+                        ints[i] = get32Bits(data, tagValueOffset + (i * 4));
+                    return ints;
                 }
-                break;
             default:
-                directory.addError("Unknown format code " + formatCode + " for tag " + tagType);
+                return null;
+        }
+    }
+
+    /**
+     * The raw value of a tag, decoded when it is first read from its directory.
+     * Directories decode their deferred values before they are serialized, the
+     * bytes are not serialized.
+     */
+    private static final class DeferredExifValue extends DeferredTagValue
+    {
+        private final transient ByteBuffer _data;
+        private final int _tagValueOffset;
+        private final int _componentCount;
+        private final int _formatCode;
+
+        public DeferredExifValue(ByteBuffer data, int tagValueOffset, int componentCount, int formatCode)
+        {
+            _data = data;
+            _tagValueOffset = tagValueOffset;
+            _componentCount = componentCount;
+            _formatCode = formatCode;
+        }
+
+        public Object decode()
+        {
+            if (_data==null) {
+                return null;
+            }
+            return decodeTagValue(_data, _tagValueOffset, _componentCount, _formatCode);
         }
     }
 
@@ -590,7 +727,7 @@ public class ExifReader implements MetadataReader
             // dirEntryOffset must be passed, as some makernote implementations (e.g. FujiFilm) incorrectly use an
             // offset relative to the start of the makernote itself, not the TIFF segment.
             final int offsetVal = get32Bits(dirEntryOffset + 8);
-            if (offsetVal + byteCount>_data.length) {
+            if (offsetVal + byteCount>_length) {
                 // Bogus pointer offset and / or bytecount value
                 return -1; // signal error
             }
@@ -602,16 +739,33 @@ public class ExifReader implements MetadataReader
     }
 
     /**
-     * Creates a String from the _data buffer starting at the specified offset,
+     * Creates a String from the buffer starting at the specified offset,
      * and ending where byte=='\0' or where length==maxLength.
      */
-    private String readString(int offset, int maxLength)
+    private static String readString(ByteBuffer data, int offset, int maxLength)
     {
+        final int limit = data.limit();
         int length = 0;
-        while ((offset + length)<_data.length && _data[offset + length]!='\0' && length<maxLength)
+        while ((offset + length)<limit && data.get(offset + length)!='\0' && length<maxLength)
             length++;
 
-        return new String(_data, offset, length);
+        return new String(getBytes(data, offset, length));
+    }
+
+    /**
+     * Copies length bytes of the buffer starting at the specified offset.
+     */
+    private static byte[] getBytes(ByteBuffer data, int offset, int length)
+    {
+        final byte[] bytes = new byte[length];
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + offset, bytes, 0, length);
+        } else {
+            final ByteBuffer duplicate = data.duplicate();
+            duplicate.position(offset);
+            duplicate.get(bytes);
+        }
+        return bytes;
     }
 
     /**
@@ -631,16 +785,15 @@ public class ExifReader implements MetadataReader
      */
     private int get16Bits(int offset)
     {
-        if (offset<0 || offset+2>_data.length)
-            throw new ArrayIndexOutOfBoundsException("attempt to read data outside of exif segment (index " + offset + " where max index is " + (_data.length - 1) + ")");
+        return get16Bits(_buffer, offset);
+    }
 
-        if (_isMotorollaByteOrder) {
-            // Motorola - MSB first
-            return (_data[offset] << 8 & 0xFF00) | (_data[offset + 1] & 0xFF);
-        } else {
-            // Intel ordering - LSB first
-            return (_data[offset + 1] << 8 & 0xFF00) | (_data[offset] & 0xFF);
-        }
+    private static int get16Bits(ByteBuffer data, int offset)
+    {
+        if (offset<0 || offset+2>data.limit())
+            throw new ArrayIndexOutOfBoundsException("attempt to read data outside of exif segment (index " + offset + " where max index is " + (data.limit() - 1) + ")");
+
+        return data.getShort(offset) & 0xFFFF;
     }
 
     /**
@@ -648,21 +801,14 @@ public class ExifReader implements MetadataReader
      */
     private int get32Bits(int offset)
     {
-        if (offset<0 || offset+4>_data.length)
-            throw new ArrayIndexOutOfBoundsException("attempt to read data outside of exif segment (index " + offset + " where max index is " + (_data.length - 1) + ")");
-
-        if (_isMotorollaByteOrder) {
-            // Motorola - MSB first
-            return (_data[offset] << 24 & 0xFF000000) |
-                    (_data[offset + 1] << 16 & 0xFF0000) |
-                    (_data[offset + 2] << 8 & 0xFF00) |
-                    (_data[offset + 3] & 0xFF);
-        } else {
-            // Intel ordering - LSB first
-            return (_data[offset + 3] << 24 & 0xFF000000) |
-                    (_data[offset + 2] << 16 & 0xFF0000) |
-                    (_data[offset + 1] << 8 & 0xFF00) |
-                    (_data[offset] & 0xFF);
-        }
+        return get32Bits(_buffer, offset);
+    }
+
+    private static int get32Bits(ByteBuffer data, int offset)
+    {
+        if (offset<0 || offset+4>data.limit())
+            throw new ArrayIndexOutOfBoundsException("attempt to read data outside of exif segment (index " + offset + " where max index is " + (data.limit() - 1) + ")");
+
+        return data.getInt(offset);
     }
 }
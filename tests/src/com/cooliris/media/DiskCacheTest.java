@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.media;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of DiskCache on the external storage of the device.
+ *
+ * adb shell am instrument -w -e class com.cooliris.media.DiskCacheTest
+ *     com.cooliris.media.tests/android.test.InstrumentationTestRunner
+ */
+public class DiskCacheTest extends TestCase {
+    private static final String CACHE_NAME = "disk-cache-test";
+    private static final long KEY = 42;
+    private static final int SIZE = 64 * 1024;
+    private static final int NUM_READS = 200;
+
+    private DiskCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new DiskCache(CACHE_NAME);
+        mCache.deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.deleteAll();
+        mCache = null;
+        super.tearDown();
+    }
+
+    public void testGetAfterInterruptedRead() throws Exception {
+        final byte[] data = createData(SIZE, 1);
+        mCache.put(KEY, data, 0);
+        final Thread reader = new Thread() {
+            public void run() {
+                interrupt();
+                mCache.get(KEY, 0);
+            }
+        };
+        reader.start();
+        reader.join();
+        assertTrue(Arrays.equals(data, mCache.get(KEY, 0)));
+    }
+
+    public void testGetWhileReadersAreInterrupted() throws Exception {
+        final byte[] data = createData(SIZE, 2);
+        mCache.put(KEY, data, 0);
+        final Thread reader = new Thread() {
+            public void run() {
+                for (int i = 0; i < NUM_READS; ++i) {
+                    mCache.get(KEY, 0);
+                }
+            }
+        };
+        reader.start();
+        while (reader.isAlive()) {
+            reader.interrupt();
+            assertTrue(Arrays.equals(data, mCache.get(KEY, 0)));
+        }
+        assertTrue(Arrays.equals(data, mCache.get(KEY, 0)));
+    }
+
+    public void testPutFromInterruptedThread() throws Exception {
+        final byte[] data = createData(SIZE, 3);
+        final Thread writer = new Thread() {
+            public void run() {
+                interrupt();
+                mCache.put(KEY, data, 0);
+            }
+        };
+        writer.start();
+        writer.join();
+        assertTrue(Arrays.equals(data, mCache.get(KEY, 0)));
+        final byte[] otherData = createData(SIZE, 4);
+        mCache.put(KEY + 1, otherData, 0);
+        assertTrue(Arrays.equals(otherData, mCache.get(KEY + 1, 0)));
+    }
+
+    private static byte[] createData(int size, int seed) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.media;
+
+import java.util.Random;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Instrumentation class comparing LongSparseArray and LongHashMap as the item
+ * lookup of a MediaSet. Each map is filled with the ids of an album in the
+ * order the items are added, then every id is looked up.
+ *
+ * The orders are those of real albums: ascending ids, descending ids for an
+ * album sorted by date with the newest photo first, runs of consecutive ids
+ * interleaved as when photos are synced from several devices, and random ids.
+ *
+ * adb shell am instrument -w [-e size N] [-e iterations N]
+ *     com.cooliris.media.tests/com.cooliris.media.LookupBenchmark
+ */
+public class LookupBenchmark extends Instrumentation {
+    private static final String TAG = "LookupBenchmark";
+    private static final int DEFAULT_SIZE = 20000;
+    private static final int DEFAULT_ITERATIONS = 5;
+    private static final int RUN_LENGTH = 200;
+
+    private static final int ORDER_ASCENDING = 0;
+    private static final int ORDER_DESCENDING = 1;
+    private static final int ORDER_INTERLEAVED = 2;
+    private static final int ORDER_RANDOM = 3;
+    private static final String[] ORDER_NAMES = { "ascending", "descending", "interleaved", "random" };
+
+    private final Bundle mResults = new Bundle();
+    private int mSize;
+    private int mIterations;
+
+    // Results of the lookups, kept so that the work is not optimized away.
+    private int mSink;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        String size = (arguments != null) ? arguments.getString("size") : null;
+        mSize = (size != null) ? Integer.parseInt(size) : DEFAULT_SIZE;
+        String iterations = (arguments != null) ? arguments.getString("iterations") : null;
+        mIterations = (iterations != null) ? Integer.parseInt(iterations) : DEFAULT_ITERATIONS;
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        MediaItem item = new MediaItem();
+        for (int order = 0; order < ORDER_NAMES.length; ++order) {
+            long[] ids = generateIds(order, mSize);
+            // Warm up the JIT, then measure.
+            measureSparseArray(ids, item);
+            measureHashMap(ids, item);
+            long sparseArrayPut = 0;
+            long sparseArrayGet = 0;
+            long hashMapPut = 0;
+            long hashMapGet = 0;
+            for (int i = 0; i < mIterations; ++i) {
+                long[] times = measureSparseArray(ids, item);
+                sparseArrayPut += times[0];
+                sparseArrayGet += times[1];
+                times = measureHashMap(ids, item);
+                hashMapPut += times[0];
+                hashMapGet += times[1];
+            }
+            long numOps = (long) mIterations * mSize;
+            report(ORDER_NAMES[order] + ".sparse_array", sparseArrayPut / numOps, sparseArrayGet / numOps);
+            report(ORDER_NAMES[order] + ".hash_map", hashMapPut / numOps, hashMapGet / numOps);
+        }
+        finish(Activity.RESULT_OK, mResults);
+    }
+
+    private void report(String key, long putTime, long getTime) {
+        mResults.putLong(key + ".put_ns", putTime);
+        mResults.putLong(key + ".get_ns", getTime);
+        Log.i(TAG, key + ": put " + putTime + "ns, get " + getTime + "ns");
+    }
+
+    /**
+     * Returns the time taken to put and to get all the ids, in nanoseconds.
+     */
+    private long[] measureSparseArray(long[] ids, MediaItem item) {
+        final int numIds = ids.length;
+        final LongSparseArray<MediaItem> lookup = new LongSparseArray<MediaItem>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numIds; ++i) {
+            lookup.put(ids[i], item);
+        }
+        long put = System.nanoTime() - start;
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < numIds; ++i) {
+            if (lookup.get(ids[i]) != null) {
+                ++found;
+            }
+        }
+        long get = System.nanoTime() - start;
+        mSink = found;
+        return new long[] { put, get };
+    }
+
+    private long[] measureHashMap(long[] ids, MediaItem item) {
+        final int numIds = ids.length;
+        final LongHashMap<MediaItem> lookup = new LongHashMap<MediaItem>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numIds; ++i) {
+            lookup.put(ids[i], item);
+        }
+        long put = System.nanoTime() - start;
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < numIds; ++i) {
+            if (lookup.get(ids[i]) != null) {
+                ++found;
+            }
+        }
+        long get = System.nanoTime() - start;
+        mSink = found;
+        return new long[] { put, get };
+    }
+
+    private static long[] generateIds(int order, int size) {
+        final long[] ids = new long[size];
+        final Random random = new Random(size);
+        // Media provider ids start at 1 and have gaps where items were deleted.
+        long id = 1;
+        for (int i = 0; i < size; ++i) {
+            ids[i] = id;
+            id += 1 + ((random.nextInt(10) == 0) ? random.nextInt(5) : 0);
+        }
+        switch (order) {
+        case ORDER_ASCENDING:
+            break;
+        case ORDER_DESCENDING:
+            for (int i = 0, j = size - 1; i < j; ++i, --j) {
+                long temp = ids[i];
+                ids[i] = ids[j];
+                ids[j] = temp;
+            }
+            break;
+        case ORDER_INTERLEAVED:
+            // Shuffle runs of consecutive ids.
+            final int numRuns = (size + RUN_LENGTH - 1) / RUN_LENGTH;
+            final long[] runs = ids.clone();
+            final int[] runOrder = new int[numRuns];
+            for (int i = 0; i < numRuns; ++i) {
+                runOrder[i] = i;
+            }
+            shuffle(runOrder, random);
+            int position = 0;
+            for (int i = 0; i < numRuns; ++i) {
+                final int begin = runOrder[i] * RUN_LENGTH;
+                final int end = Math.min(begin + RUN_LENGTH, size);
+                System.arraycopy(runs, begin, ids, position, end - begin);
+                position += end - begin;
+            }
+            break;
+        case ORDER_RANDOM:
+            for (int i = size - 1; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                long temp = ids[i];
+                ids[i] = ids[j];
+                ids[j] = temp;
+            }
+            break;
+        }
+        return ids;
+    }
+
+    private static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int temp = values[i];
+            values[i] = values[j];
+            values[j] = temp;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooliris.media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+
+import com.drew.imaging.jpeg.JpegSegmentReader;
+import com.drew.metadata.Directory;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.Tag;
+import com.drew.metadata.exif.ExifReader;
+
+/**
+ * Instrumentation class for metadata-extractor performance testing. Measures
+ * the throughput and the allocation rate of reading the EXIF segment, of
+ * extracting the EXIF directories with and without the maker notes, and of
+ * formatting the tag descriptions. The cost of the maker notes is the
+ * difference between extract_deferred and extract_no_maker_notes.
+ *
+ * The corpus is the directory given by the "corpus" argument, by default
+ * /sdcard/metadata-benchmark. Each JPEG file in it is one sample named after
+ * the file, e.g. canon.jpg, nikon.jpg, olympus.jpg, fujifilm.jpg, casio.jpg
+ * and pentax.jpg for the maker notes. A sample without EXIF and a sample with
+ * only GPS tags are generated when the benchmark starts.
+ *
+ * adb shell am instrument -w [-e corpus DIR] [-e iterations N]
+ *     com.cooliris.media.tests/com.cooliris.media.MetadataBenchmark
+ */
+public class MetadataBenchmark extends Instrumentation {
+    private static final String TAG = "MetadataBenchmark";
+    private static final String DEFAULT_CORPUS = "/sdcard/metadata-benchmark";
+    private static final int DEFAULT_ITERATIONS = 200;
+    private static final byte[] EXIF_SEGMENTS = { JpegSegmentReader.SEGMENT_APP1 };
+
+    private static final int CASE_SEGMENT_READER_FILE = 0;
+    private static final int CASE_SEGMENT_READER_BYTES = 1;
+    private static final int CASE_EXTRACT = 2;
+    private static final int CASE_EXTRACT_DEFERRED = 3;
+    private static final int CASE_EXTRACT_NO_MAKER_NOTES = 4;
+    private static final int CASE_DESCRIBE = 5;
+    private static final String[] CASE_NAMES = { "segment_reader_file", "segment_reader_bytes", "extract",
+            "extract_deferred", "extract_no_maker_notes", "describe" };
+
+    private final Bundle mResults = new Bundle();
+    private File mCorpus;
+    private int mIterations;
+
+    // Results of the last iteration, kept so that the work is not optimized
+    // away.
+    private Object mSink;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        String corpus = (arguments != null) ? arguments.getString("corpus") : null;
+        mCorpus = new File(corpus != null ? corpus : DEFAULT_CORPUS);
+        String iterations = (arguments != null) ? arguments.getString("iterations") : null;
+        mIterations = (iterations != null) ? Integer.parseInt(iterations) : DEFAULT_ITERATIONS;
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        ArrayList<File> samples = new ArrayList<File>();
+        File[] files = mCorpus.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName().toLowerCase();
+                if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg"))) {
+                    samples.add(file);
+                }
+            }
+        } else {
+            Log.w(TAG, "No corpus at " + mCorpus + ", only the generated samples are measured");
+        }
+        try {
+            File noExif = generateSample("no-exif.jpg");
+            samples.add(noExif);
+            File gps = generateSample("gps.jpg");
+            ExifInterface exif = new ExifInterface(gps.getPath());
+            exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, "37/1,25/1,1950/100");
+            exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, "N");
+            exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE, "122/1,5/1,2400/100");
+            exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF, "W");
+            exif.saveAttributes();
+            samples.add(gps);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not generate the samples", e);
+        }
+
+        for (File sample : samples) {
+            try {
+                runSample(sample);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to measure " + sample, e);
+            }
+        }
+        finish(Activity.RESULT_OK, mResults);
+    }
+
+    private File generateSample(String name) throws IOException {
+        File file = new File(getTargetContext().getCacheDir(), name);
+        Bitmap bitmap = Bitmap.createBitmap(64, 48, Bitmap.Config.RGB_565);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    private void runSample(File file) throws Exception {
+        String name = file.getName();
+        name = name.substring(0, name.lastIndexOf('.'));
+        byte[] contents = readFile(file);
+        byte[] segment = new JpegSegmentReader(contents, EXIF_SEGMENTS).readSegment(JpegSegmentReader.SEGMENT_APP1);
+        for (int i = 0; i < CASE_NAMES.length; ++i) {
+            if (segment == null && i >= CASE_EXTRACT) {
+                // There is nothing to extract.
+                break;
+            }
+            // Warm up the JIT and the caches, then measure.
+            measure(i, file, contents, segment, mIterations / 10 + 1);
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long elapsed = measure(i, file, contents, segment, mIterations);
+            Debug.stopAllocCounting();
+            long allocated = Debug.getThreadAllocSize();
+
+            double opsPerSecond = (elapsed == 0) ? 0 : mIterations * 1000000000.0 / elapsed;
+            long bytesPerOp = allocated / mIterations;
+            String key = name + "." + CASE_NAMES[i];
+            mResults.putDouble(key + ".ops_per_sec", opsPerSecond);
+            mResults.putLong(key + ".alloc_bytes_per_op", bytesPerOp);
+            Log.i(TAG, key + ": " + (long) opsPerSecond + " ops/s, " + bytesPerOp + " bytes/op");
+        }
+    }
+
+    /**
+     * Runs a case the given number of times and returns the elapsed time in
+     * nanoseconds. The description case formats the tags of a metadata
+     * extracted beforehand, so only the formatting is measured.
+     */
+    private long measure(int benchmarkCase, File file, byte[] contents, byte[] segment, int iterations)
+            throws Exception {
+        Metadata described = null;
+        if (benchmarkCase == CASE_DESCRIBE) {
+            described = new ExifReader(segment).extract(new Metadata());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            switch (benchmarkCase) {
+            case CASE_SEGMENT_READER_FILE:
+                mSink = new JpegSegmentReader(file, EXIF_SEGMENTS).readSegment(JpegSegmentReader.SEGMENT_APP1);
+                break;
+            case CASE_SEGMENT_READER_BYTES:
+                mSink = new JpegSegmentReader(contents, EXIF_SEGMENTS).readSegment(JpegSegmentReader.SEGMENT_APP1);
+                break;
+            case CASE_EXTRACT:
+                mSink = new ExifReader(segment).extract(new Metadata());
+                break;
+            case CASE_EXTRACT_DEFERRED:
+                // All the tags, without decoding their values.
+                mSink = new ExifReader(segment).extract(new Metadata(), null, true);
+                break;
+            case CASE_EXTRACT_NO_MAKER_NOTES:
+                mSink = new ExifReader(segment).extract(new Metadata(), null, false);
+                break;
+            case CASE_DESCRIBE:
+                mSink = describe(described);
+                break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int describe(Metadata metadata) throws Exception {
+        int length = 0;
+        Iterator directories = metadata.getDirectoryIterator();
+        while (directories.hasNext()) {
+            Directory directory = (Directory) directories.next();
+            Iterator tags = directory.getTagIterator();
+            while (tags.hasNext()) {
+                String description = ((Tag) tags.next()).getDescription();
+                if (description != null) {
+                    length += description.length();
+                }
+            }
+        }
+        return length;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < contents.length) {
+                int read = in.read(contents, offset, contents.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+}